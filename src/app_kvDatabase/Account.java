@@ -71,17 +71,25 @@ public class Account extends BaseEntity<String, byte[]> {
 		return compare(this.password, password) == 0;
 	}
 
+	/*
+	 * An account without password is marshalled with a password length of -1,
+	 * which is used for tombstones in the log. (non-Javadoc)
+	 * 
+	 * @see app_kvDatabase.BaseEntity#marshall()
+	 */
 	@Override
 	public byte[] marshall() {
-		int dataLength = username.length() + password.length;
+		int passwordLength = password == null ? 0 : password.length;
+		int dataLength = username.length() + passwordLength;
 
 		int totalLength = 8 + dataLength; // 4 bytes for username length and 4 bytes for password length
 
 		ByteBuffer buffer = ByteBuffer.allocate(totalLength);
 		buffer.putInt(username.length());
-		buffer.putInt(password.length);
+		buffer.putInt(password == null ? -1 : password.length);
 		buffer.put(username.getBytes());
-		buffer.put(password);
+		if (password != null)
+			buffer.put(password);
 
 		return buffer.array();
 	}
@@ -96,9 +104,29 @@ public class Account extends BaseEntity<String, byte[]> {
 		istream.read(passwordLengthBytes);
 
 		byte[] usernameBytes = new byte[bytesToInt(usernameLengthBytes)];
-		byte[] passwordBytes = new byte[bytesToInt(passwordLengthBytes)];
+		int passwordLength = bytesToInt(passwordLengthBytes);
+		byte[] passwordBytes = passwordLength < 0 ? null : new byte[passwordLength];
 		istream.read(usernameBytes);
-		istream.read(passwordBytes);
+		if (passwordBytes != null)
+			istream.read(passwordBytes);
+
+		username = new String(usernameBytes);
+		password = passwordBytes;
+
+		return true;
+	}
+
+	@Override
+	public boolean populate(ByteBuffer buffer) {
+		if (buffer.remaining() < 8)
+			return false;
+
+		byte[] usernameBytes = new byte[buffer.getInt()];
+		int passwordLength = buffer.getInt();
+		byte[] passwordBytes = passwordLength < 0 ? null : new byte[passwordLength];
+		buffer.get(usernameBytes);
+		if (passwordBytes != null)
+			buffer.get(passwordBytes);
 
 		username = new String(usernameBytes);
 		password = passwordBytes;
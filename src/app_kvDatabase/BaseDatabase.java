@@ -3,18 +3,32 @@
  */
 package app_kvDatabase;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -23,7 +37,19 @@ import common.hash.Hash;
 
 /**
  * This class handle the mapping between key and value. and offer the methods of
- * reading, writing, putting, removing, getting values from files.
+ * reading, putting, removing, getting values. Every mutation is appended to a
+ * {@link SegmentedLog}. Periodically, and whenever the log grows larger than
+ * the last one, the log starts a new segment and a {@link Checkpoint} of all
+ * pairs is written on a separate thread while the appends continue. The log
+ * segments it covers are deleted afterwards, so a restart only loads the
+ * checkpoint and replays the short tail of the log. Depending on the {@link Durability} a write
+ * returns before or after its log record is forced to disk. Reads go straight
+ * to a concurrent map without locking, writes only lock the stripe of their
+ * key, so writes of a key reach the log in the same order as the map. The
+ * keys are also kept in a {@link RingIndex}, so the data of a range is
+ * collected without hashing every key. Long scans read a {@link Snapshot},
+ * a point-in-time view that writes only pay for while it is open. A volatile
+ * database has no log and no persistence service, it only keeps the map.
  * 
  * @author Uy Ha
  *
@@ -32,11 +58,24 @@ import common.hash.Hash;
 public abstract class BaseDatabase<K, V, T extends BaseEntity<K, V>> {
 	protected static final Logger logger = LogManager.getLogger("kvServer");
 
+	private static final long SEGMENT_SIZE = 8 << 20;
+	private static final long MIN_CHECKPOINT_SIZE = 4 * SEGMENT_SIZE;
+	private static final long CHECKPOINT_INTERVAL = 5;
+	private static final int STRIPES = 64;
+
 	protected final File storageFile;
-	protected final HashMap<K, V> db;
-	protected final ExecutorService service;
+	protected final File checkpointFile;
+	protected final SegmentedLog log;
+	protected final ConcurrentHashMap<K, V> db;
+	protected final RingIndex<K> index = new RingIndex<>();
+	protected final ScheduledExecutorService service;
 
-	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+	private final CopyOnWriteArrayList<Snapshot> snapshots = new CopyOnWriteArrayList<>();
+	private final ExecutorService checkpointer;
+	private final AtomicInteger checkpoints = new AtomicInteger();
+	private volatile long checkpointSize;
+	private boolean outdatedRecords;
 
 	/**
 	 * 
@@ -44,10 +83,51 @@ public abstract class BaseDatabase<K, V, T extends BaseEntity<K, V>> {
 	 * 
 	 */
 	public BaseDatabase(String dbFile) throws IOException {
+		this(dbFile, Durability.ASYNC);
+	}
+
+	/**
+	 * 
+	 * @param dbFile
+	 * @param durability when the log records are forced to disk
+	 * 
+	 */
+	public BaseDatabase(String dbFile, Durability durability) throws IOException {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new ReentrantLock();
+		}
 		storageFile = new File(dbFile);
-		storageFile.createNewFile();
+		checkpointFile = new File(dbFile + ".checkpoint");
+		log = new SegmentedLog(dbFile, SEGMENT_SIZE, durability);
 		db = readData();
-		service = Executors.newSingleThreadExecutor();
+		db.forEach(1 << 12, (key, value) -> index.add(key, token(key, value)));
+		service = Executors.newSingleThreadScheduledExecutor();
+		checkpointer = Executors.newSingleThreadExecutor();
+		checkpointSize = checkpointFile.length();
+
+		if (storageFile.exists()) {
+			service.submit(migrateStorageFile());
+		} else if (outdatedRecords) {
+			service.submit(migrateRecords());
+		}
+		service.scheduleWithFixedDelay(periodicCheckpoint(), CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL,
+				TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Create a volatile database, its pairs are only kept in memory and are lost
+	 * when it is closed. It has no files, no log and no persistence service.
+	 */
+	protected BaseDatabase() {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+		storageFile = null;
+		checkpointFile = null;
+		log = null;
+		db = new ConcurrentHashMap<>();
+		service = null;
+		checkpointer = null;
 	}
 
 	protected abstract T newEntity();
@@ -55,42 +135,311 @@ public abstract class BaseDatabase<K, V, T extends BaseEntity<K, V>> {
 	protected abstract T newEntity(K key, V value);
 
 	/**
-	 * read data from stream and map keys and values from KVEntity.
+	 * Get the position of a pair on the ring, subclasses whose values carry it
+	 * return it instead of hashing the key.
+	 * 
+	 * @param key
+	 * @param value
+	 * @return the hash of the key
+	 */
+	protected byte[] token(K key, V value) {
+		return Hash.hash(key.toString());
+	}
+
+	/**
+	 * Turn a value into the form kept in memory and written to disk, e.g. a
+	 * compressed one. The stored form is returned unchanged by default.
+	 * 
+	 * @param key
+	 * @param value the value given by the caller
+	 * @return the value to be stored
+	 */
+	protected V encode(K key, V value) {
+		return value;
+	}
+
+	/**
+	 * Turn a stored value back into the form returned to the caller
+	 * 
+	 * @param stored the stored value, may be null
+	 * @return the value to be returned
+	 */
+	protected V decode(V stored) {
+		return stored;
+	}
+
+	/**
+	 * Called while the stripe of the key is locked after a value was stored and
+	 * the value it replaced was discarded. It is not called for the pairs loaded
+	 * when the database is opened.
+	 * 
+	 * @param key
+	 * @param stored the stored value that is part of the map now
+	 */
+	protected void stored(K key, V stored) {
+	}
+
+	/**
+	 * Called while the stripe of the key is locked after a stored value was
+	 * replaced or removed
+	 * 
+	 * @param key
+	 * @param stored the stored value that is not part of the map anymore
+	 */
+	protected void discarded(K key, V stored) {
+	}
+
+	/**
+	 * Called without a lock after a discarded value was decoded to be returned,
+	 * the call that discarded it does not read it anymore. Open snapshots may
+	 * still read it.
+	 * 
+	 * @param stored the stored value that was discarded
+	 */
+	protected void released(V stored) {
+	}
+
+	/**
+	 * read the data of the old single file format if it still exists, then load
+	 * the checkpoint and replay the log segments written after it. The time it
+	 * took is logged. A corrupt record ends the replay of its log segment like a
+	 * torn write.
 	 * 
 	 * @return kvMap
 	 * @throws IOException
 	 */
-	protected HashMap<K, V> readData() throws IOException {
-		try (InputStream istream = new FileInputStream(storageFile)) {
+	protected ConcurrentHashMap<K, V> readData() throws IOException {
+		long start = System.nanoTime();
+		ConcurrentHashMap<K, V> result = new ConcurrentHashMap<>();
+		AtomicBoolean outdated = new AtomicBoolean();
 
-			HashMap<K, V> result = new HashMap<>();
-			T entity = newEntity();
+		if (storageFile.exists()) {
+			try (InputStream istream = new BufferedInputStream(new FileInputStream(storageFile), 1 << 16)) {
+				T entity = newEntity();
+				while (entity.populate(istream)) {
+					result.put(entity.getKey(), entity.getValue());
+					entity = newEntity();
+				}
+			}
+		}
 
-			while (entity.populate(istream)) {
+		long logSequence = 0;
+		if (checkpointFile.exists()) {
+			logSequence = Checkpoint.read(checkpointFile, payload -> {
+				T entity = newEntity();
+				if (!entity.populate(payload)) {
+					throw new IOException(String.format("%s contains a corrupt record", checkpointFile));
+				}
 				result.put(entity.getKey(), entity.getValue());
-				entity = newEntity();
+				if (entity.isOutdated()) {
+					outdated.set(true);
+				}
+			});
+			log.deleteBefore(logSequence);
+		}
+		int checkpointed = result.size();
+
+		AtomicLong replayed = new AtomicLong();
+		log.replay(logSequence, (op, payload) -> {
+			// a batch is only applied once all of its records are read
+			ArrayList<Byte> ops = new ArrayList<>();
+			ArrayList<T> entities = new ArrayList<>();
+			if (op == SegmentedLog.BATCH) {
+				SegmentedLog.readBatch(payload, (batchOp, record) -> {
+					ops.add(batchOp);
+					entities.add(readRecord(record));
+				});
+			} else {
+				ops.add(op);
+				entities.add(readRecord(payload));
 			}
 
-			return result;
+			for (int i = 0; i < entities.size(); i++) {
+				T entity = entities.get(i);
+				if (entity.isOutdated()) {
+					outdated.set(true);
+				}
+				if (ops.get(i) == SegmentedLog.PUT) {
+					result.put(entity.getKey(), entity.getValue());
+				} else {
+					result.remove(entity.getKey());
+				}
+				replayed.incrementAndGet();
+			}
+		});
+		outdatedRecords = outdated.get();
+
+		logger.info(String.format("Loaded %s in %d ms: %d pairs from the checkpoint, %d records from the log",
+				storageFile.getName(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), checkpointed,
+				replayed.get()));
+		return result;
+	}
+
+	private T readRecord(ByteBuffer payload) throws IOException {
+		T entity = newEntity();
+		if (!entity.populate(payload)) {
+			throw new BulkLoader.CorruptRecordException("Corrupt log record");
+		}
+		return entity;
+	}
+
+	/**
+	 * Append a single mutation to the log and write a checkpoint if the log became
+	 * too large.
+	 * 
+	 * @param op     {@link SegmentedLog#PUT} or {@link SegmentedLog#TOMBSTONE}
+	 * @param entity the entity to be appended, its value is null for tombstones
+	 * @return a task to be submitted to the persistence service, returning the
+	 *         ticket of the record or -1 if it could not be appended
+	 */
+	protected Callable<Long> appendData(byte op, T entity) {
+		return () -> {
+			long ticket = -1;
+			try {
+				ticket = log.append(op, entity.marshall());
+				if (checkpoints.get() == 0 && log.size() > Math.max(MIN_CHECKPOINT_SIZE, checkpointSize)) {
+					requestCheckpoint();
+				}
+			} catch (IOException e) {
+				BaseDatabase.logger.warn(e);
+			}
+			return ticket;
+		};
+	}
+
+	/**
+	 * Append several mutations as one batch record and write a checkpoint if the
+	 * log became too large.
+	 * 
+	 * @param ops      {@link SegmentedLog#PUT} or {@link SegmentedLog#TOMBSTONE}
+	 *                 for every entity
+	 * @param entities the entities to be appended
+	 * @return a task to be submitted to the persistence service, returning the
+	 *         ticket of the record or -1 if it could not be appended
+	 */
+	protected Callable<Long> appendData(byte[] ops, List<T> entities) {
+		return () -> {
+			long ticket = -1;
+			try {
+				ArrayList<byte[]> payloads = new ArrayList<>(entities.size());
+				for (T entity : entities) {
+					payloads.add(entity.marshall());
+				}
+				ticket = log.appendBatch(ops, payloads);
+				if (checkpoints.get() == 0 && log.size() > Math.max(MIN_CHECKPOINT_SIZE, checkpointSize)) {
+					requestCheckpoint();
+				}
+			} catch (IOException e) {
+				BaseDatabase.logger.warn(e);
+			}
+			return ticket;
+		};
+	}
+
+	/**
+	 * Submit the append of a single mutation to the persistence service
+	 * 
+	 * @param op    {@link SegmentedLog#PUT} or {@link SegmentedLog#TOMBSTONE}
+	 * @param key
+	 * @param value the stored value, null for tombstones
+	 * @return the submitted append, null for a volatile database
+	 */
+	private Future<Long> submitAppend(byte op, K key, V value) {
+		return log == null ? null : service.submit(appendData(op, newEntity(key, value)));
+	}
+
+	/**
+	 * Wait until a submitted append is forced to disk as required by the
+	 * durability of the log, returns immediately for asynchronous logs and
+	 * volatile databases. This must be called without holding a stripe lock so
+	 * that concurrent writers are forced to disk together.
+	 * 
+	 * @param append the submitted append, null if nothing was appended
+	 */
+	protected void awaitDurable(Future<Long> append) {
+		if (append == null || log.getDurability().mode == Durability.Mode.ASYNC) {
+			return;
+		}
+
+		try {
+			long ticket = append.get();
+			if (ticket >= 0) {
+				log.awaitDurable(ticket);
+			}
+		} catch (IOException | ExecutionException e) {
+			logger.error("Failed to persist the write", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
 	/**
-	 * map key and value from HashMap to KVEntity and write data to stream.
+	 * Start a new log segment and write the checkpoint on the checkpoint thread.
+	 * This must only be called from the persistence service so it is ordered
+	 * with the appends: a write the checkpoint misses is appended to the new
+	 * segment, which is replayed after the checkpoint. The appends continue while
+	 * the checkpoint is written.
 	 * 
+	 * @return the checkpoint, it fails with the exception of the checkpoint
+	 * @throws IOException if the new segment cannot be started
+	 */
+	protected Future<?> requestCheckpoint() throws IOException {
+		long logSequence = log.startSegment();
+		checkpoints.incrementAndGet();
+		return checkpointer.submit(() -> {
+			try {
+				checkpoint(logSequence);
+				return null;
+			} catch (IOException e) {
+				BaseDatabase.logger.warn(e);
+				throw e;
+			} finally {
+				checkpoints.decrementAndGet();
+			}
+		});
+	}
+
+	/**
+	 * @return true while a checkpoint is requested or written, the stored values
+	 *         it may read must be kept readable until it is done
+	 */
+	protected boolean checkpointRunning() {
+		return checkpoints.get() > 0;
+	}
+
+	/**
+	 * Write all pairs to a checkpoint and delete the log segments before the
+	 * given one, this runs on the checkpoint thread. The pairs are marshalled one
+	 * by one while the checkpoint is written, so no copy of all values is kept.
 	 * 
-	 * @param kvmap
+	 * @param logSequence the segment started for the checkpoint
 	 * @throws IOException
 	 */
+	protected void checkpoint(long logSequence) throws IOException {
+		long start = System.nanoTime();
+		AtomicLong pairs = new AtomicLong();
 
-	protected Runnable writeData(HashMap<K, V> kvMap) {
-		return () -> {
-			try (OutputStream ostream = new FileOutputStream(storageFile)) {
+		Checkpoint.write(checkpointFile, logSequence, () -> db.entrySet().stream().map(pair -> {
+			pairs.incrementAndGet();
+			return newEntity(pair.getKey(), pair.getValue()).marshall();
+		}).iterator(), log.getBeforeSync());
+		log.deleteBefore(logSequence);
+		checkpointSize = checkpointFile.length();
+		logger.info(String.format("Checkpointed %d pairs of %s in %d ms", pairs.get(), storageFile.getName(),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+	}
 
-				ArrayList<T> entities = new ArrayList<>(kvMap.size());
-				kvMap.forEach((key, data) -> entities.add(newEntity(key, data)));
-				for (T entity : entities) {
-					ostream.write(entity.marshall());
+	/**
+	 * Write a checkpoint if anything was appended since the last one and no
+	 * checkpoint is running
+	 * 
+	 * @return a task to be scheduled on the persistence service
+	 */
+	private Runnable periodicCheckpoint() {
+		return () -> {
+			try {
+				if (checkpoints.get() == 0 && log.size() > 0) {
+					requestCheckpoint();
 				}
 			} catch (IOException e) {
 				BaseDatabase.logger.warn(e);
@@ -99,40 +448,339 @@ public abstract class BaseDatabase<K, V, T extends BaseEntity<K, V>> {
 	}
 
 	/**
-	 * put new key and value in HashMap and write data to stream. return the key's
-	 * corresponding old value.
+	 * Move the content of the old single file format into a checkpoint and delete
+	 * the file once the checkpoint is written.
+	 * 
+	 * @return a task to be submitted to the persistence service
+	 */
+	private Runnable migrateStorageFile() {
+		return () -> {
+			try {
+				Future<?> checkpoint = requestCheckpoint();
+				checkpointer.submit(() -> {
+					try {
+						checkpoint.get();
+						if (!storageFile.delete()) {
+							logger.warn(String.format("Cannot delete migrated storage file %s", storageFile));
+						}
+					} catch (ExecutionException e) {
+						// the checkpoint failed and was logged, the file is still needed
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				});
+			} catch (IOException e) {
+				BaseDatabase.logger.warn(e);
+			}
+		};
+	}
+
+	/**
+	 * Write the records that were read in an older format again in the current
+	 * one, by writing a checkpoint that replaces them.
+	 * 
+	 * @return a task to be submitted to the persistence service
+	 */
+	private Runnable migrateRecords() {
+		return () -> {
+			try {
+				logger.info(String.format("Migrating the records of %s to the current format", storageFile.getName()));
+				requestCheckpoint();
+			} catch (IOException e) {
+				BaseDatabase.logger.warn(e);
+			}
+		};
+	}
+
+	/**
+	 * put new key and value in HashMap and append the pair to the log. return the
+	 * key's corresponding old value.
 	 * 
 	 * 
 	 * @param key,value
 	 * @return oldValue
 	 * @throws IOException
 	 */
-	public synchronized V put(K key, V value) {
-		lock.writeLock().lock();
-		V oldValue = db.put(key, value);
-		lock.writeLock().unlock();
-
-		service.submit(writeData(db));
+	public V put(K key, V value) {
+		V oldValue;
+		Future<Long> append;
+		value = encode(key, value);
+		ReentrantLock stripe = stripe(key);
+		stripe.lock();
+		try {
+			preserve(key);
+			oldValue = db.put(key, value);
+			if (oldValue == null) {
+				index.add(key, token(key, value));
+			} else {
+				discarded(key, oldValue);
+			}
+			stored(key, value);
+			append = submitAppend(SegmentedLog.PUT, key, value);
+		} finally {
+			stripe.unlock();
+		}
 
-		return oldValue;
+		awaitDurable(append);
+		V result = decode(oldValue);
+		if (oldValue != null) {
+			released(oldValue);
+		}
+		return result;
 	}
 
 	/**
-	 * remove key and corresponding value from HashMap. and write the new mapping to
-	 * stream. return old value.
+	 * remove key and corresponding value from HashMap. and append a tombstone to
+	 * the log. return old value.
 	 * 
 	 * @param key
 	 * @return oldValue
 	 * @throws IOException
 	 */
-	public synchronized V remove(K key) {
-		lock.writeLock().lock();
-		V oldValue = db.remove(key);
-		lock.writeLock().unlock();
+	public V remove(K key) {
+		V oldValue;
+		Future<Long> append;
+		ReentrantLock stripe = stripe(key);
+		stripe.lock();
+		try {
+			preserve(key);
+			oldValue = db.remove(key);
+			if (oldValue != null) {
+				index.remove(key, token(key, oldValue));
+				discarded(key, oldValue);
+			}
+			append = submitAppend(SegmentedLog.TOMBSTONE, key, null);
+		} finally {
+			stripe.unlock();
+		}
+
+		awaitDurable(append);
+		V result = decode(oldValue);
+		if (oldValue != null) {
+			released(oldValue);
+		}
+		return result;
+	}
+
+	/**
+	 * put several pairs at once. The stripes of all keys are locked together, so
+	 * a reader sees the pairs after the batch returns, and the pairs are appended
+	 * as one log record, so they are recovered together or not at all. The batch
+	 * waits for the disk only once.
+	 * 
+	 * @param pairs the keys and values to be put
+	 */
+	public void putAll(Map<K, V> pairs) {
+		HashMap<K, V> batch = new HashMap<>();
+		pairs.forEach((key, value) -> batch.put(key, encode(key, value)));
+		writeAll(batch);
+	}
+
+	/**
+	 * remove several keys at once, like {@link #putAll(Map)}
+	 * 
+	 * @param keys the keys to be removed
+	 */
+	public void removeAll(Collection<K> keys) {
+		HashMap<K, V> batch = new HashMap<>();
+		keys.forEach(key -> batch.put(key, null));
+		writeAll(batch);
+	}
+
+	/**
+	 * Apply a batch under the locks of all its stripes and append it as a single
+	 * record
+	 * 
+	 * @param batch the stored values to be put, null for the keys to be removed
+	 */
+	private void writeAll(HashMap<K, V> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		byte[] ops = new byte[batch.size()];
+		ArrayList<T> entities = new ArrayList<>(batch.size());
+		ArrayList<V> oldValues = new ArrayList<>();
+		List<ReentrantLock> locks = stripes(batch.keySet());
+		Future<Long> append;
+		locks.forEach(ReentrantLock::lock);
+		try {
+			for (Map.Entry<K, V> pair : batch.entrySet()) {
+				K key = pair.getKey();
+				V value = pair.getValue();
+				preserve(key);
+				V oldValue = value == null ? db.remove(key) : db.put(key, value);
+				if (oldValue == null) {
+					if (value != null) {
+						index.add(key, token(key, value));
+					}
+				} else {
+					if (value == null) {
+						index.remove(key, token(key, oldValue));
+					}
+					discarded(key, oldValue);
+					oldValues.add(oldValue);
+				}
+				if (value != null) {
+					stored(key, value);
+				}
+				if (log != null) {
+					ops[entities.size()] = value == null ? SegmentedLog.TOMBSTONE : SegmentedLog.PUT;
+					entities.add(newEntity(key, value));
+				}
+			}
+			append = log == null ? null : service.submit(appendData(ops, entities));
+		} finally {
+			for (int i = locks.size() - 1; i >= 0; i--) {
+				locks.get(i).unlock();
+			}
+		}
+
+		awaitDurable(append);
+		oldValues.forEach(this::released);
+	}
+
+	/**
+	 * remove key only if it is still mapped to the expected value, e.g. because
+	 * it expired and was not updated in the meantime.
+	 * 
+	 * @param key
+	 * @param expected the stored value the key has to be mapped to, as found in
+	 *                 the map
+	 * @return true if the key was removed
+	 */
+	public boolean remove(K key, V expected) {
+		Future<Long> append;
+		ReentrantLock stripe = stripe(key);
+		stripe.lock();
+		try {
+			if (!expected.equals(db.get(key))) {
+				return false;
+			}
+			preserve(key);
+			db.remove(key);
+			index.remove(key, token(key, expected));
+			discarded(key, expected);
+			append = submitAppend(SegmentedLog.TOMBSTONE, key, null);
+		} finally {
+			stripe.unlock();
+		}
+
+		awaitDurable(append);
+		released(expected);
+		return true;
+	}
+
+	/**
+	 * replace the stored value of a key only if it is still mapped to the
+	 * expected value, e.g. because the stored value was moved. The new value is
+	 * appended to the log without waiting for it to be forced to disk, so this
+	 * can be called from the persistence service. The replacement must have the
+	 * same content, so it is not preserved for open snapshots.
+	 * 
+	 * @param key
+	 * @param expected    the stored value the key has to be mapped to
+	 * @param replacement the new stored value
+	 * @return true if the value was replaced
+	 */
+	protected boolean replace(K key, V expected, V replacement) {
+		ReentrantLock stripe = stripe(key);
+		stripe.lock();
+		try {
+			if (!db.replace(key, expected, replacement)) {
+				return false;
+			}
+			discarded(key, expected);
+			stored(key, replacement);
+			submitAppend(SegmentedLog.PUT, key, replacement);
+		} finally {
+			stripe.unlock();
+		}
+		released(expected);
+		return true;
+	}
+
+	/**
+	 * Keep the current value of a key for the open snapshots that have not kept
+	 * one yet, must be called while the stripe of the key is locked and before
+	 * the key is updated.
+	 * 
+	 * @param key
+	 */
+	private void preserve(K key) {
+		if (snapshots.isEmpty()) {
+			return;
+		}
+		Optional<V> current = Optional.ofNullable(db.get(key));
+		for (Snapshot snapshot : snapshots) {
+			snapshot.preImages.putIfAbsent(key, current);
+		}
+	}
+
+	/**
+	 * @return true if a snapshot is open, the stored values it may read must be
+	 *         kept readable until it is closed
+	 */
+	protected boolean snapshotsOpen() {
+		return !snapshots.isEmpty();
+	}
+
+	/**
+	 * Get the lock guarding the writes of a key
+	 * 
+	 * @param key
+	 * @return the lock of the stripe the key belongs to
+	 */
+	private ReentrantLock stripe(K key) {
+		return stripes[stripeIndex(key)];
+	}
+
+	/**
+	 * Get the locks guarding the writes of several keys, ordered so that writers
+	 * locking several stripes do not deadlock
+	 * 
+	 * @param keys
+	 * @return the locks of the stripes the keys belong to
+	 */
+	private List<ReentrantLock> stripes(Collection<K> keys) {
+		boolean[] used = new boolean[STRIPES];
+		for (K key : keys) {
+			used[stripeIndex(key)] = true;
+		}
+		ArrayList<ReentrantLock> result = new ArrayList<>();
+		for (int i = 0; i < STRIPES; i++) {
+			if (used[i]) {
+				result.add(stripes[i]);
+			}
+		}
+		return result;
+	}
 
-		service.submit(writeData(db));
+	private int stripeIndex(K key) {
+		return (key.hashCode() & Integer.MAX_VALUE) % STRIPES;
+	}
 
-		return oldValue;
+	/**
+	 * Wait for the pending appends and close the log, a volatile database drops
+	 * its pairs
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (log == null) {
+			db.clear();
+			index.clear();
+			return;
+		}
+		service.shutdown();
+		try {
+			service.awaitTermination(1, TimeUnit.MINUTES);
+			checkpointer.shutdown();
+			checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		log.close();
 	}
 
 	/**
@@ -141,11 +789,8 @@ public abstract class BaseDatabase<K, V, T extends BaseEntity<K, V>> {
 	 * @param key the key of the pair
 	 * @return the value of the pair
 	 */
-	public synchronized V get(K key) {
-		lock.writeLock().lock();
-		V value = db.get(key);
-		lock.writeLock().unlock();
-		return value;
+	public V get(K key) {
+		return decode(db.get(key));
 	}
 
 	/**
@@ -156,59 +801,221 @@ public abstract class BaseDatabase<K, V, T extends BaseEntity<K, V>> {
 	 * @return Nothing
 	 * @throws IOException
 	 */
-	public synchronized void replicate(ArrayList<T> pairs) {
-		lock.writeLock().lock();
-		HashMap<K, V> refreshReplica = new HashMap<>();
+	public void replicate(ArrayList<T> pairs) {
+		Future<Future<?>> checkpoint;
+		ArrayList<V> oldValues;
+		ArrayList<V> values = new ArrayList<>(pairs.size());
 		for (T pair : pairs) {
-			refreshReplica.put(pair.getKey(), pair.getValue());
+			values.add(encode(pair.getKey(), pair.getValue()));
 		}
-		lock.writeLock().unlock();
 
-		service.submit(writeData(refreshReplica));
+		for (ReentrantLock stripe : stripes) {
+			stripe.lock();
+		}
+		try {
+			for (Snapshot snapshot : snapshots) {
+				db.forEach((key, value) -> snapshot.preImages.putIfAbsent(key, Optional.of(value)));
+				pairs.forEach(pair -> snapshot.preImages.putIfAbsent(pair.getKey(), Optional.empty()));
+			}
+			db.forEach(this::discarded);
+			oldValues = new ArrayList<>(db.values());
+			db.clear();
+			index.clear();
+			for (int i = 0; i < pairs.size(); i++) {
+				K key = pairs.get(i).getKey();
+				V old = db.put(key, values.get(i));
+				if (old == null) {
+					index.add(key, token(key, values.get(i)));
+				} else {
+					discarded(key, old);
+					oldValues.add(old);
+				}
+				stored(key, values.get(i));
+			}
+
+			checkpoint = log == null ? null : service.submit(this::requestCheckpoint);
+		} finally {
+			for (ReentrantLock stripe : stripes) {
+				stripe.unlock();
+			}
+		}
+		oldValues.forEach(this::released);
+
+		if (checkpoint != null && log.getDurability().mode != Durability.Mode.ASYNC) {
+			try {
+				checkpoint.get().get();
+			} catch (ExecutionException e) {
+				logger.error("Failed to persist the replicated data", e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Open a point-in-time view of all pairs, it has to be closed after use.
+	 * Opening it briefly waits for the writes in progress, the writes after
+	 * that are not delayed.
+	 * 
+	 * @return the snapshot of the current pairs
+	 */
+	public Snapshot snapshot() {
+		Snapshot snapshot = new Snapshot();
+		for (ReentrantLock stripe : stripes) {
+			stripe.lock();
+		}
+		try {
+			snapshots.add(snapshot);
+		} finally {
+			for (ReentrantLock stripe : stripes) {
+				stripe.unlock();
+			}
+		}
+		return snapshot;
 	}
 
 	/**
-	 * Collect the data in the given range
+	 * Collect the data in the given range, as it was when the collection started
 	 * 
 	 * @param start the starting index to collect data (exclusive)
 	 * @param end   the ending index to collect data (inclusive)
 	 * @return the collected data
 	 */
 	public HashMap<K, V> dataInRange(byte[] start, byte[] end) {
-		HashMap<K, V> result = new HashMap<>();
-		for (Map.Entry<K, V> entry : db.entrySet()) {
-			if (Hash.in(Hash.hash(entry.getKey().toString()), start, end)) {
-				result.put(entry.getKey(), entry.getValue());
-			}
+		try (Snapshot snapshot = snapshot()) {
+			return snapshot.dataInRange(start, end);
 		}
-		return result;
 	}
 
 	/**
-	 * Returns the data from the storage file
+	 * Returns the data from the storage file, as it was when the collection
+	 * started
 	 * 
 	 * @param Nothing
-	 * @return A hashMap containing the key value pairs
+	 * @return A hashMap containing a copy of the key value pairs
 	 */
 	public HashMap<K, V> getData() {
-		return db;
+		try (Snapshot snapshot = snapshot()) {
+			return snapshot.getData();
+		}
 	}
 
 	/**
-	 * Returns the out of range data for a given start and end point
+	 * Returns the out of range data for a given start and end point, as it was
+	 * when the collection started
 	 * 
 	 * @param start a byte array containing the starting point's hash
 	 * @param end   a byte array containing the ending point's hash
 	 * @return A hashMap containing the out of range data
 	 */
-	public synchronized HashMap<K, V> dataOutOfRange(byte[] start, byte[] end) {
-		HashMap<K, V> result = new HashMap<>();
-		for (Map.Entry<K, V> entry : db.entrySet()) {
-			if (!(Hash.in(Hash.hash(entry.getKey().toString()), start, end))) {
-				result.put(entry.getKey(), entry.getValue());
+	public HashMap<K, V> dataOutOfRange(byte[] start, byte[] end) {
+		try (Snapshot snapshot = snapshot()) {
+			return snapshot.dataOutOfRange(start, end);
+		}
+	}
+
+	/**
+	 * A point-in-time view of the pairs. It does not copy the map: a write to a
+	 * key keeps the value the key had before in the open snapshots, unless they
+	 * already kept one. A snapshot reads the kept value of a key if there is
+	 * one and the current value otherwise, so it only costs memory for the keys
+	 * written while it is open.
+	 */
+	public class Snapshot implements StorageEngine.Snapshot<K, V> {
+		/**
+		 * The values of the keys written since the snapshot was opened, empty for
+		 * keys that did not exist
+		 */
+		private final ConcurrentHashMap<K, Optional<V>> preImages = new ConcurrentHashMap<>();
+
+		private Snapshot() {
+		}
+
+		/**
+		 * @param key the key of the pair
+		 * @return the value of the pair when the snapshot was opened, null if it
+		 *         did not exist
+		 */
+		public V get(K key) {
+			return decode(read(key));
+		}
+
+		/**
+		 * @return all pairs when the snapshot was opened
+		 */
+		public HashMap<K, V> getData() {
+			HashMap<K, V> result = new HashMap<>();
+			db.forEach((key, value) -> putDecoded(result, key, read(key)));
+			addPreImages(result, token -> true);
+			return result;
+		}
+
+		/**
+		 * @param start the starting index of the range (exclusive)
+		 * @param end   the ending index of the range (inclusive)
+		 * @return the pairs in the range when the snapshot was opened
+		 */
+		public HashMap<K, V> dataInRange(byte[] start, byte[] end) {
+			HashMap<K, V> result = new HashMap<>();
+			for (K key : index.keysInRange(start, end)) {
+				putDecoded(result, key, read(key));
+			}
+			addPreImages(result, token -> Hash.in(token, start, end));
+			return result;
+		}
+
+		/**
+		 * @param start the starting index of the range (exclusive)
+		 * @param end   the ending index of the range (inclusive)
+		 * @return the pairs outside of the range when the snapshot was opened
+		 */
+		public HashMap<K, V> dataOutOfRange(byte[] start, byte[] end) {
+			HashMap<K, V> result = new HashMap<>();
+			for (K key : index.keysOutOfRange(start, end)) {
+				putDecoded(result, key, read(key));
+			}
+			addPreImages(result, token -> Hash.compare(start, end) != 0 && !Hash.in(token, start, end));
+			return result;
+		}
+
+		/**
+		 * Stop keeping values for this snapshot
+		 */
+		@Override
+		public void close() {
+			snapshots.remove(this);
+			preImages.clear();
+		}
+
+		/**
+		 * Read the stored value of a key as it was when the snapshot was opened.
+		 * The current value is read first: if no value was kept after that, the
+		 * key was not written since the snapshot was opened.
+		 */
+		private V read(K key) {
+			V current = db.get(key);
+			Optional<V> kept = preImages.get(key);
+			return kept == null ? current : kept.orElse(null);
+		}
+
+		/**
+		 * Add the kept values of the keys that were removed in the meantime, so
+		 * the current map and index do not know them anymore
+		 */
+		private void addPreImages(HashMap<K, V> result, Predicate<byte[]> inRange) {
+			preImages.forEach((key, kept) -> {
+				if (kept.isPresent() && !result.containsKey(key) && inRange.test(token(key, kept.get()))) {
+					putDecoded(result, key, kept.get());
+				}
+			});
+		}
+
+		private void putDecoded(HashMap<K, V> result, K key, V stored) {
+			V value = decode(stored);
+			if (value != null) {
+				result.put(key, value);
 			}
 		}
-		return result;
 	}
 
 }
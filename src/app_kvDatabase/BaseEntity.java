@@ -2,6 +2,7 @@ package app_kvDatabase;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 public abstract class BaseEntity<K, V> {
 
@@ -21,6 +22,15 @@ public abstract class BaseEntity<K, V> {
 	 */
 	public abstract boolean populate(InputStream istream) throws IOException;
 
+	/**
+	 * This method turn the bytes remaining in the buffer into corresponding db
+	 * message, without copying them into a stream first.
+	 * 
+	 * @param buffer
+	 * @return
+	 */
+	public abstract boolean populate(ByteBuffer buffer);
+
 	/**
 	 * This method return key value of the Entity
 	 * 
@@ -35,4 +45,14 @@ public abstract class BaseEntity<K, V> {
 	 */
 	public abstract V getValue();
 
+	/**
+	 * This method return whether the Entity was read from a record of an older
+	 * format, which should be written again in the current one.
+	 * 
+	 * @return
+	 */
+	public boolean isOutdated() {
+		return false;
+	}
+
 }
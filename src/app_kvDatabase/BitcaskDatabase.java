@@ -0,0 +1,811 @@
+package app_kvDatabase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import common.util.Bytes;
+
+/**
+ * This class stores the pairs in the style of Bitcask: the values only live in
+ * append-only segment files, the in-memory {@link KeyDirectory} maps every key to the
+ * segment, offset and length of its latest value together with its owner and
+ * deletion time. A value is read on demand with a positional read. Every
+ * segment that is not written anymore gets a hint file listing the key
+ * directory entries of the segment, so a restart does not have to read the
+ * values. The keys are also kept in a {@link RingIndex} for the range
+ * extraction and the keys with a deletion time in an {@link ExpiryIndex}.
+ *
+ * @author Uy Ha
+ *
+ */
+// Record structure: op ---1 byte; sequence ---8 bytes; delTime ---8 bytes;
+// keyLength ---4 bytes; ownerLength ---4 bytes; valueLength ---4 bytes; key;
+// owner; value
+// Hint structure: op ---1 byte; sequence ---8 bytes; delTime ---8 bytes;
+// valueOffset ---8 bytes; valueLength ---4 bytes; keyLength ---4 bytes;
+// ownerLength ---4 bytes; key; owner
+public class BitcaskDatabase implements StorageEngine {
+	protected static final Logger logger = LogManager.getLogger("kvServer");
+
+	private static final long SEGMENT_SIZE = 64 << 20;
+	private static final double MERGE_RATIO = 0.5;
+	private static final int HEADER_LENGTH = 29;
+	private static final long NO_DELETION = Long.MIN_VALUE;
+
+	/**
+	 * The location of the latest value of a key
+	 */
+	protected static class KeyDirEntry {
+		final int segment;
+		final long valueOffset;
+		final int valueLength;
+		final int ownerId;
+		final long delTime;
+		final long sequence;
+		final int recordLength;
+
+		KeyDirEntry(int segment, long valueOffset, int valueLength, int ownerId, long delTime, long sequence,
+				int recordLength) {
+			this.segment = segment;
+			this.valueOffset = valueOffset;
+			this.valueLength = valueLength;
+			this.ownerId = ownerId;
+			this.delTime = delTime;
+			this.sequence = sequence;
+			this.recordLength = recordLength;
+		}
+	}
+
+	protected final File directory;
+	protected final String prefix;
+	protected final KeyDirectory keyDir = new KeyDirectory();
+	protected final RingIndex<String> index = new RingIndex<>();
+	protected final ExpiryIndex expiry = new ExpiryIndex();
+	protected final ConcurrentHashMap<Integer, FileChannel> segments = new ConcurrentHashMap<>();
+	protected final ExecutorService service = Executors.newSingleThreadExecutor();
+
+	private final Pattern segmentPattern;
+	private final GroupCommit commit;
+
+	private int activeSegment;
+	private long activeSize;
+	private long sequence;
+	private long totalBytes;
+	private long deadBytes;
+	private boolean merging;
+
+	/**
+	 * Open the segments whose files are named after the given path, writes are
+	 * not forced to disk.
+	 *
+	 * @param dbFile the path the names of the segment and hint files are derived
+	 *               from
+	 * @throws IOException
+	 */
+	public BitcaskDatabase(String dbFile) throws IOException {
+		this(dbFile, Durability.ASYNC);
+	}
+
+	/**
+	 * Open the segments whose files are named after the given path and build the
+	 * key directory from their hint files, or from the record headers of the
+	 * segments without hint file.
+	 *
+	 * @param dbFile     the path the names of the segment and hint files are
+	 *                   derived from
+	 * @param durability when the writes are forced to disk
+	 * @throws IOException
+	 */
+	public BitcaskDatabase(String dbFile, Durability durability) throws IOException {
+		File base = new File(dbFile).getAbsoluteFile();
+		directory = base.getParentFile();
+		prefix = base.getName();
+		segmentPattern = Pattern.compile(Pattern.quote(prefix) + "\\.(\\d+)\\.data");
+		commit = new GroupCommit(durability, this::syncActive, "group-commit-" + prefix);
+
+		TreeMap<Integer, File> files = new TreeMap<>();
+		File[] candidates = directory.listFiles();
+		if (candidates != null) {
+			for (File file : candidates) {
+				Matcher matcher = segmentPattern.matcher(file.getName());
+				if (matcher.matches() && file.length() == 0) {
+					file.delete();
+				} else if (matcher.matches()) {
+					files.put(Integer.parseInt(matcher.group(1)), file);
+				}
+			}
+		}
+
+		HashMap<String, Long> tombstones = new HashMap<>();
+		ArrayList<Integer> missingHints = new ArrayList<>();
+		for (Map.Entry<Integer, File> file : files.entrySet()) {
+			segments.put(file.getKey(), openSegment(file.getKey()));
+			totalBytes += file.getValue().length();
+
+			File hint = hintFile(file.getKey());
+			if (hint.exists()) {
+				loadHint(file.getKey(), hint, tombstones);
+			} else {
+				loadSegment(file.getKey(), tombstones);
+				missingHints.add(file.getKey());
+			}
+		}
+
+		for (Map.Entry<String, KeyDirEntry> pair : keyDir) {
+			index.add(pair.getKey());
+			if (pair.getValue().delTime != NO_DELETION) {
+				expiry.schedule(pair.getKey(), fromMillis(pair.getValue().delTime));
+			}
+		}
+		activeSegment = files.isEmpty() ? 0 : files.lastKey();
+		startSegment();
+		for (int segment : missingHints) {
+			service.submit(() -> writeHint(segment));
+		}
+	}
+
+	@Override
+	public KVData get(String key) {
+		while (true) {
+			KeyDirEntry entry = keyDir.get(key);
+			if (entry == null) {
+				return null;
+			}
+
+			try {
+				return new KVData(Bytes.wrap(readValue(entry)), entry.ownerId, fromMillis(entry.delTime));
+			} catch (ClosedChannelException e) {
+				// the segment was merged while reading, the entry has been replaced
+				continue;
+			} catch (IOException e) {
+				logger.error(e);
+				return null;
+			}
+		}
+	}
+
+	@Override
+	public KVData put(String key, KVData value) {
+		KVData oldValue;
+		long ticket = -1;
+		synchronized (this) {
+			oldValue = get(key);
+			try {
+				ticket = append(SegmentedLog.PUT, key, value);
+			} catch (IOException e) {
+				logger.error(e);
+			}
+		}
+		awaitDurable(ticket);
+		return oldValue;
+	}
+
+	@Override
+	public KVData remove(String key) {
+		KVData oldValue;
+		long ticket = -1;
+		synchronized (this) {
+			oldValue = get(key);
+			if (oldValue != null) {
+				try {
+					ticket = append(SegmentedLog.TOMBSTONE, key, null);
+				} catch (IOException e) {
+					logger.error(e);
+				}
+			}
+		}
+		awaitDurable(ticket);
+		return oldValue;
+	}
+
+	@Override
+	public void putAll(Map<String, KVData> pairs) {
+		long ticket = -1;
+		synchronized (this) {
+			try {
+				for (Map.Entry<String, KVData> pair : pairs.entrySet()) {
+					ticket = append(SegmentedLog.PUT, pair.getKey(), pair.getValue());
+				}
+			} catch (IOException e) {
+				logger.error(e);
+			}
+		}
+		awaitDurable(ticket);
+	}
+
+	@Override
+	public void removeAll(Collection<String> keys) {
+		long ticket = -1;
+		synchronized (this) {
+			try {
+				for (String key : keys) {
+					if (get(key) != null) {
+						ticket = append(SegmentedLog.TOMBSTONE, key, null);
+					}
+				}
+			} catch (IOException e) {
+				logger.error(e);
+			}
+		}
+		awaitDurable(ticket);
+	}
+
+	/**
+	 * Replace the whole content by the given pairs, they are written to fresh
+	 * segments and all old segments are deleted.
+	 */
+	@Override
+	public void replicate(ArrayList<KVEntity> pairs) {
+		try {
+			service.submit(() -> {
+				synchronized (this) {
+					ArrayList<Integer> obsolete = new ArrayList<>(segments.keySet());
+					startSegment();
+					keyDir.clear();
+					index.clear();
+					expiry.clear();
+					totalBytes = 0;
+					deadBytes = 0;
+					for (KVEntity pair : pairs) {
+						append(SegmentedLog.PUT, pair.getKey(), pair.getValue());
+					}
+					if (commit.getDurability().mode != Durability.Mode.ASYNC) {
+						segments.get(activeSegment).force(false);
+					}
+					deleteSegments(obsolete);
+				}
+				return null;
+			}).get();
+		} catch (InterruptedException | ExecutionException e) {
+			logger.error(e);
+		}
+	}
+
+	@Override
+	public HashMap<String, KVData> dataInRange(byte[] start, byte[] end) {
+		HashMap<String, KVData> result = new HashMap<>();
+		for (String key : index.keysInRange(start, end)) {
+			putIfPresent(result, key);
+		}
+		return result;
+	}
+
+	@Override
+	public HashMap<String, KVData> dataOutOfRange(byte[] start, byte[] end) {
+		HashMap<String, KVData> result = new HashMap<>();
+		for (String key : index.keysOutOfRange(start, end)) {
+			putIfPresent(result, key);
+		}
+		return result;
+	}
+
+	@Override
+	public HashMap<String, KVData> getData() {
+		HashMap<String, KVData> result = new HashMap<>();
+		for (Map.Entry<String, KeyDirEntry> pair : keyDir) {
+			putIfPresent(result, pair.getKey());
+		}
+		return result;
+	}
+
+	/**
+	 * The deletion times are part of the key directory, so checking them does
+	 * not read the value.
+	 */
+	@Override
+	public boolean removeIfExpired(String key, LocalDateTime now) {
+		long ticket = -1;
+		synchronized (this) {
+			KeyDirEntry entry = keyDir.get(key);
+			if (entry == null || entry.delTime == NO_DELETION || entry.delTime >= toMillis(now)) {
+				return false;
+			}
+			try {
+				ticket = append(SegmentedLog.TOMBSTONE, key, null);
+			} catch (IOException e) {
+				logger.error(e);
+			}
+		}
+		awaitDurable(ticket);
+		return true;
+	}
+
+	/**
+	 * Only the expired keys of the {@link ExpiryIndex} are looked at.
+	 */
+	@Override
+	public List<String> removeExpiredData(int limit) {
+		ArrayList<String> expiredKeys = new ArrayList<>();
+		LocalDateTime now = LocalDateTime.now();
+		for (String key : expiry.expired(now, limit)) {
+			if (removeIfExpired(key, now)) {
+				expiredKeys.add(key);
+			}
+		}
+		return expiredKeys;
+	}
+
+	@Override
+	public void close() throws IOException {
+		service.shutdown();
+		try {
+			service.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		commit.close();
+		synchronized (this) {
+			if (commit.getDurability().mode != Durability.Mode.ASYNC) {
+				segments.get(activeSegment).force(false);
+			}
+			for (FileChannel channel : segments.values()) {
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Read the value an entry of the key directory points to
+	 *
+	 * @param entry the entry of the key directory
+	 * @return the bytes of the value
+	 * @throws IOException
+	 */
+	protected byte[] readValue(KeyDirEntry entry) throws IOException {
+		FileChannel channel = segments.get(entry.segment);
+		if (channel == null) {
+			throw new ClosedChannelException();
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(entry.valueLength);
+		readFully(channel, buffer, entry.valueOffset);
+		return buffer.array();
+	}
+
+	/**
+	 * Open the file of a segment for reading and appending
+	 *
+	 * @param segment the id of the segment
+	 * @return the channel of the segment
+	 * @throws IOException
+	 */
+	protected FileChannel openSegment(int segment) throws IOException {
+		return FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Write a record to the end of the active segment and point the key directory
+	 * to it, a new segment is started when the active one is full.
+	 *
+	 * @return the ticket to wait for until the record is forced to disk
+	 */
+	private long append(byte op, String key, KVData value) throws IOException {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		byte[] ownerBytes = value == null ? new byte[0] : value.owner().getBytes(StandardCharsets.UTF_8);
+		byte[] valueBytes = value == null ? new byte[0] : value.value.array();
+		long delTime = value == null ? NO_DELETION : toMillis(value.delTime);
+		int recordLength = HEADER_LENGTH + keyBytes.length + ownerBytes.length + valueBytes.length;
+
+		if (activeSize + recordLength > SEGMENT_SIZE && activeSize > 0) {
+			int closed = activeSegment;
+			startSegment();
+			service.submit(() -> writeHint(closed));
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(recordLength);
+		buffer.put(op).putLong(++sequence).putLong(delTime);
+		buffer.putInt(keyBytes.length).putInt(ownerBytes.length).putInt(valueBytes.length);
+		buffer.put(keyBytes).put(ownerBytes).put(valueBytes);
+		buffer.flip();
+
+		long recordOffset = activeSize;
+		FileChannel channel = segments.get(activeSegment);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, recordOffset + buffer.position());
+		}
+		activeSize += recordLength;
+		totalBytes += recordLength;
+
+		KeyDirEntry oldEntry;
+		if (op == SegmentedLog.PUT) {
+			long valueOffset = recordOffset + HEADER_LENGTH + keyBytes.length + ownerBytes.length;
+			oldEntry = keyDir.put(key, new KeyDirEntry(activeSegment, valueOffset, valueBytes.length,
+					value.ownerId, delTime, sequence, recordLength));
+			if (oldEntry == null) {
+				index.add(key);
+			}
+			expiry.schedule(key, value.delTime);
+		} else {
+			oldEntry = keyDir.remove(key);
+			index.remove(key);
+			expiry.cancel(key);
+			deadBytes += recordLength;
+		}
+		if (oldEntry != null) {
+			deadBytes += oldEntry.recordLength;
+		}
+
+		if (!merging && totalBytes > SEGMENT_SIZE && deadBytes > totalBytes * MERGE_RATIO) {
+			merging = true;
+			service.submit(this::merge);
+		}
+		return commit.register();
+	}
+
+	/**
+	 * Wait until a write is forced to disk as required by the durability, must be
+	 * called without holding the lock of the database so that concurrent writers
+	 * are forced to disk together.
+	 */
+	private void awaitDurable(long ticket) {
+		if (ticket >= 0) {
+			try {
+				commit.await(ticket);
+			} catch (IOException e) {
+				logger.error("Failed to persist the write", e);
+			}
+		}
+	}
+
+	/**
+	 * Force the active segment to disk. The force itself runs without the lock,
+	 * a segment that is replaced in the meantime was forced when it was
+	 * replaced.
+	 */
+	private void syncActive() throws IOException {
+		FileChannel channel;
+		synchronized (this) {
+			channel = segments.get(activeSegment);
+		}
+		try {
+			channel.force(false);
+		} catch (ClosedChannelException e) {
+			// the segment was forced before it was closed
+		}
+	}
+
+	/**
+	 * Start a new active segment, the previous one is forced to disk first
+	 * unless writes are asynchronous.
+	 */
+	private void startSegment() throws IOException {
+		FileChannel previous = segments.get(activeSegment);
+		if (previous != null && commit.getDurability().mode != Durability.Mode.ASYNC) {
+			previous.force(false);
+		}
+		activeSegment++;
+		segments.put(activeSegment, openSegment(activeSegment));
+		activeSize = segmentFile(activeSegment).length();
+	}
+
+	/**
+	 * Copy the live values of all segments except the active one into new
+	 * segments with hint files and delete the old segments. Like the active
+	 * segment, an output segment is closed once it would grow beyond
+	 * {@link #SEGMENT_SIZE}, the active segment becomes the next output and the
+	 * writes continue in a new one. Only runs on the background service.
+	 */
+	private void merge() {
+		try {
+			ArrayList<Integer> inputs;
+			int output;
+			synchronized (this) {
+				inputs = new ArrayList<>(segments.keySet());
+				inputs.remove(Integer.valueOf(activeSegment));
+				output = activeSegment;
+				startSegment();
+			}
+
+			int first = output;
+			FileChannel outputChannel = segments.get(output);
+			long outputSize = outputChannel.size();
+			long merged = 0;
+			for (Map.Entry<String, KeyDirEntry> pair : keyDir) {
+				KeyDirEntry entry = pair.getValue();
+				if (!inputs.contains(entry.segment)) {
+					continue;
+				}
+				if (outputSize + entry.recordLength > SEGMENT_SIZE && outputSize > 0) {
+					outputChannel.force(true);
+					writeHint(output);
+					synchronized (this) {
+						output = activeSegment;
+						startSegment();
+					}
+					outputChannel = segments.get(output);
+					outputSize = outputChannel.size();
+				}
+
+				byte[] keyBytes = pair.getKey().getBytes(StandardCharsets.UTF_8);
+				byte[] ownerBytes = OwnerDictionary.node().owner(entry.ownerId).getBytes(StandardCharsets.UTF_8);
+				byte[] valueBytes = readValue(entry);
+				ByteBuffer buffer = ByteBuffer.allocate(entry.recordLength);
+				buffer.put(SegmentedLog.PUT).putLong(entry.sequence).putLong(entry.delTime);
+				buffer.putInt(keyBytes.length).putInt(ownerBytes.length).putInt(valueBytes.length);
+				buffer.put(keyBytes).put(ownerBytes).put(valueBytes);
+				buffer.flip();
+
+				long recordOffset = outputSize;
+				while (buffer.hasRemaining()) {
+					outputChannel.write(buffer, recordOffset + buffer.position());
+				}
+				outputSize += entry.recordLength;
+
+				long valueOffset = recordOffset + HEADER_LENGTH + keyBytes.length + ownerBytes.length;
+				KeyDirEntry moved = new KeyDirEntry(output, valueOffset, entry.valueLength, entry.ownerId,
+						entry.delTime, entry.sequence, entry.recordLength);
+				keyDir.replace(pair.getKey(), entry, moved);
+				merged += entry.recordLength;
+			}
+			outputChannel.force(true);
+			writeHint(output);
+
+			synchronized (this) {
+				long reclaimed = 0;
+				for (int input : inputs) {
+					reclaimed += segmentFile(input).length();
+				}
+				deleteSegments(inputs);
+				totalBytes = totalBytes - reclaimed + merged;
+				deadBytes = Math.max(0, deadBytes - reclaimed + merged);
+				merging = false;
+			}
+			logger.info(String.format("Merged %d segment(s) of %s into segment(s) %d to %d", inputs.size(), prefix,
+					first, output));
+		} catch (IOException e) {
+			logger.error("Failed to merge the segments", e);
+			synchronized (this) {
+				merging = false;
+			}
+		}
+	}
+
+	/**
+	 * Write the hint file of a segment that is not written anymore, it is
+	 * written to a temporary file first so an interrupted write is never read.
+	 * Only runs on the background service.
+	 */
+	private void writeHint(int segment) {
+		File temporary = new File(directory, prefix + ".hint.tmp");
+		try (DataInputStream istream = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(segmentFile(segment)), 1 << 16));
+				DataOutputStream ostream = new DataOutputStream(
+						new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16))) {
+			long offset = 0;
+			while (true) {
+				byte op;
+				long recordSequence;
+				long delTime;
+				int keyLength;
+				int ownerLength;
+				int valueLength;
+				byte[] key;
+				byte[] owner;
+				try {
+					op = istream.readByte();
+					recordSequence = istream.readLong();
+					delTime = istream.readLong();
+					keyLength = istream.readInt();
+					ownerLength = istream.readInt();
+					valueLength = istream.readInt();
+					key = new byte[keyLength];
+					owner = new byte[ownerLength];
+					istream.readFully(key);
+					istream.readFully(owner);
+					istream.skipBytes(valueLength);
+				} catch (EOFException e) {
+					break;
+				}
+
+				ostream.writeByte(op);
+				ostream.writeLong(recordSequence);
+				ostream.writeLong(delTime);
+				ostream.writeLong(offset + HEADER_LENGTH + keyLength + ownerLength);
+				ostream.writeInt(valueLength);
+				ostream.writeInt(keyLength);
+				ostream.writeInt(ownerLength);
+				ostream.write(key);
+				ostream.write(owner);
+				offset += HEADER_LENGTH + keyLength + ownerLength + valueLength;
+			}
+		} catch (IOException e) {
+			logger.warn(e);
+			return;
+		}
+
+		if (!temporary.renameTo(hintFile(segment))) {
+			logger.warn(String.format("Cannot rename %s to %s", temporary, hintFile(segment)));
+		}
+	}
+
+	/**
+	 * Build the key directory entries of a segment from its hint file
+	 */
+	private void loadHint(int segment, File hint, HashMap<String, Long> tombstones) throws IOException {
+		try (DataInputStream istream = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(hint), 1 << 16))) {
+			while (true) {
+				byte op;
+				long recordSequence;
+				long delTime;
+				long valueOffset;
+				int valueLength;
+				byte[] key;
+				byte[] owner;
+				try {
+					op = istream.readByte();
+					recordSequence = istream.readLong();
+					delTime = istream.readLong();
+					valueOffset = istream.readLong();
+					valueLength = istream.readInt();
+					key = new byte[istream.readInt()];
+					owner = new byte[istream.readInt()];
+					istream.readFully(key);
+					istream.readFully(owner);
+				} catch (EOFException e) {
+					break;
+				}
+
+				int recordLength = HEADER_LENGTH + key.length + owner.length + valueLength;
+				load(op, new String(key, StandardCharsets.UTF_8), new String(owner, StandardCharsets.UTF_8), segment,
+						valueOffset, valueLength, delTime, recordSequence, recordLength, tombstones);
+			}
+		}
+	}
+
+	/**
+	 * Build the key directory entries of a segment without hint file from the
+	 * record headers, the values are skipped. A torn record at the end of the
+	 * segment is cut off.
+	 */
+	private void loadSegment(int segment, HashMap<String, Long> tombstones) throws IOException {
+		FileChannel channel = segments.get(segment);
+		long size = channel.size();
+		long offset = 0;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		while (offset + HEADER_LENGTH <= size) {
+			header.clear();
+			readFully(channel, header, offset);
+			header.flip();
+			byte op = header.get();
+			long recordSequence = header.getLong();
+			long delTime = header.getLong();
+			int keyLength = header.getInt();
+			int ownerLength = header.getInt();
+			int valueLength = header.getInt();
+			int recordLength = HEADER_LENGTH + keyLength + ownerLength + valueLength;
+			if (offset + recordLength > size) {
+				break;
+			}
+
+			ByteBuffer names = ByteBuffer.allocate(keyLength + ownerLength);
+			readFully(channel, names, offset + HEADER_LENGTH);
+			String key = new String(names.array(), 0, keyLength, StandardCharsets.UTF_8);
+			String owner = new String(names.array(), keyLength, ownerLength, StandardCharsets.UTF_8);
+
+			load(op, key, owner, segment, offset + HEADER_LENGTH + keyLength + ownerLength, valueLength, delTime,
+					recordSequence, recordLength, tombstones);
+			offset += recordLength;
+		}
+
+		if (offset < size) {
+			logger.warn(String.format("Truncating torn record at the end of %s", segmentFile(segment).getName()));
+			totalBytes -= size - offset;
+			channel.truncate(offset);
+		}
+	}
+
+	/**
+	 * Apply a record found while loading, records can be found in any order
+	 * after a merge, so the one with the highest sequence number wins.
+	 */
+	private void load(byte op, String key, String owner, int segment, long valueOffset, int valueLength,
+			long delTime, long recordSequence, int recordLength, HashMap<String, Long> tombstones) {
+		sequence = Math.max(sequence, recordSequence);
+
+		KeyDirEntry current = keyDir.get(key);
+		Long removed = tombstones.get(key);
+		long latest = Math.max(current == null ? 0 : current.sequence, removed == null ? 0 : removed);
+		if (recordSequence < latest) {
+			deadBytes += recordLength;
+			return;
+		}
+
+		if (current != null) {
+			deadBytes += current.recordLength;
+		}
+		if (op == SegmentedLog.PUT) {
+			keyDir.put(key, new KeyDirEntry(segment, valueOffset, valueLength, OwnerDictionary.node().id(owner), delTime,
+					recordSequence, recordLength));
+		} else {
+			keyDir.remove(key);
+			tombstones.put(key, recordSequence);
+			deadBytes += recordLength;
+		}
+	}
+
+	private void deleteSegments(List<Integer> obsolete) throws IOException {
+		for (int segment : obsolete) {
+			FileChannel channel = segments.remove(segment);
+			if (channel != null) {
+				channel.close();
+			}
+			hintFile(segment).delete();
+			if (!segmentFile(segment).delete()) {
+				logger.warn(String.format("Cannot delete obsolete segment %s", segmentFile(segment)));
+			}
+			segmentDeleted(segment);
+		}
+	}
+
+	/**
+	 * Called after a segment was merged or replaced and its file was deleted
+	 *
+	 * @param segment the id of the deleted segment
+	 */
+	protected void segmentDeleted(int segment) {
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException("Unexpected end of segment");
+			}
+		}
+	}
+
+	private void putIfPresent(HashMap<String, KVData> result, String key) {
+		KVData data = get(key);
+		if (data != null) {
+			result.put(key, data);
+		}
+	}
+
+	protected File segmentFile(int segment) {
+		return new File(directory, String.format("%s.%06d.data", prefix, segment));
+	}
+
+	private File hintFile(int segment) {
+		return new File(directory, String.format("%s.%06d.hint", prefix, segment));
+	}
+
+	private static long toMillis(LocalDateTime time) {
+		return time == null ? NO_DELETION : time.toInstant(ZoneOffset.UTC).toEpochMilli();
+	}
+
+	private static LocalDateTime fromMillis(long millis) {
+		return millis == NO_DELETION ? null : LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC);
+	}
+}
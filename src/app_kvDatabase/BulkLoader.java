@@ -0,0 +1,157 @@
+package app_kvDatabase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class reads the records of the log segments in large chunks through a
+ * {@link FileChannel} into one reusable buffer. The records are decoded in
+ * place, the handler receives a slice of the buffer instead of a copy. It also
+ * runs independent loading tasks, e.g. the ranges of a {@link Checkpoint}, on
+ * several threads.
+ *
+ * @author Uy Ha
+ *
+ */
+// Record structure: op ---1 byte; payloadLength ---4 bytes; payload
+public class BulkLoader {
+	private static final int CHUNK_SIZE = 1 << 20;
+	private static final int HEADER_LENGTH = 5;
+
+	/**
+	 * Handles a record read from a file
+	 */
+	public interface RecordHandler {
+		/**
+		 * @param op      the kind of the record
+		 * @param payload a buffer positioned at the start of the payload and
+		 *                limited to its end, it is only valid during the call
+		 */
+		void accept(byte op, ByteBuffer payload) throws IOException;
+	}
+
+	/**
+	 * Thrown by a handler for a record whose content is not valid, the record and
+	 * everything behind it are treated like a torn write.
+	 */
+	public static class CorruptRecordException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public CorruptRecordException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * A loading task that can run on any thread
+	 */
+	public interface Task {
+		void run() throws IOException;
+	}
+
+	/**
+	 * Read all complete records of a file in order
+	 *
+	 * @param file    the file containing the records
+	 * @param handler the handler receiving the records
+	 * @return the length of the complete records, it is shorter than the file if
+	 *         the last record was only partially written or a record is corrupt,
+	 *         e.g. its length does not fit into the rest of the file
+	 * @throws IOException
+	 */
+	public static long readRecords(File file, RecordHandler handler) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+			long validLength = 0;
+			boolean endOfFile = false;
+			while (!endOfFile) {
+				endOfFile = channel.read(buffer) < 0;
+				buffer.flip();
+
+				int needed = 0;
+				while (buffer.remaining() >= HEADER_LENGTH) {
+					int length = buffer.getInt(buffer.position() + 1);
+					if (length < 0 || length > Integer.MAX_VALUE - HEADER_LENGTH
+							|| length > size - (validLength + HEADER_LENGTH)) {
+						return validLength;
+					} else if (buffer.remaining() < HEADER_LENGTH + length) {
+						needed = HEADER_LENGTH + length;
+						break;
+					}
+
+					byte op = buffer.get();
+					buffer.getInt();
+					ByteBuffer payload = buffer.slice();
+					payload.limit(length);
+					try {
+						handler.accept(op, payload);
+					} catch (CorruptRecordException e) {
+						return validLength;
+					}
+					buffer.position(buffer.position() + length);
+					validLength += HEADER_LENGTH + length;
+				}
+
+				if (needed > buffer.capacity()) {
+					ByteBuffer larger = ByteBuffer.allocateDirect(needed);
+					larger.put(buffer);
+					buffer = larger;
+				} else {
+					buffer.compact();
+				}
+			}
+			return validLength;
+		}
+	}
+
+	/**
+	 * Run the tasks on as many threads as there are processors, a single task is
+	 * run on the calling thread.
+	 *
+	 * @param tasks the independent tasks
+	 * @throws IOException if any of the tasks failed
+	 */
+	public static void runParallel(List<Task> tasks) throws IOException {
+		if (tasks.isEmpty()) {
+			return;
+		} else if (tasks.size() == 1) {
+			tasks.get(0).run();
+			return;
+		}
+
+		int threads = Math.min(tasks.size(), Runtime.getRuntime().availableProcessors());
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		try {
+			ArrayList<Future<?>> results = new ArrayList<>();
+			for (Task task : tasks) {
+				results.add(workers.submit(() -> {
+					task.run();
+					return null;
+				}));
+			}
+			for (Future<?> result : results) {
+				result.get();
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading", e);
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+}
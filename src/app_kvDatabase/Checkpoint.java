@@ -0,0 +1,193 @@
+package app_kvDatabase;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * This class handles a checkpoint, a binary snapshot of all pairs of a
+ * database together with the sequence number of the first log segment that is
+ * not contained in the snapshot. A restart loads the checkpoint through a
+ * memory mapping and only replays the log segments written after it. The
+ * offset of every {@link #INDEX_INTERVAL}-th record is stored in the footer, so
+ * the ranges between them can be decoded on several threads.
+ *
+ * @author Uy Ha
+ *
+ */
+// File structure: magic ---4 bytes; logSequence ---8 bytes; records; index;
+// footer
+// Record structure: payloadLength ---4 bytes; payload
+// Index structure: offset ---8 bytes per entry
+// Footer structure: indexOffset ---8 bytes; indexEntries ---4 bytes; records
+// ---4 bytes; indexedMagic ---4 bytes
+// Checkpoints without index end with records ---4 bytes; magic ---4 bytes
+public class Checkpoint {
+	private static final int MAGIC = 0x4b56434b;
+	private static final int INDEXED_MAGIC = 0x4b564349;
+	private static final int HEADER_LENGTH = 12;
+	private static final int FOOTER_LENGTH = 8;
+	private static final int INDEXED_FOOTER_LENGTH = 20;
+	private static final int INDEX_INTERVAL = 1 << 16;
+	private static final long MAPPING_SIZE = 1 << 30;
+
+	/**
+	 * Handles a record read from the checkpoint
+	 */
+	public interface RecordHandler {
+		/**
+		 * This may be called from several threads at the same time.
+		 * 
+		 * @param payload a buffer positioned at the start of the payload and
+		 *                limited to its end, it is only valid during the call
+		 */
+		void accept(ByteBuffer payload) throws IOException;
+	}
+
+	/**
+	 * Write a checkpoint, it is written to a temporary file that is forced to
+	 * disk and renamed afterwards, so an existing checkpoint is only replaced by
+	 * a complete one.
+	 *
+	 * @param file         the checkpoint file
+	 * @param logSequence  the first log segment not contained in the checkpoint
+	 * @param payloads     the marshalled entities
+	 * @param beforeRename forces the files the entities refer to before the
+	 *                     checkpoint replaces the old one, may be null
+	 * @throws IOException
+	 */
+	public static void write(File file, long logSequence, Iterable<byte[]> payloads, GroupCommit.Sync beforeRename)
+			throws IOException {
+		File temporary = new File(file.getPath() + ".tmp");
+		try (FileOutputStream fstream = new FileOutputStream(temporary);
+				DataOutputStream ostream = new DataOutputStream(new BufferedOutputStream(fstream, 1 << 16))) {
+			ostream.writeInt(MAGIC);
+			ostream.writeLong(logSequence);
+
+			ArrayList<Long> index = new ArrayList<>();
+			long offset = HEADER_LENGTH;
+			int records = 0;
+			for (byte[] payload : payloads) {
+				if (records % INDEX_INTERVAL == 0) {
+					index.add(offset);
+				}
+				ostream.writeInt(payload.length);
+				ostream.write(payload);
+				offset += 4 + payload.length;
+				records++;
+			}
+
+			for (long entry : index) {
+				ostream.writeLong(entry);
+			}
+			ostream.writeLong(offset);
+			ostream.writeInt(index.size());
+			ostream.writeInt(records);
+			ostream.writeInt(INDEXED_MAGIC);
+			ostream.flush();
+			fstream.getFD().sync();
+		}
+
+		if (beforeRename != null) {
+			beforeRename.sync();
+		}
+		if (!temporary.renameTo(file)) {
+			throw new IOException(String.format("Cannot rename %s to %s", temporary, file));
+		}
+	}
+
+	/**
+	 * Map the checkpoint into memory and pass every record to the handler, the
+	 * ranges between the index entries are decoded in parallel.
+	 *
+	 * @param file    the checkpoint file
+	 * @param handler the thread-safe handler receiving the records
+	 * @return the first log segment not contained in the checkpoint
+	 * @throws IOException if the checkpoint is not complete
+	 */
+	public static long read(File file, RecordHandler handler) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER_LENGTH + FOOTER_LENGTH) {
+				throw new IOException(String.format("%s is not a checkpoint", file));
+			}
+
+			ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER_LENGTH);
+			ByteBuffer magic = channel.map(MapMode.READ_ONLY, size - 4, 4);
+			if (header.getInt() != MAGIC) {
+				throw new IOException(String.format("%s is not a checkpoint", file));
+			}
+			long logSequence = header.getLong();
+
+			ArrayList<BulkLoader.Task> tasks = new ArrayList<>();
+			int footerMagic = magic.getInt();
+			if (footerMagic == MAGIC) {
+				ByteBuffer footer = channel.map(MapMode.READ_ONLY, size - FOOTER_LENGTH, FOOTER_LENGTH);
+				int records = footer.getInt();
+				tasks.add(() -> readRange(channel, HEADER_LENGTH, size - FOOTER_LENGTH, records, handler));
+			} else if (footerMagic == INDEXED_MAGIC && size >= HEADER_LENGTH + INDEXED_FOOTER_LENGTH) {
+				ByteBuffer footer = channel.map(MapMode.READ_ONLY, size - INDEXED_FOOTER_LENGTH,
+						INDEXED_FOOTER_LENGTH);
+				long indexOffset = footer.getLong();
+				int entries = footer.getInt();
+				int records = footer.getInt();
+				ByteBuffer index = channel.map(MapMode.READ_ONLY, indexOffset, 8L * entries);
+				for (int i = 0; i < entries; i++) {
+					long start = index.getLong(8 * i);
+					long end = i + 1 < entries ? index.getLong(8 * (i + 1)) : indexOffset;
+					int count = i + 1 < entries ? INDEX_INTERVAL : records - i * INDEX_INTERVAL;
+					tasks.add(() -> readRange(channel, start, end, count, handler));
+				}
+			} else {
+				throw new IOException(String.format("%s is not a complete checkpoint", file));
+			}
+
+			BulkLoader.runParallel(tasks);
+			return logSequence;
+		}
+	}
+
+	/**
+	 * Map a range of records and pass them to the handler. Records never cross
+	 * the end of a mapping, the mapping is moved to the start of a record that
+	 * does not fit anymore.
+	 */
+	private static void readRange(FileChannel channel, long start, long end, int records, RecordHandler handler)
+			throws IOException {
+		long mappingStart = start;
+		MappedByteBuffer mapping = channel.map(MapMode.READ_ONLY, start, Math.min(end - start, MAPPING_SIZE));
+		for (int i = 0; i < records; i++) {
+			if (mapping.remaining() < 4 || mapping.remaining() < 4 + mapping.getInt(mapping.position())) {
+				mappingStart += mapping.position();
+				long length = Math.min(end - mappingStart,
+						Math.max(MAPPING_SIZE, 4 + recordLength(channel, mappingStart)));
+				mapping = channel.map(MapMode.READ_ONLY, mappingStart, length);
+			}
+
+			int length = mapping.getInt();
+			ByteBuffer payload = mapping.slice();
+			payload.limit(length);
+			handler.accept(payload);
+			mapping.position(mapping.position() + length);
+		}
+	}
+
+	private static int recordLength(FileChannel channel, long position) throws IOException {
+		ByteBuffer length = ByteBuffer.allocate(4);
+		while (length.hasRemaining()) {
+			if (channel.read(length, position + length.position()) < 0) {
+				throw new IOException("Unexpected end of checkpoint");
+			}
+		}
+		length.flip();
+		return length.getInt();
+	}
+}
@@ -0,0 +1,66 @@
+package app_kvDatabase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import common.hash.Hash;
+
+/**
+ * This class is the snapshot of an engine that cannot keep a point-in-time
+ * view without copying, it holds a copy of all pairs.
+ * 
+ * @author Uy Ha
+ *
+ */
+class CopiedSnapshot implements StorageEngine.Snapshot<String, KVData> {
+	private HashMap<String, KVData> pairs;
+
+	/**
+	 * @param pairs the copy of the pairs, it is not copied again
+	 */
+	CopiedSnapshot(HashMap<String, KVData> pairs) {
+		this.pairs = pairs;
+	}
+
+	@Override
+	public KVData get(String key) {
+		return pairs.get(key);
+	}
+
+	@Override
+	public HashMap<String, KVData> getData() {
+		return new HashMap<>(pairs);
+	}
+
+	@Override
+	public HashMap<String, KVData> dataInRange(byte[] start, byte[] end) {
+		HashMap<String, KVData> result = new HashMap<>();
+		for (Map.Entry<String, KVData> pair : pairs.entrySet()) {
+			if (Hash.in(token(pair), start, end)) {
+				result.put(pair.getKey(), pair.getValue());
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public HashMap<String, KVData> dataOutOfRange(byte[] start, byte[] end) {
+		HashMap<String, KVData> result = new HashMap<>();
+		for (Map.Entry<String, KVData> pair : pairs.entrySet()) {
+			if (!Hash.in(token(pair), start, end)) {
+				result.put(pair.getKey(), pair.getValue());
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public void close() {
+		pairs = new HashMap<>();
+	}
+
+	private static byte[] token(Map.Entry<String, KVData> pair) {
+		byte[] token = pair.getValue().token;
+		return token != null ? token : Hash.hash(pair.getKey());
+	}
+}
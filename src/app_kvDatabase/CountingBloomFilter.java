@@ -0,0 +1,135 @@
+package app_kvDatabase;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class tells whether a key may be stored, so lookups of keys that do not
+ * exist are answered without reading any table. Every key increments
+ * {@link #HASHES} counters of 4 bits, a removal decrements them again. A
+ * counter that reached its maximum is never decremented, so the filter never
+ * forgets a stored key. It is sized for a number of keys, the caller rebuilds
+ * it once {@link #size()} exceeds {@link #capacity()} to keep the rate of false
+ * positives low.
+ *
+ * @author Uy Ha
+ *
+ */
+public class CountingBloomFilter {
+	private static final int COUNTERS_PER_KEY = 10;
+	private static final int HASHES = 7;
+	private static final int MIN_CAPACITY = 1 << 10;
+	private static final long MAX_COUNT = 0xf;
+
+	private final AtomicLongArray words;
+	private final long counters;
+	private final int capacity;
+	private final AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * @param capacity the number of keys the filter is sized for
+	 */
+	public CountingBloomFilter(int capacity) {
+		this.capacity = Math.max(MIN_CAPACITY, capacity);
+		int length = (int) Math.min(Integer.MAX_VALUE - 8, ((long) this.capacity * COUNTERS_PER_KEY + 15) / 16);
+		words = new AtomicLongArray(length);
+		counters = 16L * length;
+	}
+
+	/**
+	 * @param key the key to be added, it must not be contained already
+	 */
+	public void add(String key) {
+		long hash = hash(key);
+		for (int i = 0; i < HASHES; i++) {
+			update(counter(hash, i), 1);
+		}
+		size.incrementAndGet();
+	}
+
+	/**
+	 * @param key the key to be removed, it must have been added before
+	 */
+	public void remove(String key) {
+		long hash = hash(key);
+		for (int i = 0; i < HASHES; i++) {
+			update(counter(hash, i), -1);
+		}
+		size.decrementAndGet();
+	}
+
+	/**
+	 * @param key the key to be looked up
+	 * @return false if the key is definitely not contained
+	 */
+	public boolean mightContain(String key) {
+		long hash = hash(key);
+		for (int i = 0; i < HASHES; i++) {
+			long counter = counter(hash, i);
+			if (count(words.get((int) (counter >>> 4)), counter) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of contained keys
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * @return the number of keys the filter is sized for
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	private void update(long counter, int delta) {
+		int word = (int) (counter >>> 4);
+		long shift = 4 * (counter & 0xf);
+		while (true) {
+			long current = words.get(word);
+			long count = count(current, counter);
+			if (count == MAX_COUNT || (count == 0 && delta < 0)) {
+				return;
+			}
+			long updated = current + ((long) delta << shift);
+			if (words.compareAndSet(word, current, updated)) {
+				return;
+			}
+		}
+	}
+
+	private static long count(long word, long counter) {
+		return (word >>> (4 * (counter & 0xf))) & MAX_COUNT;
+	}
+
+	/**
+	 * Pick the i-th counter of a key by double hashing
+	 */
+	private long counter(long hash, int i) {
+		int first = (int) hash;
+		int second = (int) (hash >>> 32) | 1;
+		return Math.floorMod(first + (long) i * second, counters);
+	}
+
+	/**
+	 * A 64 bit FNV-1a hash of the characters, mixed by the finalizer of MurmurHash3
+	 */
+	private static long hash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -0,0 +1,93 @@
+package app_kvDatabase;
+
+/**
+ * This class describes when the writes of a storage engine are forced to disk
+ * before the write is acknowledged. It is written as {@code ASYNC},
+ * {@code SYNC} or {@code GROUP[:<milliseconds>[:<operations>]]}.
+ * 
+ * @author Uy Ha
+ *
+ */
+public class Durability {
+	public enum Mode {
+		/**
+		 * The write is acknowledged once it was handed to the operating system,
+		 * a crash of the machine can lose it
+		 */
+		ASYNC,
+		/**
+		 * Concurrent writes are collected and forced to disk together, either
+		 * after a time interval or once enough writes are pending
+		 */
+		GROUP,
+		/**
+		 * Every write is forced to disk before it is acknowledged
+		 */
+		SYNC
+	}
+
+	public static final Durability ASYNC = new Durability(Mode.ASYNC, 0, 0);
+	public static final Durability SYNC = new Durability(Mode.SYNC, 0, 0);
+
+	private static final long DEFAULT_INTERVAL = 10;
+	private static final int DEFAULT_OPERATIONS = 128;
+
+	public final Mode mode;
+	public final long intervalMillis;
+	public final int maxOperations;
+
+	public Durability(Mode mode, long intervalMillis, int maxOperations) {
+		this.mode = mode;
+		this.intervalMillis = intervalMillis;
+		this.maxOperations = maxOperations;
+	}
+
+	/**
+	 * Create a group commit that forces the pending writes after the given
+	 * interval or once the given number of writes is pending
+	 * 
+	 * @param intervalMillis the maximal time a write waits for the force
+	 * @param maxOperations  the number of pending writes that forces immediately
+	 * @return the durability
+	 */
+	public static Durability group(long intervalMillis, int maxOperations) {
+		if (intervalMillis <= 0 || maxOperations <= 0) {
+			throw new IllegalArgumentException(String.format(
+					"Group commit interval and operations have to be positive, received %d and %d", intervalMillis,
+					maxOperations));
+		}
+		return new Durability(Mode.GROUP, intervalMillis, maxOperations);
+	}
+
+	/**
+	 * Parse the textual form of a durability
+	 * 
+	 * @param value {@code ASYNC}, {@code SYNC} or
+	 *              {@code GROUP[:<milliseconds>[:<operations>]]}
+	 * @return the durability
+	 * @throws IllegalArgumentException if the value is malformed
+	 */
+	public static Durability parse(String value) {
+		String[] parts = value.toUpperCase().split(":");
+		try {
+			if (parts.length == 1 && parts[0].equals(Mode.ASYNC.name())) {
+				return ASYNC;
+			} else if (parts.length == 1 && parts[0].equals(Mode.SYNC.name())) {
+				return SYNC;
+			} else if (parts.length <= 3 && parts[0].equals(Mode.GROUP.name())) {
+				long interval = parts.length > 1 ? Long.parseLong(parts[1]) : DEFAULT_INTERVAL;
+				int operations = parts.length > 2 ? Integer.parseInt(parts[2]) : DEFAULT_OPERATIONS;
+				return group(interval, operations);
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new IllegalArgumentException(String.format(
+				"Durability has to be either ASYNC, SYNC or GROUP[:<milliseconds>[:<operations>]], received %s", value));
+	}
+
+	@Override
+	public String toString() {
+		return mode == Mode.GROUP ? String.format("%s:%d:%d", mode, intervalMillis, maxOperations) : mode.name();
+	}
+}
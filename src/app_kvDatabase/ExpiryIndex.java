@@ -0,0 +1,108 @@
+package app_kvDatabase;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * This class keeps the keys with a deletion time ordered by that time, so the
+ * expired keys are found without looking at the other pairs. Finding them
+ * costs as much as the number of expired keys. The index is thread-safe, the
+ * caller has to order the updates of the same key.
+ *
+ * @author Uy Ha
+ *
+ */
+public class ExpiryIndex {
+
+	/**
+	 * A key together with its deletion time
+	 */
+	private static class Deadline implements Comparable<Deadline> {
+		private final LocalDateTime delTime;
+		private final String key;
+
+		private Deadline(LocalDateTime delTime, String key) {
+			this.delTime = delTime;
+			this.key = key;
+		}
+
+		@Override
+		public int compareTo(Deadline other) {
+			int result = delTime.compareTo(other.delTime);
+			return result != 0 ? result : key.compareTo(other.key);
+		}
+	}
+
+	private final ConcurrentSkipListSet<Deadline> deadlines = new ConcurrentSkipListSet<>();
+	private final ConcurrentHashMap<String, LocalDateTime> delTimes = new ConcurrentHashMap<>();
+
+	/**
+	 * Set the deletion time of a key, replacing its previous one
+	 *
+	 * @param key     the key of the pair
+	 * @param delTime the deletion time of the pair, null if it never expires
+	 */
+	public void schedule(String key, LocalDateTime delTime) {
+		LocalDateTime previous = delTime == null ? delTimes.remove(key) : delTimes.put(key, delTime);
+		if (previous != null && !previous.equals(delTime)) {
+			deadlines.remove(new Deadline(previous, key));
+		}
+		if (delTime != null) {
+			deadlines.add(new Deadline(delTime, key));
+		}
+	}
+
+	/**
+	 * @param key the key of a pair that was removed
+	 */
+	public void cancel(String key) {
+		schedule(key, null);
+	}
+
+	/**
+	 * Remove all keys
+	 */
+	public void clear() {
+		deadlines.clear();
+		delTimes.clear();
+	}
+
+	/**
+	 * @return the number of keys with a deletion time
+	 */
+	public int size() {
+		return delTimes.size();
+	}
+
+	/**
+	 * Collect the keys whose deletion time is before the given time, they stay
+	 * in the index until they are removed.
+	 *
+	 * @param now the current time
+	 * @return the expired keys, the earliest first
+	 */
+	public List<String> expired(LocalDateTime now) {
+		return expired(now, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Collect the keys that expired first
+	 *
+	 * @param now   the current time
+	 * @param limit the maximum number of keys to be collected
+	 * @return the expired keys, the earliest first
+	 */
+	public List<String> expired(LocalDateTime now, int limit) {
+		ArrayList<String> keys = new ArrayList<>();
+		for (Deadline deadline : deadlines) {
+			if (keys.size() >= limit || !deadline.delTime.isBefore(now)) {
+				break;
+			}
+			keys.add(deadline.key);
+		}
+		return keys;
+	}
+}
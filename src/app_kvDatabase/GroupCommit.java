@@ -0,0 +1,180 @@
+package app_kvDatabase;
+
+import java.io.IOException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * This class decides when written records are forced to disk according to a
+ * {@link Durability}. Every write registers itself and receives a ticket, the
+ * writer then waits for its ticket outside of any lock so that concurrent
+ * writers are covered by the same force. In the group mode a background thread
+ * forces the pending writes once the interval elapsed or enough writes are
+ * pending, in the sync mode the waiting writer forces them itself.
+ * 
+ * @author Uy Ha
+ *
+ */
+public class GroupCommit {
+	private static final Logger logger = LogManager.getLogger("kvServer");
+
+	/**
+	 * Forces everything written so far to disk
+	 */
+	public interface Sync {
+		void sync() throws IOException;
+	}
+
+	private final Durability durability;
+	private final Sync sync;
+	private final Thread committer;
+
+	private long written;
+	private long durable;
+	private IOException failure;
+	private boolean closed;
+
+	/**
+	 * @param durability when the writes are forced to disk
+	 * @param sync       forces the writes of the owner to disk, it has to be
+	 *                   thread-safe with respect to the writes
+	 * @param name       the name of the background thread
+	 */
+	public GroupCommit(Durability durability, Sync sync, String name) {
+		this.durability = durability;
+		this.sync = sync;
+		if (durability.mode == Durability.Mode.GROUP) {
+			committer = new Thread(this::run, name);
+			committer.setDaemon(true);
+			committer.start();
+		} else {
+			committer = null;
+		}
+	}
+
+	/**
+	 * @return the durability of the writes
+	 */
+	public Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Register a write, this has to be called after the write was handed to the
+	 * owner and in the same order as the writes.
+	 * 
+	 * @return the ticket to wait for
+	 */
+	public synchronized long register() {
+		written++;
+		long pending = written - durable;
+		if (pending == 1 || pending >= durability.maxOperations) {
+			notifyAll();
+		}
+		return written;
+	}
+
+	/**
+	 * Wait until the write with the given ticket is on disk, returns
+	 * immediately in the async mode.
+	 * 
+	 * @param ticket the ticket returned by {@link #register()}
+	 * @throws IOException if the force failed
+	 */
+	public void await(long ticket) throws IOException {
+		switch (durability.mode) {
+		case SYNC:
+			long target;
+			synchronized (this) {
+				if (durable >= ticket) {
+					return;
+				}
+				target = written;
+			}
+			sync.sync();
+			synchronized (this) {
+				durable = Math.max(durable, target);
+			}
+			return;
+		case GROUP:
+			synchronized (this) {
+				while (durable < ticket && failure == null && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while waiting for the group commit", e);
+					}
+				}
+				if (durable < ticket && failure != null) {
+					throw failure;
+				}
+			}
+			return;
+		default:
+			return;
+		}
+	}
+
+	/**
+	 * Stop the background thread, the owner forces the remaining writes itself
+	 * when it is closed.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		if (committer != null) {
+			try {
+				committer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void run() {
+		while (true) {
+			long target;
+			synchronized (this) {
+				try {
+					while (!closed && written == durable) {
+						wait();
+					}
+					long deadline = System.currentTimeMillis() + durability.intervalMillis;
+					long remaining = durability.intervalMillis;
+					while (!closed && written - durable < durability.maxOperations && remaining > 0) {
+						wait(remaining);
+						remaining = deadline - System.currentTimeMillis();
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (closed && (written == durable || failure != null)) {
+					return;
+				}
+				target = written;
+			}
+
+			IOException error = null;
+			try {
+				sync.sync();
+			} catch (IOException e) {
+				logger.error("Failed to force the pending writes to disk", e);
+				error = e;
+			}
+
+			synchronized (this) {
+				if (error == null) {
+					durable = Math.max(durable, target);
+					failure = null;
+				} else {
+					failure = error;
+				}
+				notifyAll();
+			}
+		}
+	}
+}
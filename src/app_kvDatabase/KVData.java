@@ -2,14 +2,73 @@ package app_kvDatabase;
 
 import java.time.LocalDateTime;
 
+import common.util.Bytes;
+
 public class KVData {
-	public final String value;
-	public final String owner;
+	/**
+	 * The UTF-8 bytes of the value, it is written and sent without encoding it
+	 * again
+	 */
+	public final Bytes value;
+	/**
+	 * The id of the owner in the {@link OwnerDictionary} of the node
+	 */
+	public final int ownerId;
 	public final LocalDateTime delTime;
+	/**
+	 * The hash of the key, i.e. the position of the pair on the ring, null if it
+	 * was not calculated yet
+	 */
+	public final byte[] token;
+	/**
+	 * The value compressed by {@link ValueCompression}, the value itself is null
+	 * if this is set
+	 */
+	public final byte[] compressed;
 
 	public KVData(String value, String owner, LocalDateTime delTime) {
+		this(Bytes.of(value), owner, delTime);
+	}
+
+	public KVData(Bytes value, String owner, LocalDateTime delTime) {
+		this(value, OwnerDictionary.node().id(owner), delTime);
+	}
+
+	public KVData(Bytes value, int ownerId, LocalDateTime delTime) {
+		this(value, ownerId, delTime, null);
+	}
+
+	/**
+	 * @param token the hash of the key
+	 */
+	public KVData(Bytes value, int ownerId, LocalDateTime delTime, byte[] token) {
+		this(value, ownerId, delTime, token, null);
+	}
+
+	/**
+	 * @param token      the hash of the key
+	 * @param compressed the compressed value, the value has to be null if it is
+	 *                   given
+	 */
+	public KVData(Bytes value, int ownerId, LocalDateTime delTime, byte[] token, byte[] compressed) {
 		this.value = value;
-		this.owner = owner;
+		this.ownerId = ownerId;
 		this.delTime = delTime;
+		this.token = token;
+		this.compressed = compressed;
+	}
+
+	/**
+	 * @return the username of the owner, null if there is none
+	 */
+	public String owner() {
+		return OwnerDictionary.node().owner(ownerId);
+	}
+
+	/**
+	 * @return the decoded value, null if it is not kept in this data
+	 */
+	public String valueString() {
+		return value == null ? null : value.toString();
 	}
 }
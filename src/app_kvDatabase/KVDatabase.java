@@ -1,15 +1,151 @@
 package app_kvDatabase;
 
 import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
-public class KVDatabase extends BaseDatabase<String, KVData, KVEntity> {
+import common.hash.Hash;
+import common.util.Bytes;
+
+/**
+ * This class stores the pairs of a server in memory and persists them as an
+ * append-only log, it is the default {@link StorageEngine}. Large values are
+ * compressed in memory and on disk and only decompressed when they are read.
+ * Optionally, values above a size threshold are kept in a {@link ValueLog}
+ * and only a reference to them is kept in memory and written to the log.
+ * Optionally, the other values are kept off the heap in a {@link SlabStore}.
+ * The keys with a deletion time are kept in an {@link ExpiryIndex}. Without a
+ * file it is a volatile database that only keeps the map.
+ * 
+ * @author Uy Ha
+ *
+ */
+public class KVDatabase extends BaseDatabase<String, KVData, KVEntity> implements StorageEngine {
+
+	/**
+	 * Values longer than this number of characters are compressed by default
+	 */
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+	/**
+	 * Values whose stored form is longer than this number of bytes are put into
+	 * the value log when it is enabled
+	 */
+	public static final int DEFAULT_VALUE_LOG_THRESHOLD = 4096;
+
+	private final int compressionThreshold;
+	private final int valueLogThreshold;
+	private final ValueLog valueLog;
+	private final SlabStore slabs;
+	private final ExpiryIndex expiry = new ExpiryIndex();
+	/**
+	 * The released slab values that are freed once no snapshot is open, only
+	 * accessed by the persistence service
+	 */
+	private final ArrayList<SlabStore.Handle> unreleased = new ArrayList<>();
+
+	/**
+	 * Create a volatile database for the {@link StorageEngines#MEMORY} engine,
+	 * its pairs are lost when the server stops. Values are neither compressed
+	 * nor moved off the heap, so a write only updates the map and its indexes.
+	 */
+	public KVDatabase() {
+		super();
+		compressionThreshold = Integer.MAX_VALUE;
+		valueLogThreshold = Integer.MAX_VALUE;
+		valueLog = null;
+		slabs = null;
+	}
 
 	public KVDatabase(String dbFile) throws IOException {
-		super(dbFile);
+		this(dbFile, Durability.ASYNC);
+	}
+
+	public KVDatabase(String dbFile, Durability durability) throws IOException {
+		this(dbFile, durability, DEFAULT_COMPRESSION_THRESHOLD);
+	}
+
+	/**
+	 * @param dbFile
+	 * @param durability           when the log records are forced to disk
+	 * @param compressionThreshold values longer than this number of bytes
+	 *                             are compressed, {@link Integer#MAX_VALUE}
+	 *                             disables the compression
+	 */
+	public KVDatabase(String dbFile, Durability durability, int compressionThreshold) throws IOException {
+		this(dbFile, durability, compressionThreshold, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param dbFile
+	 * @param durability           when the log records are forced to disk
+	 * @param compressionThreshold values longer than this number of bytes
+	 *                             are compressed, {@link Integer#MAX_VALUE}
+	 *                             disables the compression
+	 * @param valueLogThreshold    values whose stored form is longer than this
+	 *                             number of bytes are put into the value log,
+	 *                             {@link Integer#MAX_VALUE} disables the value
+	 *                             log
+	 */
+	public KVDatabase(String dbFile, Durability durability, int compressionThreshold, int valueLogThreshold)
+			throws IOException {
+		this(dbFile, durability, compressionThreshold, valueLogThreshold, false);
+	}
+
+	/**
+	 * @param dbFile
+	 * @param durability           when the log records are forced to disk
+	 * @param compressionThreshold values longer than this number of bytes
+	 *                             are compressed, {@link Integer#MAX_VALUE}
+	 *                             disables the compression
+	 * @param valueLogThreshold    values whose stored form is longer than this
+	 *                             number of bytes are put into the value log,
+	 *                             {@link Integer#MAX_VALUE} disables the value
+	 *                             log
+	 * @param offHeap              whether the values that are not put into the
+	 *                             value log are kept in a {@link SlabStore}
+	 */
+	public KVDatabase(String dbFile, Durability durability, int compressionThreshold, int valueLogThreshold,
+			boolean offHeap) throws IOException {
+		super(dbFile, durability);
+		this.compressionThreshold = compressionThreshold;
+		this.valueLogThreshold = valueLogThreshold;
+		db.forEach((key, data) -> expiry.schedule(key, data.delTime));
+
+		boolean referenced = false;
+		for (KVData data : db.values()) {
+			if (data instanceof ValueLog.Reference) {
+				referenced = true;
+				break;
+			}
+		}
+		if (referenced || valueLogThreshold != Integer.MAX_VALUE) {
+			valueLog = new ValueLog(dbFile);
+			// every force of the log forces the values its records refer to first
+			log.setBeforeSync(valueLog::force);
+			for (KVData data : db.values()) {
+				if (data instanceof ValueLog.Reference) {
+					valueLog.retain((ValueLog.Reference) data);
+				}
+			}
+			for (int segment : valueLog.collectable()) {
+				service.submit(collection(segment));
+			}
+		} else {
+			valueLog = null;
+		}
+
+		if (offHeap) {
+			slabs = new SlabStore();
+			service.submit(moveOffHeap());
+		} else {
+			slabs = null;
+		}
 	}
 
 	@Override
@@ -17,27 +153,352 @@ public class KVDatabase extends BaseDatabase<String, KVData, KVEntity> {
 		return new KVEntity();
 	}
 
+	/**
+	 * A value kept in a slab is copied into the entity, so the entity can be
+	 * marshalled after the slot was freed.
+	 */
 	@Override
 	protected KVEntity newEntity(String key, KVData value) {
+		if (value instanceof SlabStore.Handle) {
+			SlabStore.Handle handle = (SlabStore.Handle) value;
+			byte[] bytes = slabs.read(handle);
+			if (bytes == null) {
+				throw new IllegalStateException(String.format("The slab value of %s was freed while stored", key));
+			}
+			value = handle.compressedValue ? new KVData(null, value.ownerId, value.delTime, value.token, bytes)
+					: new KVData(Bytes.wrap(bytes), value.ownerId, value.delTime, value.token);
+		}
 		return new KVEntity(key, value);
 	}
 
+	@Override
+	protected byte[] token(String key, KVData value) {
+		return value.token != null ? value.token : super.token(key, value);
+	}
+
+	/**
+	 * The value of a pair is read again if it was moved or replaced while
+	 * reading.
+	 */
+	@Override
+	public KVData get(String key) {
+		while (true) {
+			try {
+				return load(db.get(key));
+			} catch (ClosedChannelException e) {
+				// the segment of the value was collected, the pair refers to the moved value
+				continue;
+			} catch (IOException e) {
+				logger.error(e);
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * The ring token is calculated before the pair is stored, so it is kept in
+	 * memory and written to the log with the pair. Values longer than the
+	 * compression threshold are kept and written compressed if that makes them
+	 * smaller. Stored values longer than the value log threshold are appended
+	 * to the value log, the others are copied into a slab if enabled.
+	 */
+	@Override
+	protected KVData encode(String key, KVData value) {
+		if (value instanceof ValueLog.Reference || value instanceof SlabStore.Handle) {
+			return value;
+		}
+
+		byte[] token = value.token != null ? value.token : Hash.hash(key);
+		byte[] compressed = value.compressed;
+		if (compressed == null && value.value.length() > compressionThreshold) {
+			compressed = ValueCompression.compress(value.value);
+		}
+
+		if (valueLog != null && (compressed != null ? compressed.length : value.value.length()) > valueLogThreshold) {
+			byte[] bytes = compressed != null ? compressed : value.value.array();
+			try {
+				return valueLog.append(bytes, value.ownerId, value.delTime, token, compressed != null);
+			} catch (IOException e) {
+				logger.error("Failed to append to the value log, the value is kept in memory", e);
+			}
+		}
+
+		KVData stored;
+		if (compressed != null) {
+			stored = new KVData(null, value.ownerId, value.delTime, token, compressed);
+		} else {
+			stored = token == value.token ? value : new KVData(value.value, value.ownerId, value.delTime, token);
+		}
+		SlabStore.Handle handle = slabs == null ? null : toSlab(stored);
+		return handle != null ? handle : stored;
+	}
+
+	/**
+	 * Copy a value kept on the heap into a slab
+	 * 
+	 * @param stored the stored data with its value or compressed value
+	 * @return the handle of the copy, null if the value is too large for a slab
+	 */
+	private SlabStore.Handle toSlab(KVData stored) {
+		byte[] bytes = stored.compressed != null ? stored.compressed : stored.value.array();
+		if (bytes.length > SlabStore.MAX_VALUE_LENGTH) {
+			return null;
+		}
+		return slabs.allocate(bytes, stored.ownerId, stored.delTime, stored.token, stored.compressed != null);
+	}
+
+	@Override
+	protected KVData decode(KVData stored) {
+		try {
+			return load(stored);
+		} catch (IOException e) {
+			logger.error(e);
+			return null;
+		}
+	}
+
+	@Override
+	protected void stored(String key, KVData stored) {
+		expiry.schedule(key, stored.delTime);
+	}
+
+	@Override
+	protected void discarded(String key, KVData stored) {
+		expiry.cancel(key);
+		if (stored instanceof ValueLog.Reference && valueLog.release((ValueLog.Reference) stored)) {
+			service.submit(collection(((ValueLog.Reference) stored).segment));
+		}
+	}
+
+	/**
+	 * A slab value is freed on the persistence service, after the appends that
+	 * copy it, and only once no snapshot or checkpoint may read it anymore.
+	 */
+	@Override
+	protected void released(KVData stored) {
+		if (stored instanceof SlabStore.Handle) {
+			service.submit(() -> {
+				unreleased.add((SlabStore.Handle) stored);
+				freeReleased();
+			});
+		}
+	}
+
+	/**
+	 * The released slab values are freed before the checkpoint reads the slabs,
+	 * and the use of the slabs is logged.
+	 */
+	@Override
+	protected Future<?> requestCheckpoint() throws IOException {
+		if (slabs != null) {
+			freeReleased();
+			long slabBytes = Math.max(1, slabs.slabBytes());
+			logger.info(String.format("Slabs of %s: %d MB, %.1f%% fragmented (%.1f%% free slots, %.1f%% slot padding)",
+					storageFile.getName(), slabs.slabBytes() >> 20, 100 * slabs.fragmentation(),
+					100.0 * (slabs.slabBytes() - slabs.slotBytes()) / slabBytes,
+					100.0 * (slabs.slotBytes() - slabs.valueBytes()) / slabBytes));
+		}
+		return super.requestCheckpoint();
+	}
+
+	/**
+	 * The value log segments collected before the checkpoint are deleted after
+	 * it, unless a pair still refers to them, those are collected again on the
+	 * persistence service. While a snapshot is open they are kept for a later
+	 * checkpoint, the snapshot may still read old values from them.
+	 */
+	@Override
+	protected void checkpoint(long logSequence) throws IOException {
+		if (valueLog == null) {
+			super.checkpoint(logSequence);
+			return;
+		}
+
+		List<Integer> collected = valueLog.takeCollected();
+		try {
+			super.checkpoint(logSequence);
+		} catch (IOException e) {
+			collected.forEach(valueLog::collected);
+			throw e;
+		}
+
+		HashSet<Integer> referenced = new HashSet<>();
+		for (KVData data : db.values()) {
+			if (data instanceof ValueLog.Reference && collected.contains(((ValueLog.Reference) data).segment)) {
+				referenced.add(((ValueLog.Reference) data).segment);
+			}
+		}
+		ArrayList<Integer> obsolete = new ArrayList<>();
+		for (int segment : collected) {
+			if (snapshotsOpen()) {
+				valueLog.collected(segment);
+			} else if (referenced.contains(segment)) {
+				try {
+					service.submit(() -> collectGarbage(segment));
+				} catch (RejectedExecutionException e) {
+					// the database is closed, the segment is collectable again after the restart
+				}
+			} else {
+				obsolete.add(segment);
+			}
+		}
+		valueLog.delete(obsolete);
+	}
+
+	@Override
+	public void close() throws IOException {
+		super.close();
+		if (valueLog != null) {
+			valueLog.close();
+		}
+	}
+
 	/**
-	 * This method remove expired data from db
+	 * Free the released slab values unless a snapshot is open or a checkpoint is
+	 * running, only runs on the persistence service
+	 */
+	private void freeReleased() {
+		if (!snapshotsOpen() && !checkpointRunning()) {
+			unreleased.forEach(slabs::free);
+			unreleased.clear();
+		}
+	}
+
+	/**
+	 * Copy the values loaded on the heap into slabs. A pair that is written in
+	 * the meantime keeps its new value, it was copied into a slab by the write.
+	 * 
+	 * @return a task to be submitted to the persistence service
+	 */
+	private Runnable moveOffHeap() {
+		return () -> {
+			int moved = 0;
+			for (Map.Entry<String, KVData> entry : db.entrySet()) {
+				KVData data = entry.getValue();
+				if (data instanceof ValueLog.Reference || data instanceof SlabStore.Handle) {
+					continue;
+				}
+				SlabStore.Handle handle = toSlab(data);
+				if (handle == null) {
+					continue;
+				}
+				if (db.replace(entry.getKey(), data, handle)) {
+					moved++;
+				} else {
+					slabs.free(handle);
+				}
+			}
+			logger.info(String.format("Moved %d values of %s off the heap", moved, storageFile.getName()));
+		};
+	}
+
+	/**
+	 * Collect a value log segment and write a checkpoint, which deletes it. The
+	 * checkpoint only contains references for the large values, so it is cheap
+	 * compared to the collected segment.
+	 * 
+	 * @param segment the id of the segment
+	 * @return a task to be submitted to the persistence service
+	 */
+	private Runnable collection(int segment) {
+		return () -> {
+			collectGarbage(segment);
+			try {
+				requestCheckpoint();
+			} catch (IOException e) {
+				logger.warn(e);
+			}
+		};
+	}
+
+	/**
+	 * Move the live values of a value log segment to the active segment, the
+	 * segment is deleted after the next checkpoint. This runs on the persistence
+	 * service, the moved values are already in the map when the checkpoint takes
+	 * its snapshot.
+	 * 
+	 * @param segment the id of the segment
+	 */
+	private void collectGarbage(int segment) {
+		try {
+			int moved = 0;
+			for (Map.Entry<String, KVData> entry : db.entrySet()) {
+				if (entry.getValue() instanceof ValueLog.Reference
+						&& ((ValueLog.Reference) entry.getValue()).segment == segment) {
+					ValueLog.Reference reference = (ValueLog.Reference) entry.getValue();
+					ValueLog.Reference relocated = valueLog.append(valueLog.read(reference), reference.ownerId,
+							reference.delTime, reference.token, reference.compressedValue);
+					if (replace(entry.getKey(), reference, relocated)) {
+						moved++;
+					} else {
+						valueLog.release(relocated);
+					}
+				}
+			}
+			valueLog.collected(segment);
+			logger.info(String.format("Moved %d values out of value log segment %d of %s", moved, segment,
+					storageFile.getName()));
+		} catch (IOException e) {
+			logger.warn(e);
+		}
+	}
+
+	/**
+	 * Restore the value of a stored pair
+	 * 
+	 * @param stored the stored data, may be null
+	 * @return the data with its value
+	 * @throws ClosedChannelException if the value was moved or replaced while
+	 *                                reading
+	 * @throws IOException            if the value cannot be read from the value
+	 *                                log
+	 */
+	private KVData load(KVData stored) throws IOException {
+		if (stored instanceof SlabStore.Handle) {
+			SlabStore.Handle handle = (SlabStore.Handle) stored;
+			byte[] bytes = slabs.read(handle);
+			if (bytes == null) {
+				// the pair was written in the meantime, it refers to its new value
+				throw new ClosedChannelException();
+			}
+			Bytes value = handle.compressedValue ? ValueCompression.decompress(bytes) : Bytes.wrap(bytes);
+			return new KVData(value, stored.ownerId, stored.delTime, stored.token);
+		} else if (stored instanceof ValueLog.Reference) {
+			ValueLog.Reference reference = (ValueLog.Reference) stored;
+			byte[] bytes = valueLog.read(reference);
+			Bytes value = reference.compressedValue ? ValueCompression.decompress(bytes) : Bytes.wrap(bytes);
+			return new KVData(value, stored.ownerId, stored.delTime, stored.token);
+		} else if (stored == null || stored.compressed == null) {
+			return stored;
+		}
+		return new KVData(ValueCompression.decompress(stored.compressed), stored.ownerId, stored.delTime,
+				stored.token);
+	}
+
+	@Override
+	public boolean removeIfExpired(String key, LocalDateTime now) {
+		KVData stored = db.get(key);
+		return stored != null && stored.delTime != null && stored.delTime.isBefore(now) && remove(key, stored);
+	}
+
+	/**
+	 * This method remove expired data from db, only the expired keys of the
+	 * {@link ExpiryIndex} are looked at. A pair that is updated in the meantime
+	 * is kept.
 	 * 
 	 * @return An ArrayList<String> of expired keys.
 	 */
-	public synchronized List<String> removeExpiredData() {
+	@Override
+	public List<String> removeExpiredData(int limit) {
 		ArrayList<String> expiredKeys = new ArrayList<String>();
+		LocalDateTime now = LocalDateTime.now();
 
-		for (Map.Entry<String, KVData> entry : db.entrySet()) {
-			if (entry.getValue().delTime != null && entry.getValue().delTime.isBefore(LocalDateTime.now())) {
-				expiredKeys.add(entry.getKey());
+		for (String key : expiry.expired(now, limit)) {
+			if (removeIfExpired(key, now)) {
+				expiredKeys.add(key);
 			}
 		}
 
-		expiredKeys.stream().forEach(this::remove);
-
 		return expiredKeys;
 	}
 
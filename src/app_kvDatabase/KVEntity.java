@@ -1,21 +1,53 @@
 package app_kvDatabase;
 
 import static common.util.EncodeUtils.decodeSequence;
-import static common.util.EncodeUtils.encodeSequence;
+import static common.util.EncodeUtils.getVarInt;
+import static common.util.EncodeUtils.putVarInt;
+import static common.util.EncodeUtils.varIntLength;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.zip.CRC32;
+
+import common.hash.Hash;
+import common.util.Bytes;
 
 /**
- * This class handle the mapping between the binary in a file to a Java object
+ * This class handle the mapping between the binary in a file to a Java object.
+ * Entities are written in the compact format 2: varint lengths, the deletion
+ * time as epoch milliseconds, the ring token of the key and a CRC32 of the
+ * record, so a record that was not completely written is detected. A value
+ * compressed by {@link ValueCompression} is written as it is and flagged, it is
+ * kept compressed when it is read. A value stored in a {@link ValueLog} is
+ * written as its reference. Once the {@link OwnerDictionary} of the node is
+ * persisted, the owner is written as its id. Records of
+ * the format 1, a sequence of strings, are still read, they are recognized by
+ * their first byte.
  * 
  * @author Uy Ha
  *
  */
 public class KVEntity extends BaseEntity<String, KVData> {
+	private static final byte FORMAT_2 = (byte) 0x82;
+	private static final byte HAS_DATA = 1;
+	private static final byte HAS_DEL_TIME = 2;
+	private static final byte COMPRESSED = 4;
+	private static final byte VALUE_REFERENCE = 8;
+	private static final byte OWNER_ID = 16;
+	private static final int REFERENCE_LENGTH = 16;
+	private static final int TOKEN_LENGTH = 16;
+	private static final int CHECKSUMMED_OFFSET = 5;
+
 	private String key;
 	private KVData data;
+	private boolean outdated;
 
 	public KVEntity() {
 
@@ -23,11 +55,12 @@ public class KVEntity extends BaseEntity<String, KVData> {
 
 	/**
 	 * @param key
-	 * @param value
+	 * @param value the data of the pair, its token is calculated if it is missing
 	 */
 	public KVEntity(String key, KVData data) {
 		this.key = key;
-		this.data = data;
+		this.data = data == null || data.token != null ? data
+				: new KVData(data.value, data.ownerId, data.delTime, Hash.hash(key), data.compressed);
 	}
 
 	/**
@@ -43,25 +76,195 @@ public class KVEntity extends BaseEntity<String, KVData> {
 	// Message structure:userNameLength ---4 bytes; keyLength---4 bytes;
 	// valueLength---4 bytes;
 	// KVtimestamp; userName; Key; Value
+	// The stream only contains records of the old storage file, which have the
+	// format 1 without token
 	public boolean populate(InputStream istream) throws IOException {
-		String[] fields = decodeSequence(istream);
-		if (fields == null)
+		outdated = true;
+		return populate(decodeSequence(istream), null);
+	}
+
+	/**
+	 * Read the record remaining in the buffer
+	 * 
+	 * @return false if the buffer is empty or the record is corrupt
+	 */
+	@Override
+	public boolean populate(ByteBuffer buffer) {
+		try {
+			if (buffer.remaining() > 0 && buffer.get(buffer.position()) == FORMAT_2) {
+				outdated = false;
+				return populateFormat2(buffer);
+			}
+
+			outdated = true;
+			String[] fields = decodeSequence(buffer);
+			byte[] token = null;
+			if (buffer.remaining() >= TOKEN_LENGTH) {
+				token = new byte[TOKEN_LENGTH];
+				buffer.get(token);
+			}
+			return populate(fields, token);
+		} catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException
+				| DateTimeParseException e) {
+			return false;
+		}
+	}
+
+	private boolean populate(String[] fields, byte[] token) {
+		if (fields == null || fields.length != 1 && fields.length != 4)
 			return false;
 
 		key = fields[0];
-		data = new KVData(fields[1], fields[2], LocalDateTime.parse(fields[3]));
+		if (fields.length == 1) {
+			data = null;
+		} else {
+			LocalDateTime delTime = fields[3].isEmpty() ? null : LocalDateTime.parse(fields[3]);
+			data = new KVData(Bytes.of(fields[1]), OwnerDictionary.node().id(fields[2]), delTime,
+					token == null ? Hash.hash(key) : token);
+		}
+		return true;
+	}
+
+	private boolean populateFormat2(ByteBuffer buffer) {
+		int start = buffer.position();
+		buffer.get();
+		int checksum = buffer.getInt();
+		CRC32 crc = new CRC32();
+		ByteBuffer checksummed = buffer.duplicate();
+		crc.update(checksummed);
+		if ((int) crc.getValue() != checksum) {
+			buffer.position(start);
+			return false;
+		}
+
+		byte flags = buffer.get();
+		key = getString(buffer);
+		if ((flags & HAS_DATA) == 0) {
+			data = null;
+			return true;
+		}
+
+		byte[] token = new byte[TOKEN_LENGTH];
+		buffer.get(token);
+		int owner;
+		if ((flags & OWNER_ID) != 0) {
+			owner = getVarInt(buffer);
+			if (OwnerDictionary.node().owner(owner) == null) {
+				// not reported as a corrupt record, which would be cut off the log
+				throw new IllegalStateException(
+						String.format("Unknown owner id %d, the owner dictionary of the node is missing", owner));
+			}
+		} else {
+			owner = OwnerDictionary.node().id(getString(buffer));
+		}
+		byte[] value = new byte[getVarInt(buffer)];
+		buffer.get(value);
+		LocalDateTime delTime = (flags & HAS_DEL_TIME) == 0 ? null
+				: LocalDateTime.ofInstant(Instant.ofEpochMilli(buffer.getLong()), ZoneOffset.UTC);
+		if ((flags & VALUE_REFERENCE) != 0) {
+			ByteBuffer reference = ByteBuffer.wrap(value);
+			data = new ValueLog.Reference(owner, delTime, token, reference.getInt(), reference.getLong(),
+					reference.getInt(), (flags & COMPRESSED) != 0);
+		} else if ((flags & COMPRESSED) == 0) {
+			data = new KVData(Bytes.wrap(value), owner, delTime, token);
+		} else {
+			data = new KVData(null, owner, delTime, token, value);
+		}
 		return true;
 	}
 
 	/**
 	 * This is the opposite counterpart of unmarshall, it turns an KVEntity into
-	 * binary that unmarshall can turn it into KVEntity again
+	 * binary that unmarshall can turn it into KVEntity again. An entity without
+	 * data is marshalled as its key only, which is used for tombstones in the log.
 	 * 
 	 * @param entity
 	 * @return a byte[] containing the binary of KVEntity
 	 */
+	// Record structure: format ---1 byte; crc32 of the rest ---4 bytes; flags
+	// ---1 byte; keyLength ---varint; key; token ---16 bytes; ownerLength
+	// ---varint; owner; valueLength ---varint; value; delTime ---8 bytes
+	// Tombstones end after the key, the delTime is only present if its flag is set
+	// and the value is the compressed form if the compressed flag is set. The
+	// owner is replaced by ownerId ---varint if the owner id flag is set. The
+	// value of a reference is segment ---4 bytes; offset ---8 bytes; length ---4
+	// bytes
 	public byte[] marshall() {
-		return encodeSequence(key, data.value, data.owner, data.delTime.toString());
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		int length = CHECKSUMMED_OFFSET + 1 + varIntLength(keyBytes.length) + keyBytes.length;
+		byte flags = 0;
+
+		byte[] ownerBytes = null;
+		byte[] valueBytes = null;
+		if (data != null) {
+			flags |= HAS_DATA;
+			if (OwnerDictionary.node().isPersistent()) {
+				flags |= OWNER_ID;
+				length += varIntLength(data.ownerId);
+			} else {
+				ownerBytes = data.owner().getBytes(StandardCharsets.UTF_8);
+				length += varIntLength(ownerBytes.length) + ownerBytes.length;
+			}
+			if (data instanceof ValueLog.Reference) {
+				ValueLog.Reference reference = (ValueLog.Reference) data;
+				flags |= VALUE_REFERENCE;
+				if (reference.compressedValue) {
+					flags |= COMPRESSED;
+				}
+				valueBytes = ByteBuffer.allocate(REFERENCE_LENGTH).putInt(reference.segment)
+						.putLong(reference.offset).putInt(reference.length).array();
+			} else if (data.compressed != null) {
+				flags |= COMPRESSED;
+				valueBytes = data.compressed;
+			} else {
+				valueBytes = data.value.array();
+			}
+			length += TOKEN_LENGTH + varIntLength(valueBytes.length) + valueBytes.length;
+			if (data.delTime != null) {
+				flags |= HAS_DEL_TIME;
+				length += 8;
+			}
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.put(FORMAT_2).putInt(0).put(flags);
+		putBytes(buffer, keyBytes);
+		if (data != null) {
+			buffer.put(data.token);
+			if (ownerBytes == null) {
+				putVarInt(buffer, data.ownerId);
+			} else {
+				putBytes(buffer, ownerBytes);
+			}
+			putBytes(buffer, valueBytes);
+			if (data.delTime != null) {
+				buffer.putLong(data.delTime.toInstant(ZoneOffset.UTC).toEpochMilli());
+			}
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), CHECKSUMMED_OFFSET, length - CHECKSUMMED_OFFSET);
+		buffer.putInt(1, (int) crc.getValue());
+		return buffer.array();
+	}
+
+	private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+		putVarInt(buffer, bytes.length);
+		buffer.put(bytes);
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		byte[] bytes = new byte[getVarInt(buffer)];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return true if the entity was read from a record of the format 1
+	 */
+	@Override
+	public boolean isOutdated() {
+		return outdated;
 	}
 
 	public String getKey() {
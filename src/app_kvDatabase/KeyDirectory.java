@@ -0,0 +1,379 @@
+package app_kvDatabase;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+import app_kvDatabase.BitcaskDatabase.KeyDirEntry;
+
+/**
+ * This class maps the keys of a {@link BitcaskDatabase} to the location of
+ * their values. Keys of at most {@link #MAX_INLINE_KEY_LENGTH} ASCII
+ * characters, which is every key a client can put, are stored together with
+ * their entry in a single open-addressing table of 8 longs per slot. A key
+ * costs no objects and 64 bytes per slot including its entry, at a load
+ * between 3/8 and 3/4, instead of four objects and about 170 bytes in a
+ * concurrent map. Other keys are kept in a regular map.
+ * Reads are optimistic and only lock if a write interfered, writes lock the
+ * whole table. Removed keys leave a marker behind until the table is rebuilt,
+ * so an entry never moves within a table and an iteration, which copies the
+ * table chunk by chunk, sees every key that is present throughout.
+ *
+ * @author Uy Ha
+ *
+ */
+// Slot structure: key ---3 longs, the last byte holds the key length + 1;
+// segment, valueLength; valueOffset; ownerId, recordLength; delTime; sequence
+public class KeyDirectory implements Iterable<Map.Entry<String, KeyDirEntry>> {
+	/**
+	 * The maximum length of the keys stored inline
+	 */
+	public static final int MAX_INLINE_KEY_LENGTH = 20;
+
+	private static final int SLOT = 8;
+	private static final int MIN_CAPACITY = 1 << 10;
+	private static final int MAX_CAPACITY = 1 << 27;
+	private static final int CHUNK = 1 << 10;
+	private static final long DELETED = 0xffL << 56;
+
+	private final StampedLock lock = new StampedLock();
+	private final ConcurrentHashMap<String, KeyDirEntry> overflow = new ConcurrentHashMap<>();
+	private volatile long[] slots = new long[MIN_CAPACITY * SLOT];
+	private volatile int live;
+	private int used;
+
+	/**
+	 * @param key the key to be looked up
+	 * @return the entry of the key, null if the key does not exist
+	 */
+	public KeyDirEntry get(String key) {
+		if (!inline(key)) {
+			return overflow.get(key);
+		}
+
+		long k0 = word(key, 0);
+		long k1 = word(key, 1);
+		long k2 = word(key, 2);
+		long stamp = lock.tryOptimisticRead();
+		KeyDirEntry entry = find(slots, k0, k1, k2);
+		if (!lock.validate(stamp)) {
+			stamp = lock.readLock();
+			try {
+				entry = find(slots, k0, k1, k2);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * @param key   the key of the entry
+	 * @param entry the new entry of the key
+	 * @return the previous entry of the key, null if the key did not exist
+	 */
+	public KeyDirEntry put(String key, KeyDirEntry entry) {
+		if (!inline(key)) {
+			return overflow.put(key, entry);
+		}
+
+		long k0 = word(key, 0);
+		long k1 = word(key, 1);
+		long k2 = word(key, 2);
+		long stamp = lock.writeLock();
+		try {
+			ensureCapacity();
+			long[] slots = this.slots;
+			int found = probe(slots, k0, k1, k2);
+			if (found >= 0) {
+				KeyDirEntry previous = entry(slots, found);
+				write(slots, found, entry);
+				return previous;
+			}
+
+			int base = -found - 1;
+			if (slots[base + 2] == 0) {
+				used++;
+			}
+			slots[base] = k0;
+			slots[base + 1] = k1;
+			slots[base + 2] = k2;
+			write(slots, base, entry);
+			live++;
+			return null;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @param key the key to be removed
+	 * @return the previous entry of the key, null if the key did not exist
+	 */
+	public KeyDirEntry remove(String key) {
+		if (!inline(key)) {
+			return overflow.remove(key);
+		}
+
+		long stamp = lock.writeLock();
+		try {
+			long[] slots = this.slots;
+			int found = probe(slots, word(key, 0), word(key, 1), word(key, 2));
+			if (found < 0) {
+				return null;
+			}
+
+			KeyDirEntry previous = entry(slots, found);
+			slots[found] = 0;
+			slots[found + 1] = 0;
+			slots[found + 2] = DELETED;
+			live--;
+			return previous;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Replace the entry of a key only if it still refers to the same record
+	 *
+	 * @param key         the key of the entry
+	 * @param expected    the entry the key has to refer to
+	 * @param replacement the new entry of the key
+	 * @return true if the entry was replaced
+	 */
+	public boolean replace(String key, KeyDirEntry expected, KeyDirEntry replacement) {
+		if (!inline(key)) {
+			return overflow.replace(key, expected, replacement);
+		}
+
+		long stamp = lock.writeLock();
+		try {
+			long[] slots = this.slots;
+			int found = probe(slots, word(key, 0), word(key, 1), word(key, 2));
+			if (found < 0 || slots[found + 7] != expected.sequence
+					|| slots[found + 4] != expected.valueOffset
+					|| (int) (slots[found + 3] >>> 32) != expected.segment) {
+				return false;
+			}
+			write(slots, found, replacement);
+			return true;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Remove all keys
+	 */
+	public void clear() {
+		long stamp = lock.writeLock();
+		try {
+			slots = new long[MIN_CAPACITY * SLOT];
+			live = 0;
+			used = 0;
+			overflow.clear();
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @return the number of keys
+	 */
+	public int size() {
+		return live + overflow.size();
+	}
+
+	/**
+	 * The iteration is weakly consistent like the one of a concurrent map, it
+	 * does not lock the table while the caller handles the entries.
+	 */
+	@Override
+	public Iterator<Map.Entry<String, KeyDirEntry>> iterator() {
+		return new Iterator<Map.Entry<String, KeyDirEntry>>() {
+			private final long[] table = slots;
+			private final ArrayList<Map.Entry<String, KeyDirEntry>> chunk = new ArrayList<>();
+			private int position;
+			private int nextSlot;
+			private Iterator<Map.Entry<String, KeyDirEntry>> rest;
+
+			@Override
+			public boolean hasNext() {
+				while (position == chunk.size() && nextSlot < table.length / SLOT) {
+					fill();
+				}
+				if (position < chunk.size()) {
+					return true;
+				}
+				if (rest == null) {
+					rest = overflow.entrySet().iterator();
+				}
+				return rest.hasNext();
+			}
+
+			@Override
+			public Map.Entry<String, KeyDirEntry> next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return position < chunk.size() ? chunk.get(position++) : rest.next();
+			}
+
+			/**
+			 * Copy the keys of the next chunk of slots
+			 */
+			private void fill() {
+				chunk.clear();
+				position = 0;
+				int end = Math.min(nextSlot + CHUNK, table.length / SLOT);
+				long stamp = lock.readLock();
+				try {
+					for (int base = nextSlot * SLOT; base < end * SLOT; base += SLOT) {
+						long state = table[base + 2];
+						if (state != 0 && state != DELETED) {
+							chunk.add(new SimpleImmutableEntry<>(key(table, base), entry(table, base)));
+						}
+					}
+				} finally {
+					lock.unlockRead(stamp);
+				}
+				nextSlot = end;
+			}
+		};
+	}
+
+	/**
+	 * Rebuild the table once three quarters of its slots are used by keys or
+	 * markers of removed keys, so it is at most half full afterwards. Must be
+	 * called while holding the write lock.
+	 */
+	private void ensureCapacity() {
+		long[] slots = this.slots;
+		int capacity = slots.length / SLOT;
+		if (used < capacity - capacity / 4) {
+			return;
+		}
+		if (live + 1 >= MAX_CAPACITY - MAX_CAPACITY / 4) {
+			throw new IllegalStateException("The key directory is full");
+		}
+
+		int resized = MIN_CAPACITY;
+		while (resized < MAX_CAPACITY && resized / 2 < live + 1) {
+			resized <<= 1;
+		}
+		long[] rebuilt = new long[resized * SLOT];
+		int mask = resized - 1;
+		for (int base = 0; base < slots.length; base += SLOT) {
+			long state = slots[base + 2];
+			if (state == 0 || state == DELETED) {
+				continue;
+			}
+			int i = hash(slots[base], slots[base + 1], state) & mask;
+			while (rebuilt[i * SLOT + 2] != 0) {
+				i = (i + 1) & mask;
+			}
+			System.arraycopy(slots, base, rebuilt, i * SLOT, SLOT);
+		}
+		this.slots = rebuilt;
+		used = live;
+	}
+
+	private static KeyDirEntry find(long[] slots, long k0, long k1, long k2) {
+		int found = probe(slots, k0, k1, k2);
+		return found < 0 ? null : entry(slots, found);
+	}
+
+	/**
+	 * Look for the slot of a key by linear probing
+	 *
+	 * @return the index of the slot holding the key, or -1 minus the index of
+	 *         the slot the key should be inserted at
+	 */
+	private static int probe(long[] slots, long k0, long k1, long k2) {
+		int mask = slots.length / SLOT - 1;
+		int free = -1;
+		int i = hash(k0, k1, k2) & mask;
+		for (int probes = 0; probes <= mask; probes++, i = (i + 1) & mask) {
+			int base = i * SLOT;
+			long state = slots[base + 2];
+			if (state == 0) {
+				return -1 - (free >= 0 ? free : base);
+			} else if (state == DELETED) {
+				if (free < 0) {
+					free = base;
+				}
+			} else if (state == k2 && slots[base] == k0 && slots[base + 1] == k1) {
+				return base;
+			}
+		}
+		// only reached by a read that interfered with a write, it is retried
+		return -1 - Math.max(free, 0);
+	}
+
+	private static KeyDirEntry entry(long[] slots, int base) {
+		return new KeyDirEntry((int) (slots[base + 3] >>> 32), slots[base + 4], (int) slots[base + 3],
+				(int) (slots[base + 5] >>> 32), slots[base + 6], slots[base + 7], (int) slots[base + 5]);
+	}
+
+	private static void write(long[] slots, int base, KeyDirEntry entry) {
+		slots[base + 3] = (long) entry.segment << 32 | (entry.valueLength & 0xffffffffL);
+		slots[base + 4] = entry.valueOffset;
+		slots[base + 5] = (long) entry.ownerId << 32 | (entry.recordLength & 0xffffffffL);
+		slots[base + 6] = entry.delTime;
+		slots[base + 7] = entry.sequence;
+	}
+
+	private static String key(long[] slots, int base) {
+		char[] chars = new char[(int) (slots[base + 2] >>> 56) - 1];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = (char) ((slots[base + i / 8] >>> (8 * (i % 8))) & 0xff);
+		}
+		return new String(chars);
+	}
+
+	private static boolean inline(String key) {
+		if (key.length() > MAX_INLINE_KEY_LENGTH) {
+			return false;
+		}
+		for (int i = 0; i < key.length(); i++) {
+			if (key.charAt(i) >= 0x80) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Pack 8 characters of an inline key into a long, the last long also holds
+	 * the length
+	 */
+	private static long word(String key, int index) {
+		long word = 0;
+		int end = Math.min(key.length(), 8 * index + 8);
+		for (int i = 8 * index; i < end; i++) {
+			word |= (long) key.charAt(i) << (8 * (i - 8 * index));
+		}
+		if (index == 2) {
+			word |= (long) (key.length() + 1) << 56;
+		}
+		return word;
+	}
+
+	/**
+	 * Mix the packed key by the finalizer of MurmurHash3
+	 */
+	private static int hash(long k0, long k1, long k2) {
+		long hash = k0 * 0x9e3779b97f4a7c15L ^ k1 * 0xc2b2ae3d27d4eb4fL ^ k2 * 0x165667b19e3779f9L;
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return (int) hash;
+	}
+}
@@ -0,0 +1,933 @@
+package app_kvDatabase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import common.hash.Hash;
+import common.util.Bytes;
+
+/**
+ * This class stores the pairs in a log-structured merge tree. Writes go to a
+ * sorted in-memory memtable, which is backed by a write-ahead log and flushed
+ * to an immutable {@link SSTable} once it is full. Tables are organized in
+ * levels and merged by a background compaction, so only the memtable and the
+ * sparse table indexes have to fit into memory. A {@link CountingBloomFilter}
+ * of the live keys answers lookups of missing keys without reading the tables.
+ *
+ * @author Uy Ha
+ *
+ */
+public class LSMDatabase implements StorageEngine {
+	private static final Logger logger = LogManager.getLogger("kvServer");
+
+	private static final long MEMTABLE_SIZE = 4 << 20;
+	private static final long WAL_SEGMENT_SIZE = 8 << 20;
+	private static final long TABLE_SIZE = 8 << 20;
+	private static final int L0_COMPACTION_TRIGGER = 4;
+	private static final long LEVEL_BASE_SIZE = 32 << 20;
+	private static final int LEVEL_MULTIPLIER = 10;
+
+	/**
+	 * Marks a removed key in the memtable, the map cannot hold null values
+	 */
+	private static final KVData TOMBSTONE = new KVData((Bytes) null, null, null);
+
+	private final File directory;
+	private final String prefix;
+	private final File manifestFile;
+	private final SegmentedLog wal;
+	private final ExecutorService service = Executors.newSingleThreadExecutor();
+
+	/**
+	 * Keys with a deletion time, so expired pairs can be found without reading
+	 * the tables
+	 */
+	private final ExpiryIndex timedKeys = new ExpiryIndex();
+
+	private volatile Memtables memtables = new Memtables(new ConcurrentSkipListMap<>(), null);
+	private volatile List<List<SSTable>> levels = new ArrayList<>();
+	private volatile CountingBloomFilter filter;
+	private CountingBloomFilter resizedFilter;
+	private boolean resizing;
+	private long memtableSize;
+	private long nextTableId = 1;
+	private long walSequence;
+
+	/**
+	 * Open the tree whose files are named after the given path, the write-ahead
+	 * log is not forced to disk.
+	 *
+	 * @param dbFile the path the names of the table, log and manifest files are
+	 *               derived from
+	 * @throws IOException
+	 */
+	public LSMDatabase(String dbFile) throws IOException {
+		this(dbFile, Durability.ASYNC);
+	}
+
+	/**
+	 * Open the tree whose files are named after the given path
+	 *
+	 * @param dbFile     the path the names of the table, log and manifest files
+	 *                   are derived from
+	 * @param durability when the records of the write-ahead log are forced to
+	 *                   disk
+	 * @throws IOException
+	 */
+	public LSMDatabase(String dbFile, Durability durability) throws IOException {
+		File base = new File(dbFile).getAbsoluteFile();
+		directory = base.getParentFile();
+		prefix = base.getName();
+		manifestFile = new File(directory, prefix + ".manifest");
+		wal = new SegmentedLog(dbFile + ".wal", WAL_SEGMENT_SIZE, durability);
+
+		readManifest();
+		deleteUnreferencedTables();
+
+		wal.replay(walSequence, (op, payload) -> {
+			KVEntity entity = new KVEntity();
+			if (!entity.populate(payload)) {
+				throw new BulkLoader.CorruptRecordException("Corrupt log record");
+			}
+			KVData data = op == SegmentedLog.PUT ? entity.getValue() : TOMBSTONE;
+			memtables.active.put(entity.getKey(), data);
+			memtableSize += entity.getKey().length() + sizeOf(data);
+		});
+
+		long records = memtables.active.size();
+		for (List<SSTable> level : levels) {
+			for (SSTable table : level) {
+				records += table.records;
+			}
+		}
+		CountingBloomFilter loaded = new CountingBloomFilter((int) Math.min(Integer.MAX_VALUE / 2, records));
+		filter = loaded;
+		try {
+			forEach((key, data) -> {
+				loaded.add(key);
+				if (data.delTime != null) {
+					timedKeys.schedule(key, data.delTime);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	@Override
+	public KVData get(String key) {
+		if (!filter.mightContain(key)) {
+			return null;
+		}
+
+		// read once, a swap publishes both memtables together
+		Memtables current = memtables;
+		KVData data = current.active.get(key);
+		if (data == null && current.flushing != null) {
+			data = current.flushing.get(key);
+		}
+		if (data != null) {
+			return data == TOMBSTONE ? null : data;
+		}
+
+		try {
+			for (List<SSTable> level : levels) {
+				for (SSTable table : level) {
+					if (!table.acquire()) {
+						return get(key);
+					}
+					try {
+						Map.Entry<String, KVData> record = table.get(key);
+						if (record != null) {
+							return record.getValue();
+						}
+					} finally {
+						table.release();
+					}
+				}
+			}
+		} catch (IOException e) {
+			logger.error(e);
+		}
+		return null;
+	}
+
+	@Override
+	public KVData put(String key, KVData value) {
+		KVData oldValue;
+		long ticket;
+		synchronized (this) {
+			oldValue = get(key);
+			if (oldValue == null) {
+				addToFilter(key);
+				resizeFilter();
+			}
+			ticket = write(SegmentedLog.PUT, key, value);
+			timedKeys.schedule(key, value.delTime);
+		}
+		awaitDurable(ticket);
+		return oldValue;
+	}
+
+	@Override
+	public KVData remove(String key) {
+		KVData oldValue;
+		long ticket;
+		synchronized (this) {
+			oldValue = get(key);
+			ticket = write(SegmentedLog.TOMBSTONE, key, null);
+			if (oldValue != null) {
+				filter.remove(key);
+			}
+			timedKeys.cancel(key);
+		}
+		awaitDurable(ticket);
+		return oldValue;
+	}
+
+	@Override
+	public void putAll(Map<String, KVData> pairs) {
+		long ticket = -1;
+		synchronized (this) {
+			for (Map.Entry<String, KVData> pair : pairs.entrySet()) {
+				if (get(pair.getKey()) == null) {
+					addToFilter(pair.getKey());
+				}
+				ticket = write(SegmentedLog.PUT, pair.getKey(), pair.getValue());
+				timedKeys.schedule(pair.getKey(), pair.getValue().delTime);
+			}
+			resizeFilter();
+		}
+		awaitDurable(ticket);
+	}
+
+	@Override
+	public void removeAll(Collection<String> keys) {
+		long ticket = -1;
+		synchronized (this) {
+			for (String key : keys) {
+				if (get(key) != null) {
+					filter.remove(key);
+				}
+				ticket = write(SegmentedLog.TOMBSTONE, key, null);
+				timedKeys.cancel(key);
+			}
+		}
+		awaitDurable(ticket);
+	}
+
+	/**
+	 * Replace the whole content of the tree by the given pairs
+	 */
+	@Override
+	public void replicate(ArrayList<KVEntity> pairs) {
+		try {
+			service.submit(() -> {
+				ConcurrentSkipListMap<String, KVData> replaced = new ConcurrentSkipListMap<>();
+				long replacedSize = 0;
+				for (KVEntity pair : pairs) {
+					replaced.put(pair.getKey(), pair.getValue());
+					replacedSize += pair.getKey().length() + sizeOf(pair.getValue());
+				}
+				CountingBloomFilter replacedFilter = new CountingBloomFilter(2 * replaced.size());
+				replaced.keySet().forEach(replacedFilter::add);
+
+				List<List<SSTable>> obsolete;
+				synchronized (this) {
+					walSequence = wal.rewrite(() -> pairs.stream().map(KVEntity::marshall).iterator());
+					memtables = new Memtables(replaced, memtables.flushing);
+					memtableSize = replacedSize;
+					filter = replacedFilter;
+					obsolete = levels;
+					levels = new ArrayList<>();
+					writeManifest(levels);
+
+					timedKeys.clear();
+					for (KVEntity pair : pairs) {
+						if (pair.getValue().delTime != null) {
+							timedKeys.schedule(pair.getKey(), pair.getValue().delTime);
+						}
+					}
+				}
+				obsolete.forEach(this::deleteTables);
+				return null;
+			}).get();
+		} catch (InterruptedException | ExecutionException e) {
+			logger.error(e);
+		}
+	}
+
+	/**
+	 * The tables are sorted by key and not by ring position, and the keys are
+	 * not kept in memory, so the range is found by scanning all tables.
+	 */
+	@Override
+	public HashMap<String, KVData> dataInRange(byte[] start, byte[] end) {
+		HashMap<String, KVData> result = new HashMap<>();
+		forEach((key, data) -> {
+			if (Hash.in(Hash.hash(key), start, end)) {
+				result.put(key, data);
+			}
+		});
+		return result;
+	}
+
+	@Override
+	public HashMap<String, KVData> dataOutOfRange(byte[] start, byte[] end) {
+		HashMap<String, KVData> result = new HashMap<>();
+		forEach((key, data) -> {
+			if (!Hash.in(Hash.hash(key), start, end)) {
+				result.put(key, data);
+			}
+		});
+		return result;
+	}
+
+	@Override
+	public HashMap<String, KVData> getData() {
+		HashMap<String, KVData> result = new HashMap<>();
+		forEach(result::put);
+		return result;
+	}
+
+	@Override
+	public boolean removeIfExpired(String key, LocalDateTime now) {
+		long ticket;
+		synchronized (this) {
+			KVData data = get(key);
+			if (data == null || data.delTime == null || !data.delTime.isBefore(now)) {
+				return false;
+			}
+			ticket = write(SegmentedLog.TOMBSTONE, key, null);
+			filter.remove(key);
+			timedKeys.cancel(key);
+		}
+		awaitDurable(ticket);
+		return true;
+	}
+
+	@Override
+	public List<String> removeExpiredData(int limit) {
+		ArrayList<String> expiredKeys = new ArrayList<>();
+		LocalDateTime now = LocalDateTime.now();
+		for (String key : timedKeys.expired(now, limit)) {
+			if (removeIfExpired(key, now)) {
+				expiredKeys.add(key);
+			}
+		}
+		return expiredKeys;
+	}
+
+	@Override
+	public void close() throws IOException {
+		service.shutdown();
+		try {
+			service.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		wal.close();
+		for (List<SSTable> level : levels) {
+			level.forEach(SSTable::release);
+		}
+	}
+
+	/**
+	 * Pass every live pair of the tree to the consumer, in key order.
+	 *
+	 * @param consumer the consumer of the pairs
+	 * @throws UncheckedIOException if a table cannot be read, the consumer may
+	 *                              have received a part of the pairs
+	 */
+	public void forEach(BiConsumer<String, KVData> consumer) {
+		forEach(memtables, consumer);
+	}
+
+	/**
+	 * Pass every live pair of the given memtables and the tables to the
+	 * consumer, in key order.
+	 *
+	 * @param current  the memtables read once by the caller
+	 * @param consumer the consumer of the pairs
+	 * @throws UncheckedIOException if a table cannot be read
+	 */
+	private void forEach(Memtables current, BiConsumer<String, KVData> consumer) {
+		List<SSTable> tables = acquireTables();
+		try {
+			ArrayList<Iterator<Map.Entry<String, KVData>>> sources = new ArrayList<>();
+			sources.add(memtableIterator(current.active));
+			if (current.flushing != null) {
+				sources.add(memtableIterator(current.flushing));
+			}
+			for (SSTable table : tables) {
+				sources.add(table.iterator());
+			}
+
+			Iterator<Map.Entry<String, KVData>> merged = new MergingIterator(sources);
+			while (merged.hasNext()) {
+				Map.Entry<String, KVData> pair = merged.next();
+				if (pair.getValue() != null) {
+					consumer.accept(pair.getKey(), pair.getValue());
+				}
+			}
+		} finally {
+			tables.forEach(SSTable::release);
+		}
+	}
+
+	/**
+	 * Acquire all tables of the current levels, from newest to oldest. If a
+	 * compaction released one of them in the meantime, its pairs are in tables
+	 * of newer levels, so the levels are read again.
+	 *
+	 * @return the acquired tables, they have to be released after use
+	 */
+	private List<SSTable> acquireTables() {
+		while (true) {
+			ArrayList<SSTable> tables = new ArrayList<>();
+			boolean released = false;
+			for (List<SSTable> level : levels) {
+				for (SSTable table : level) {
+					if (!table.acquire()) {
+						released = true;
+						break;
+					}
+					tables.add(table);
+				}
+				if (released) {
+					break;
+				}
+			}
+			if (!released) {
+				return tables;
+			}
+			tables.forEach(SSTable::release);
+		}
+	}
+
+	/**
+	 * Append the mutation to the write-ahead log, apply it to the memtable and
+	 * hand the memtable over to the flush if it is full.
+	 *
+	 * @return the ticket of the log record, -1 if it could not be appended
+	 */
+	private long write(byte op, String key, KVData value) {
+		long ticket = -1;
+		KVEntity entity = new KVEntity(key, value);
+		try {
+			ticket = wal.append(op, entity.marshall());
+		} catch (IOException e) {
+			logger.warn(e);
+		}
+
+		KVData data = value == null ? TOMBSTONE : entity.getValue();
+		Memtables current = memtables;
+		current.active.put(key, data);
+		memtableSize += key.length() + sizeOf(data);
+
+		if (memtableSize >= MEMTABLE_SIZE && current.flushing == null) {
+			try {
+				long sequence = wal.startSegment();
+				memtables = new Memtables(new ConcurrentSkipListMap<>(), current.active);
+				memtableSize = 0;
+				service.submit(() -> flush(current.active, sequence));
+			} catch (IOException e) {
+				logger.warn(e);
+			}
+		}
+		return ticket;
+	}
+
+	/**
+	 * Add a new key to the filter and to the filter being rebuilt. Removals only
+	 * update the current filter: the rebuilt one may not have seen the key yet,
+	 * and a key it keeps too long only costs a false positive. Must be called
+	 * while holding the lock of the tree.
+	 */
+	private void addToFilter(String key) {
+		filter.add(key);
+		if (resizedFilter != null) {
+			resizedFilter.add(key);
+		}
+	}
+
+	/**
+	 * Rebuild the filter with twice the capacity on the background service once
+	 * it holds more keys than it is sized for. The keys are collected without
+	 * the lock of the tree while the writes add their new keys to both filters.
+	 * The memtables are read under the lock when the rebuilt filter is
+	 * installed, so a key written before is in the scanned memtables or tables
+	 * even if the memtable is swapped during the scan, and no key is missed.
+	 * The flushes and compactions wait on the service until the scan is done.
+	 * The rebuilt filter is dropped if the tree was replaced
+	 * in the meantime. Must be called while holding the lock of the tree.
+	 */
+	private void resizeFilter() {
+		if (resizing || filter.size() <= filter.capacity()) {
+			return;
+		}
+		resizing = true;
+		service.submit(() -> {
+			CountingBloomFilter current = filter;
+			CountingBloomFilter resized = new CountingBloomFilter(2 * current.size());
+			try {
+				Memtables snapshot;
+				synchronized (this) {
+					resizedFilter = resized;
+					snapshot = memtables;
+				}
+				forEach(snapshot, (key, data) -> resized.add(key));
+				synchronized (this) {
+					if (filter == current) {
+						filter = resized;
+					}
+				}
+			} finally {
+				synchronized (this) {
+					resizedFilter = null;
+					resizing = false;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Wait until a record of the write-ahead log is forced to disk as required
+	 * by its durability. Must be called without holding the lock of the tree.
+	 */
+	private void awaitDurable(long ticket) {
+		if (ticket >= 0) {
+			try {
+				wal.awaitDurable(ticket);
+			} catch (IOException e) {
+				logger.error("Failed to persist the write", e);
+			}
+		}
+	}
+
+	/**
+	 * Write the full memtable into a new level 0 table, then compact the levels
+	 * if necessary. Only runs on the background service. If the table cannot be
+	 * written, the pairs of the full memtable are put back into the memtable,
+	 * the pairs written since then win, and are flushed with it later. The
+	 * write-ahead log is only trimmed by a successful flush, so it still covers
+	 * them.
+	 *
+	 * @param full     the memtable to be flushed
+	 * @param sequence the first log segment that is not covered by the memtable
+	 */
+	private void flush(ConcurrentSkipListMap<String, KVData> full, long sequence) {
+		long id;
+		synchronized (this) {
+			id = nextTableId++;
+		}
+		SSTable table = null;
+		try {
+			table = SSTable.write(id, tableFile(id), memtableIterator(full));
+
+			synchronized (this) {
+				List<List<SSTable>> updated = copyLevels();
+				updated.get(0).add(0, table);
+				long previousSequence = walSequence;
+				walSequence = sequence;
+				try {
+					writeManifest(updated);
+				} catch (IOException e) {
+					walSequence = previousSequence;
+					throw e;
+				}
+				levels = updated;
+				memtables = new Memtables(memtables.active, null);
+			}
+		} catch (IOException e) {
+			logger.error("Failed to flush the memtable, its pairs are kept in memory", e);
+			synchronized (this) {
+				ConcurrentSkipListMap<String, KVData> active = memtables.active;
+				full.forEach((key, data) -> {
+					if (active.putIfAbsent(key, data) == null) {
+						memtableSize += key.length() + sizeOf(data);
+					}
+				});
+				memtables = new Memtables(active, null);
+			}
+			if (table != null) {
+				deleteTables(Collections.singletonList(table));
+			} else if (tableFile(id).exists() && !tableFile(id).delete()) {
+				logger.warn(String.format("Cannot delete the table %s of the failed flush", tableFile(id)));
+			}
+			return;
+		}
+
+		try {
+			wal.deleteBefore(sequence);
+			compact();
+		} catch (IOException | UncheckedIOException e) {
+			logger.error("Failed to compact the levels", e);
+		}
+	}
+
+	/**
+	 * Merge level 0 into level 1 when it holds too many tables, and a table of
+	 * every deeper level that grew beyond its size budget into the next level.
+	 * Only runs on the background service.
+	 *
+	 * @throws IOException
+	 */
+	private void compact() throws IOException {
+		while (true) {
+			List<List<SSTable>> current = levels;
+			int level = -1;
+			if (current.get(0).size() >= L0_COMPACTION_TRIGGER) {
+				level = 0;
+			} else {
+				long budget = LEVEL_BASE_SIZE;
+				for (int i = 1; i < current.size(); i++, budget *= LEVEL_MULTIPLIER) {
+					if (current.get(i).stream().mapToLong(SSTable::size).sum() > budget) {
+						level = i;
+						break;
+					}
+				}
+			}
+
+			if (level < 0) {
+				return;
+			}
+			compactLevel(current, level);
+		}
+	}
+
+	/**
+	 * Merge the tables of the given level, all of them for level 0 and the first
+	 * one for deeper levels, with the overlapping tables of the next level.
+	 */
+	private void compactLevel(List<List<SSTable>> current, int level) throws IOException {
+		List<SSTable> inputs = level == 0 ? current.get(0) : current.get(level).subList(0, 1);
+		List<SSTable> next = level + 1 < current.size() ? current.get(level + 1) : Collections.emptyList();
+
+		ArrayList<SSTable> overlapping = new ArrayList<>();
+		for (SSTable candidate : next) {
+			for (SSTable input : inputs) {
+				if (candidate.overlaps(input)) {
+					overlapping.add(candidate);
+					break;
+				}
+			}
+		}
+
+		ArrayList<Iterator<Map.Entry<String, KVData>>> sources = new ArrayList<>();
+		for (SSTable input : inputs) {
+			sources.add(input.iterator());
+		}
+		for (SSTable table : overlapping) {
+			sources.add(table.iterator());
+		}
+
+		boolean bottom = true;
+		for (int i = level + 2; i < current.size(); i++) {
+			bottom &= current.get(i).isEmpty();
+		}
+
+		ArrayList<SSTable> outputs = new ArrayList<>();
+		MergingIterator merged = new MergingIterator(sources);
+		while (merged.hasNext()) {
+			long id;
+			synchronized (this) {
+				id = nextTableId++;
+			}
+			outputs.add(SSTable.write(id, tableFile(id), new TableSizeLimiter(merged, bottom)));
+		}
+		outputs.removeIf(table -> {
+			if (table.records == 0) {
+				deleteTables(Collections.singletonList(table));
+				return true;
+			}
+			return false;
+		});
+
+		synchronized (this) {
+			List<List<SSTable>> updated = copyLevels();
+			updated.get(level).removeAll(inputs);
+			while (updated.size() <= level + 1) {
+				updated.add(new ArrayList<>());
+			}
+			List<SSTable> target = updated.get(level + 1);
+			target.removeAll(overlapping);
+			target.addAll(outputs);
+			target.sort((first, second) -> first.firstKey.compareTo(second.firstKey));
+			writeManifest(updated);
+			levels = updated;
+		}
+
+		deleteTables(new ArrayList<>(inputs));
+		deleteTables(overlapping);
+		logger.info(String.format("Compacted %d table(s) of level %d into %d table(s) of level %d", inputs.size(),
+				level, outputs.size(), level + 1));
+	}
+
+	/**
+	 * Release the tables and delete their files. Readers that still use a table
+	 * keep it open until they are done.
+	 */
+	private void deleteTables(List<SSTable> tables) {
+		for (SSTable table : tables) {
+			table.release();
+			if (!table.file.delete()) {
+				logger.warn(String.format("Cannot delete obsolete table %s", table.file));
+			}
+		}
+	}
+
+	private List<List<SSTable>> copyLevels() {
+		List<List<SSTable>> copy = new ArrayList<>();
+		for (List<SSTable> level : levels) {
+			copy.add(new ArrayList<>(level));
+		}
+		if (copy.isEmpty()) {
+			copy.add(new ArrayList<>());
+		}
+		return copy;
+	}
+
+	/**
+	 * Read the tables of every level and the first log segment that is not yet
+	 * flushed from the manifest.
+	 *
+	 * @throws IOException
+	 */
+	// Manifest structure: one line "wal <sequence>", one line "next <tableId>",
+	// then one line "<level> <tableId>" per table
+	private void readManifest() throws IOException {
+		List<List<SSTable>> loaded = new ArrayList<>();
+		loaded.add(new ArrayList<>());
+
+		if (manifestFile.exists()) {
+			try (BufferedReader reader = new BufferedReader(new FileReader(manifestFile))) {
+				for (String line; (line = reader.readLine()) != null;) {
+					String[] fields = line.trim().split("\\s+");
+					if (fields[0].equals("wal")) {
+						walSequence = Long.parseLong(fields[1]);
+					} else if (fields[0].equals("next")) {
+						nextTableId = Long.parseLong(fields[1]);
+					} else if (fields.length == 2) {
+						int level = Integer.parseInt(fields[0]);
+						long id = Long.parseLong(fields[1]);
+						while (loaded.size() <= level) {
+							loaded.add(new ArrayList<>());
+						}
+						loaded.get(level).add(SSTable.open(id, tableFile(id)));
+					}
+				}
+			}
+		}
+
+		for (int i = 1; i < loaded.size(); i++) {
+			loaded.get(i).sort((first, second) -> first.firstKey.compareTo(second.firstKey));
+		}
+		levels = loaded;
+	}
+
+	/**
+	 * Write the manifest to a temporary file and rename it afterwards, so a crash
+	 * leaves either the old or the new manifest.
+	 */
+	private void writeManifest(List<List<SSTable>> manifestLevels) throws IOException {
+		File temporary = new File(directory, prefix + ".manifest.tmp");
+		try (PrintWriter writer = new PrintWriter(temporary)) {
+			writer.printf("wal %d\n", walSequence);
+			writer.printf("next %d\n", nextTableId);
+			for (int level = 0; level < manifestLevels.size(); level++) {
+				for (SSTable table : manifestLevels.get(level)) {
+					writer.printf("%d %d\n", level, table.id);
+				}
+			}
+		}
+		if (!temporary.renameTo(manifestFile)) {
+			throw new IOException(String.format("Cannot rename %s to %s", temporary, manifestFile));
+		}
+	}
+
+	/**
+	 * Delete tables left behind by a flush or compaction that was interrupted
+	 * before the manifest was written.
+	 */
+	private void deleteUnreferencedTables() {
+		HashSet<File> referenced = new HashSet<>();
+		levels.forEach(level -> level.forEach(table -> referenced.add(table.file)));
+
+		Pattern tablePattern = Pattern.compile(Pattern.quote(prefix) + "\\.(\\d+)\\.sst");
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			Matcher matcher = tablePattern.matcher(file.getName());
+			if (matcher.matches() && !referenced.contains(file) && !file.delete()) {
+				logger.warn(String.format("Cannot delete unreferenced table %s", file));
+			}
+		}
+	}
+
+	private File tableFile(long id) {
+		return new File(directory, String.format("%s.%06d.sst", prefix, id));
+	}
+
+	private static long sizeOf(KVData data) {
+		if (data == TOMBSTONE) {
+			return 0;
+		}
+		return (data.value == null ? 0 : data.value.length()) + Integer.BYTES;
+	}
+
+	private static Iterator<Map.Entry<String, KVData>> memtableIterator(ConcurrentSkipListMap<String, KVData> table) {
+		return table.entrySet().stream().map(entry -> (Map.Entry<String, KVData>) new SimpleImmutableEntry<>(
+				entry.getKey(), entry.getValue() == TOMBSTONE ? null : entry.getValue())).iterator();
+	}
+
+	/**
+	 * The memtable taking the writes and the full one being flushed. They are
+	 * replaced together, so a reader never sees the pairs of a full memtable in
+	 * neither of them.
+	 */
+	private static class Memtables {
+		final ConcurrentSkipListMap<String, KVData> active;
+		final ConcurrentSkipListMap<String, KVData> flushing;
+
+		Memtables(ConcurrentSkipListMap<String, KVData> active, ConcurrentSkipListMap<String, KVData> flushing) {
+			this.active = active;
+			this.flushing = flushing;
+		}
+	}
+
+	/**
+	 * Merges iterators over sorted pairs into one sorted iterator. When several
+	 * sources contain the same key, the pair of the source that comes first in
+	 * the list wins, so the sources have to be ordered from newest to oldest.
+	 */
+	private static class MergingIterator implements Iterator<Map.Entry<String, KVData>> {
+		private final PriorityQueue<Head> heads = new PriorityQueue<>();
+
+		private static class Head implements Comparable<Head> {
+			final int rank;
+			final Iterator<Map.Entry<String, KVData>> source;
+			Map.Entry<String, KVData> current;
+
+			Head(int rank, Iterator<Map.Entry<String, KVData>> source) {
+				this.rank = rank;
+				this.source = source;
+				this.current = source.next();
+			}
+
+			@Override
+			public int compareTo(Head other) {
+				int comparison = current.getKey().compareTo(other.current.getKey());
+				return comparison != 0 ? comparison : Integer.compare(rank, other.rank);
+			}
+		}
+
+		MergingIterator(List<Iterator<Map.Entry<String, KVData>>> sources) {
+			for (int rank = 0; rank < sources.size(); rank++) {
+				if (sources.get(rank).hasNext()) {
+					heads.add(new Head(rank, sources.get(rank)));
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !heads.isEmpty();
+		}
+
+		@Override
+		public Map.Entry<String, KVData> next() {
+			if (heads.isEmpty()) {
+				throw new NoSuchElementException();
+			}
+
+			Head winner = heads.poll();
+			Map.Entry<String, KVData> result = winner.current;
+			advance(winner);
+			while (!heads.isEmpty() && heads.peek().current.getKey().equals(result.getKey())) {
+				advance(heads.poll());
+			}
+			return result;
+		}
+
+		private void advance(Head head) {
+			if (head.source.hasNext()) {
+				head.current = head.source.next();
+				heads.add(head);
+			}
+		}
+	}
+
+	/**
+	 * Passes the pairs of a merge on until a table is full. Tombstones are
+	 * dropped when the merge writes into the deepest level, since there is no
+	 * older pair left that they could hide.
+	 */
+	private static class TableSizeLimiter implements Iterator<Map.Entry<String, KVData>> {
+		private final MergingIterator merged;
+		private final boolean dropTombstones;
+		private long written;
+		private Map.Entry<String, KVData> next;
+
+		TableSizeLimiter(MergingIterator merged, boolean dropTombstones) {
+			this.merged = merged;
+			this.dropTombstones = dropTombstones;
+			this.next = advance();
+		}
+
+		private Map.Entry<String, KVData> advance() {
+			while (written < TABLE_SIZE && merged.hasNext()) {
+				Map.Entry<String, KVData> pair = merged.next();
+				if (pair.getValue() != null || !dropTombstones) {
+					written += pair.getKey().length() + (pair.getValue() == null ? 0 : sizeOf(pair.getValue()));
+					return pair;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Map.Entry<String, KVData> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<String, KVData> current = next;
+			next = advance();
+			return current;
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package app_kvDatabase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class is a {@link BitcaskDatabase} whose segments are mapped into
+ * memory, so a value is copied straight out of the page cache instead of
+ * being read through a system call and a temporary buffer. The values
+ * returned by {@link #get(String)} are still copied onto the heap once, only
+ * {@link #valueSlice(String)} returns them without any copy. The page cache
+ * thereby becomes a second level cache under the {@link cache.ServerCache}.
+ *
+ * @author Uy Ha
+ *
+ */
+public class MappedDatabase extends BitcaskDatabase {
+	private static final long REMAP_INCREMENT = 1 << 20;
+
+	private final ConcurrentHashMap<Integer, MappedByteBuffer> mappings = new ConcurrentHashMap<>();
+	private final Object mappingLock = new Object();
+
+	/**
+	 * Open the segments whose files are named after the given path
+	 *
+	 * @param dbFile the path the names of the segment and hint files are derived
+	 *               from
+	 * @throws IOException
+	 */
+	public MappedDatabase(String dbFile) throws IOException {
+		super(dbFile);
+	}
+
+	/**
+	 * Open the segments whose files are named after the given path
+	 *
+	 * @param dbFile     the path the names of the segment and hint files are
+	 *                   derived from
+	 * @param durability when the writes are forced to disk
+	 * @throws IOException
+	 */
+	public MappedDatabase(String dbFile, Durability durability) throws IOException {
+		super(dbFile, durability);
+	}
+
+	/**
+	 * Get the value of a key without copying it
+	 *
+	 * @param key the key to be looked up
+	 * @return a read-only buffer containing exactly the bytes of the value, or
+	 *         null if the key does not exist
+	 */
+	public ByteBuffer valueSlice(String key) {
+		while (true) {
+			KeyDirEntry entry = keyDir.get(key);
+			if (entry == null) {
+				return null;
+			}
+
+			try {
+				ByteBuffer slice = slice(entry);
+				return slice == null ? ByteBuffer.wrap(super.readValue(entry)).asReadOnlyBuffer() : slice;
+			} catch (ClosedChannelException e) {
+				// the segment was merged while reading, the entry has been replaced
+				continue;
+			} catch (IOException e) {
+				logger.error(e);
+				return null;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		super.close();
+		mappings.clear();
+	}
+
+	/**
+	 * The value is copied once out of the mapping, a stored value has to own
+	 * its bytes
+	 */
+	@Override
+	protected byte[] readValue(KeyDirEntry entry) throws IOException {
+		ByteBuffer slice = slice(entry);
+		if (slice == null) {
+			return super.readValue(entry);
+		}
+
+		byte[] value = new byte[slice.remaining()];
+		slice.get(value);
+		return value;
+	}
+
+	@Override
+	protected void segmentDeleted(int segment) {
+		mappings.remove(segment);
+	}
+
+	/**
+	 * Slice the value of an entry out of the mapping of its segment. The
+	 * segment that is being appended to is only mapped again after it grew by
+	 * {@link #REMAP_INCREMENT} bytes, values behind the end of its mapping are
+	 * not sliced. A mapping is limited to 2 GB, values behind that are not
+	 * sliced either.
+	 *
+	 * @param entry the entry of the key directory
+	 * @return the read-only slice, or null if the value is not mapped yet
+	 * @throws IOException
+	 */
+	private ByteBuffer slice(KeyDirEntry entry) throws IOException {
+		long end = entry.valueOffset + entry.valueLength;
+		if (end > Integer.MAX_VALUE) {
+			return null;
+		}
+		MappedByteBuffer mapping = mappings.get(entry.segment);
+		if (mapping == null || mapping.capacity() < end) {
+			mapping = map(entry.segment, end);
+			if (mapping == null) {
+				return null;
+			}
+		}
+
+		ByteBuffer slice = mapping.duplicate();
+		slice.position((int) entry.valueOffset);
+		slice.limit((int) end);
+		return slice.slice().asReadOnlyBuffer();
+	}
+
+	private MappedByteBuffer map(int segment, long end) throws IOException {
+		synchronized (mappingLock) {
+			FileChannel channel = segments.get(segment);
+			if (channel == null) {
+				throw new ClosedChannelException();
+			}
+
+			MappedByteBuffer mapping = mappings.get(segment);
+			long size = channel.size();
+			int mapped = mapping == null ? 0 : mapping.capacity();
+			if (mapped >= end) {
+				return mapping;
+			} else if (mapping != null && size - mapped < REMAP_INCREMENT) {
+				return null;
+			}
+
+			mapping = channel.map(MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE));
+			mappings.put(segment, mapping);
+			return mapping.capacity() >= end ? mapping : null;
+		}
+	}
+}
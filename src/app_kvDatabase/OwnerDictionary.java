@@ -0,0 +1,213 @@
+package app_kvDatabase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * This class maps the owners of the pairs to dense integer ids. A server has
+ * few users but many pairs, so a pair only keeps the id of its owner instead of
+ * its own copy of the username, and ownership checks compare ids. The
+ * dictionary of a node is persisted next to its {@link UserDatabase}, from then
+ * on the log records of the pairs refer to their owner by its id. An id is only
+ * valid on the node that assigned it, pairs sent to other servers carry the
+ * username.
+ *
+ * @author Uy Ha
+ *
+ */
+// File structure: a sequence of usernames in the order of their ids, each
+// written by DataOutput.writeUTF
+public class OwnerDictionary {
+	/**
+	 * The id of a missing owner, e.g. of a tombstone
+	 */
+	public static final int NO_OWNER = -1;
+
+	private static final Logger logger = LogManager.getLogger("kvServer");
+	private static final OwnerDictionary NODE = new OwnerDictionary();
+
+	private final CopyOnWriteArrayList<String> owners = new CopyOnWriteArrayList<>();
+	private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+	private File file;
+	private FileChannel channel;
+	private volatile boolean persistent;
+
+	/**
+	 * @return the dictionary of this node, it is kept in memory until it is
+	 *         persisted
+	 */
+	public static OwnerDictionary node() {
+		return NODE;
+	}
+
+	/**
+	 * Look up the id of an owner, an unknown owner is added and persisted before
+	 * its id is returned, so no record refers to an id that is not on disk.
+	 *
+	 * @param owner the username, may be null
+	 * @return the id of the owner, {@link #NO_OWNER} if it is null
+	 * @throws UncheckedIOException if a new owner cannot be persisted
+	 */
+	public int id(String owner) {
+		if (owner == null) {
+			return NO_OWNER;
+		}
+		Integer id = ids.get(owner);
+		return id != null ? id : add(owner);
+	}
+
+	/**
+	 * @param owner the username, may be null
+	 * @return the id of the owner, {@link #NO_OWNER} if it is unknown
+	 */
+	public int find(String owner) {
+		Integer id = owner == null ? null : ids.get(owner);
+		return id != null ? id : NO_OWNER;
+	}
+
+	/**
+	 * @param id the id of an owner
+	 * @return the username, null if the id is unknown or {@link #NO_OWNER}
+	 */
+	public String owner(int id) {
+		return id >= 0 && id < owners.size() ? owners.get(id) : null;
+	}
+
+	/**
+	 * @return the number of owners
+	 */
+	public int size() {
+		return owners.size();
+	}
+
+	/**
+	 * @return true if the dictionary is written to a file, then records may
+	 *         refer to owners by their ids
+	 */
+	public boolean isPersistent() {
+		return persistent;
+	}
+
+	/**
+	 * Load the owners of a file and write the new owners to it from now on. The
+	 * owners already in use keep their ids, so either they have to be the first
+	 * owners of the file or the file the first owners in use, the missing owners
+	 * are added to the other side.
+	 *
+	 * @param path the file of the dictionary
+	 * @throws IOException           if the file cannot be read or written, or
+	 *                               does not match the owners in use
+	 * @throws IllegalStateException if the dictionary is already persisted to
+	 *                               another file
+	 */
+	public synchronized void persist(String path) throws IOException {
+		File target = new File(path).getAbsoluteFile();
+		if (file != null) {
+			if (file.equals(target)) {
+				return;
+			}
+			throw new IllegalStateException(String.format("The owner dictionary is already persisted to %s", file));
+		}
+
+		ArrayList<String> stored = new ArrayList<>();
+		long length = read(target, stored);
+		int common = Math.min(stored.size(), owners.size());
+		if (!stored.subList(0, common).equals(owners.subList(0, common))) {
+			throw new IOException(String.format("The owner dictionary %s does not match the owners in use", target));
+		}
+
+		FileChannel opened = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			// a torn last entry is dropped
+			opened.truncate(length);
+			opened.position(length);
+			write(opened, owners.subList(common, owners.size()));
+		} catch (IOException e) {
+			opened.close();
+			throw e;
+		}
+		for (String owner : stored.subList(common, stored.size())) {
+			ids.put(owner, owners.size());
+			owners.add(owner);
+		}
+		file = target;
+		channel = opened;
+		persistent = true;
+		logger.info(String.format("Loaded %d owners from %s", stored.size(), target.getName()));
+	}
+
+	private synchronized int add(String owner) {
+		Integer id = ids.get(owner);
+		if (id != null) {
+			return id;
+		}
+		if (channel != null) {
+			try {
+				write(channel, Collections.singletonList(owner));
+			} catch (IOException e) {
+				throw new UncheckedIOException(String.format("Failed to persist the owner %s", owner), e);
+			}
+		}
+		// the owner is in the list before its id is visible
+		owners.add(owner);
+		ids.put(owner, owners.size() - 1);
+		return owners.size() - 1;
+	}
+
+	private static void write(FileChannel channel, List<String> owners) throws IOException {
+		if (owners.isEmpty()) {
+			return;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream ostream = new DataOutputStream(bytes);
+		for (String owner : owners) {
+			ostream.writeUTF(owner);
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		channel.force(false);
+	}
+
+	/**
+	 * @return the length of the complete entries of the file
+	 */
+	private static long read(File file, List<String> owners) throws IOException {
+		if (!file.exists()) {
+			return 0;
+		}
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		ByteArrayInputStream input = new ByteArrayInputStream(bytes);
+		DataInputStream istream = new DataInputStream(input);
+		long length = 0;
+		try {
+			while (input.available() > 0) {
+				owners.add(istream.readUTF());
+				length = bytes.length - input.available();
+			}
+		} catch (EOFException | UTFDataFormatException e) {
+			logger.warn(String.format("Truncating torn owner at the end of %s", file.getName()));
+		}
+		return length;
+	}
+}
@@ -0,0 +1,473 @@
+package app_kvDatabase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+import java.util.regex.Pattern;
+
+import common.hash.Hash;
+
+/**
+ * This class splits the keyspace of a node into partitions, each a storage
+ * engine of its own with its own map, files and locks. A key belongs to the
+ * partition of the leading bits of its ring token, so every partition covers
+ * an equal, contiguous range of the ring. Collecting a range only scans the
+ * partitions that overlap it: the partitions inside the range are taken whole
+ * and the partitions outside of it are dropped whole after a handoff, only the
+ * partitions at its bounds filter their keys. Scans, expiry, replication and
+ * loading run on the partitions in parallel. A batch is applied per partition,
+ * it is only atomic within a partition.
+ * <p>
+ * A key is hashed to find its partition, the token is passed on with the pair
+ * so the partition does not hash it again.
+ * </p>
+ *
+ * @author Uy Ha
+ *
+ */
+// Files: <database>.p<index> are the files of the partitions,
+// <database>.partitions holds the number of partitions as text
+public class PartitionedDatabase implements StorageEngine {
+	/**
+	 * The maximum number of partitions
+	 */
+	public static final int MAX_PARTITIONS = 256;
+
+	private static final int TOKEN_LENGTH = 16;
+	private static final int NONE = 0;
+	private static final int PART = 1;
+	private static final int WHOLE = 2;
+
+	private final StorageEngine[] partitions;
+	/**
+	 * The smallest token of every partition
+	 */
+	private final byte[][] lowerBounds;
+	private final ExecutorService workers;
+
+	/**
+	 * @param engine     the name of the engine of the partitions, see
+	 *                   {@link StorageEngines}
+	 * @param dbFile     the path the names of the partitions' files are derived
+	 *                   from
+	 * @param durability when the writes of the partitions are forced to disk
+	 * @param count      the number of partitions, between 1 and
+	 *                   {@link #MAX_PARTITIONS}
+	 * @throws IOException if the files of a partition cannot be read, or were
+	 *                     written with another number of partitions or without
+	 *                     partitions
+	 */
+	public PartitionedDatabase(String engine, String dbFile, Durability durability, int count) throws IOException {
+		if (count < 1 || count > MAX_PARTITIONS) {
+			throw new IllegalArgumentException(
+					String.format("The number of partitions has to be between 1 and %d, received %d", MAX_PARTITIONS,
+							count));
+		}
+		if (!engine.equalsIgnoreCase(StorageEngines.MEMORY)) {
+			checkCount(dbFile, count);
+		}
+
+		partitions = new StorageEngine[count];
+		lowerBounds = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			lowerBounds[i] = lowerBound(i, count);
+		}
+
+		ArrayList<BulkLoader.Task> opens = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			int partition = i;
+			opens.add(() -> partitions[partition] = StorageEngines.open(engine, dbFile + ".p" + partition, durability));
+		}
+		try {
+			BulkLoader.runParallel(opens);
+		} catch (IOException e) {
+			for (StorageEngine partition : partitions) {
+				if (partition != null) {
+					partition.close();
+				}
+			}
+			throw e;
+		}
+		workers = Executors.newFixedThreadPool(Math.min(count, Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * @return the number of partitions
+	 */
+	public int size() {
+		return partitions.length;
+	}
+
+	@Override
+	public KVData get(String key) {
+		return partitions[partition(Hash.hash(key))].get(key);
+	}
+
+	@Override
+	public KVData put(String key, KVData value) {
+		value = withToken(key, value);
+		return partitions[partition(value.token)].put(key, value);
+	}
+
+	@Override
+	public KVData remove(String key) {
+		return partitions[partition(Hash.hash(key))].remove(key);
+	}
+
+	@Override
+	public void putAll(Map<String, KVData> pairs) {
+		ArrayList<HashMap<String, KVData>> batches = new ArrayList<>();
+		for (int i = 0; i < partitions.length; i++) {
+			batches.add(new HashMap<>());
+		}
+		pairs.forEach((key, value) -> {
+			KVData stored = withToken(key, value);
+			batches.get(partition(stored.token)).put(key, stored);
+		});
+		for (int i = 0; i < partitions.length; i++) {
+			if (!batches.get(i).isEmpty()) {
+				partitions[i].putAll(batches.get(i));
+			}
+		}
+	}
+
+	@Override
+	public void removeAll(Collection<String> keys) {
+		ArrayList<ArrayList<String>> batches = new ArrayList<>();
+		for (int i = 0; i < partitions.length; i++) {
+			batches.add(new ArrayList<>());
+		}
+		for (String key : keys) {
+			batches.get(partition(Hash.hash(key))).add(key);
+		}
+		for (int i = 0; i < partitions.length; i++) {
+			if (!batches.get(i).isEmpty()) {
+				partitions[i].removeAll(batches.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Every partition is replaced by its share of the pairs in parallel, a
+	 * partition without pairs is cleared.
+	 */
+	@Override
+	public void replicate(ArrayList<KVEntity> pairs) {
+		ArrayList<ArrayList<KVEntity>> shares = new ArrayList<>();
+		for (int i = 0; i < partitions.length; i++) {
+			shares.add(new ArrayList<>());
+		}
+		for (KVEntity pair : pairs) {
+			KVData value = withToken(pair.getKey(), pair.getValue());
+			shares.get(partition(value.token)).add(new KVEntity(pair.getKey(), value));
+		}
+		forEachPartition(i -> {
+			partitions[i].replicate(shares.get(i));
+			return null;
+		});
+	}
+
+	@Override
+	public HashMap<String, KVData> dataInRange(byte[] start, byte[] end) {
+		return collect(start, end, i -> partitions[i].getData(), i -> partitions[i].dataInRange(start, end));
+	}
+
+	@Override
+	public HashMap<String, KVData> dataOutOfRange(byte[] start, byte[] end) {
+		if (Hash.compare(start, end) == 0) {
+			return new HashMap<>();
+		}
+		// the pairs outside of a range are the pairs in the range from its end to
+		// its start
+		return collect(end, start, i -> partitions[i].getData(), i -> partitions[i].dataInRange(end, start));
+	}
+
+	@Override
+	public HashMap<String, KVData> getData() {
+		return merge(forEachPartition(i -> partitions[i].getData()));
+	}
+
+	/**
+	 * The partitions outside of the range are cleared whole, only the
+	 * partitions at the bounds of the range look at their keys.
+	 */
+	@Override
+	public void removeOutOfRange(byte[] start, byte[] end) {
+		forEachPartition(i -> {
+			int coverage = coverage(i, start, end);
+			if (coverage == NONE) {
+				partitions[i].replicate(new ArrayList<>());
+			} else if (coverage == PART) {
+				partitions[i].removeOutOfRange(start, end);
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * The snapshots of the partitions are opened in parallel, each is a
+	 * point-in-time view of its partition.
+	 */
+	@Override
+	public Snapshot<String, KVData> snapshot() {
+		List<Snapshot<String, KVData>> snapshots = forEachPartition(i -> partitions[i].snapshot());
+		return new PartitionedSnapshot(snapshots);
+	}
+
+	@Override
+	public boolean removeIfExpired(String key, LocalDateTime now) {
+		return partitions[partition(Hash.hash(key))].removeIfExpired(key, now);
+	}
+
+	/**
+	 * The limit is split between the partitions, which remove their expired
+	 * pairs in parallel
+	 */
+	@Override
+	public List<String> removeExpiredData(int limit) {
+		List<List<String>> removed = forEachPartition(i -> {
+			int share = limit / partitions.length + (i < limit % partitions.length ? 1 : 0);
+			return share == 0 ? new ArrayList<String>() : partitions[i].removeExpiredData(share);
+		});
+		ArrayList<String> result = new ArrayList<>();
+		removed.forEach(result::addAll);
+		return result;
+	}
+
+	@Override
+	public void close() throws IOException {
+		List<IOException> failures = forEachPartition(i -> {
+			try {
+				partitions[i].close();
+				return null;
+			} catch (IOException e) {
+				return e;
+			}
+		});
+		workers.shutdown();
+		for (IOException failure : failures) {
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	/**
+	 * Find the partition of a token
+	 *
+	 * @param token the hash of a key
+	 * @return the index of the partition
+	 */
+	private int partition(byte[] token) {
+		return prefix(token) * partitions.length >>> 16;
+	}
+
+	/**
+	 * How much of a partition lies in a range: a partition is inside the range
+	 * if its smallest token is and the range does not end within it, it is
+	 * outside of the range if its smallest token is and the range does not start
+	 * within it
+	 *
+	 * @return {@link #NONE}, {@link #PART} or {@link #WHOLE}
+	 */
+	private int coverage(int partition, byte[] start, byte[] end) {
+		if (Hash.compare(start, end) == 0) {
+			return WHOLE;
+		} else if (Hash.in(lowerBounds[partition], start, end)) {
+			return partition(end) == partition ? PART : WHOLE;
+		}
+		return partition(start) == partition ? PART : NONE;
+	}
+
+	/**
+	 * Collect the pairs of a range from the partitions overlapping it in
+	 * parallel
+	 *
+	 * @param whole the pairs of a partition inside the range
+	 * @param part  the pairs of the range in a partition at its bounds
+	 */
+	private HashMap<String, KVData> collect(byte[] start, byte[] end, IntFunction<HashMap<String, KVData>> whole,
+			IntFunction<HashMap<String, KVData>> part) {
+		return merge(forEachPartition(i -> {
+			int coverage = coverage(i, start, end);
+			return coverage == WHOLE ? whole.apply(i) : coverage == PART ? part.apply(i) : null;
+		}));
+	}
+
+	private static HashMap<String, KVData> merge(List<HashMap<String, KVData>> parts) {
+		int size = 0;
+		for (HashMap<String, KVData> part : parts) {
+			size += part == null ? 0 : part.size();
+		}
+		HashMap<String, KVData> result = new HashMap<>(Math.max(16, 2 * size));
+		for (HashMap<String, KVData> part : parts) {
+			if (part != null) {
+				result.putAll(part);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Run a task for every partition on the workers and wait for all of them
+	 *
+	 * @param task the task receiving the index of a partition
+	 * @return the results in the order of the partitions
+	 */
+	private <R> List<R> forEachPartition(IntFunction<R> task) {
+		if (partitions.length == 1) {
+			return Arrays.asList(task.apply(0));
+		}
+
+		ArrayList<Callable<R>> tasks = new ArrayList<>();
+		for (int i = 0; i < partitions.length; i++) {
+			int partition = i;
+			tasks.add(() -> task.apply(partition));
+		}
+		try {
+			ArrayList<R> results = new ArrayList<>();
+			for (Future<R> result : workers.invokeAll(tasks)) {
+				results.add(result.get());
+			}
+			return results;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the partitions", e);
+		}
+	}
+
+	/**
+	 * Make sure the files were written with the same number of partitions and
+	 * not by an unpartitioned engine, otherwise pairs would be looked up in the
+	 * wrong partition
+	 */
+	private static void checkCount(String dbFile, int count) throws IOException {
+		File file = new File(dbFile + ".partitions");
+		if (unpartitionedFilesExist(dbFile)) {
+			throw new IOException(String.format("%s was written without partitions, opened with %d partitions",
+					new File(dbFile).getName(), count));
+		}
+		if (file.exists()) {
+			String stored = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+			if (!stored.equals(Integer.toString(count))) {
+				throw new IOException(String.format("%s was written with %s partitions, opened with %d",
+						file.getName(), stored, count));
+			}
+		} else {
+			Files.write(file.toPath(), Integer.toString(count).getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Check whether an engine without partitions wrote files for the given path,
+	 * its files are the path itself and the files named after it, except for the
+	 * files of the partitions
+	 * 
+	 * @param dbFile the path the names of the files are derived from
+	 * @return true if a file of an unpartitioned engine exists
+	 */
+	static boolean unpartitionedFilesExist(String dbFile) {
+		File base = new File(dbFile).getAbsoluteFile();
+		String[] names = base.getParentFile().list();
+		if (names == null) {
+			return false;
+		}
+		Pattern partitionFile = Pattern.compile(Pattern.quote(base.getName()) + "\\.(partitions|p\\d+(\\..*)?)");
+		for (String name : names) {
+			if (name.equals(base.getName())
+					|| name.startsWith(base.getName() + ".") && !partitionFile.matcher(name).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The 16 leading bits of a token in ring order. Tokens are compared by
+	 * signed bytes, flipping the sign bits orders them like unsigned ones.
+	 */
+	private static int prefix(byte[] token) {
+		return ((token[0] ^ 0x80) & 0xff) << 8 | ((token[1] ^ 0x80) & 0xff);
+	}
+
+	/**
+	 * The smallest token of a partition, the smallest prefix of the partition
+	 * followed by the smallest signed bytes
+	 */
+	private static byte[] lowerBound(int partition, int count) {
+		int prefix = (partition * 65536 + count - 1) / count;
+		byte[] bound = new byte[TOKEN_LENGTH];
+		Arrays.fill(bound, (byte) 0x80);
+		bound[0] = (byte) ((prefix >>> 8) ^ 0x80);
+		bound[1] = (byte) ((prefix & 0xff) ^ 0x80);
+		return bound;
+	}
+
+	/**
+	 * Add the ring token to a pair that does not carry it yet
+	 */
+	private static KVData withToken(String key, KVData value) {
+		if (value.token != null) {
+			return value;
+		}
+		return new KVData(value.value, value.ownerId, value.delTime, Hash.hash(key), value.compressed);
+	}
+
+	/**
+	 * The snapshots of all partitions, read like the partitions themselves
+	 */
+	private class PartitionedSnapshot implements Snapshot<String, KVData> {
+		private final List<Snapshot<String, KVData>> snapshots;
+
+		private PartitionedSnapshot(List<Snapshot<String, KVData>> snapshots) {
+			this.snapshots = snapshots;
+		}
+
+		@Override
+		public KVData get(String key) {
+			return snapshots.get(partition(Hash.hash(key))).get(key);
+		}
+
+		@Override
+		public HashMap<String, KVData> getData() {
+			return merge(forEachPartition(i -> snapshots.get(i).getData()));
+		}
+
+		@Override
+		public HashMap<String, KVData> dataInRange(byte[] start, byte[] end) {
+			return collect(start, end, i -> snapshots.get(i).getData(), i -> snapshots.get(i).dataInRange(start, end));
+		}
+
+		@Override
+		public HashMap<String, KVData> dataOutOfRange(byte[] start, byte[] end) {
+			if (Hash.compare(start, end) == 0) {
+				return new HashMap<>();
+			}
+			return collect(end, start, i -> snapshots.get(i).getData(), i -> snapshots.get(i).dataInRange(end, start));
+		}
+
+		@Override
+		public void close() {
+			snapshots.forEach(Snapshot::close);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package app_kvDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import common.hash.Hash;
+
+/**
+ * This class keeps the keys of a storage ordered by their position on the
+ * ring, so the keys of a range are found without hashing every key. The hash of
+ * a key is calculated once when it is added, unless the caller already knows
+ * it. The index is thread-safe, the caller has to order the additions and
+ * removals of the same key.
+ *
+ * @author Uy Ha
+ *
+ * @param <K> the type of the keys, they are hashed by their string form
+ */
+public class RingIndex<K> {
+
+	/**
+	 * A key together with its hash, a bound sorts after all keys with the same
+	 * hash
+	 */
+	private static class Position<K> implements Comparable<Position<K>> {
+		private final byte[] hash;
+		private final K key;
+
+		private Position(byte[] hash, K key) {
+			this.hash = hash;
+			this.key = key;
+		}
+
+		@Override
+		public int compareTo(Position<K> other) {
+			int result = Hash.compare(hash, other.hash);
+			if (result != 0) {
+				return result;
+			} else if (key == null || other.key == null) {
+				return Boolean.compare(key == null, other.key == null);
+			}
+			return key.toString().compareTo(other.key.toString());
+		}
+	}
+
+	private final ConcurrentSkipListSet<Position<K>> positions = new ConcurrentSkipListSet<>();
+
+	/**
+	 * @param key the key to be added
+	 */
+	public void add(K key) {
+		add(key, Hash.hash(key.toString()));
+	}
+
+	/**
+	 * @param key   the key to be added
+	 * @param token the hash of the key
+	 */
+	public void add(K key, byte[] token) {
+		positions.add(new Position<>(token, key));
+	}
+
+	/**
+	 * @param key the key to be removed
+	 */
+	public void remove(K key) {
+		remove(key, Hash.hash(key.toString()));
+	}
+
+	/**
+	 * @param key   the key to be removed
+	 * @param token the hash of the key
+	 */
+	public void remove(K key, byte[] token) {
+		positions.remove(new Position<>(token, key));
+	}
+
+	/**
+	 * Remove all keys
+	 */
+	public void clear() {
+		positions.clear();
+	}
+
+	/**
+	 * @return the number of keys
+	 */
+	public int size() {
+		return positions.size();
+	}
+
+	/**
+	 * Collect the keys in the given range, it follows {@link Hash#in}: a range
+	 * whose start is greater than its end wraps around and a range whose start
+	 * equals its end covers the whole ring.
+	 *
+	 * @param start the starting index of the range (exclusive)
+	 * @param end   the ending index of the range (inclusive)
+	 * @return the keys in ring order
+	 */
+	public List<K> keysInRange(byte[] start, byte[] end) {
+		Position<K> lower = new Position<>(start, null);
+		Position<K> upper = new Position<>(end, null);
+		int order = Hash.compare(start, end);
+
+		ArrayList<K> keys = new ArrayList<>();
+		if (order < 0) {
+			collect(positions.subSet(lower, false, upper, false), keys);
+		} else if (order > 0) {
+			collect(positions.tailSet(lower, false), keys);
+			collect(positions.headSet(upper, false), keys);
+		} else {
+			collect(positions, keys);
+		}
+		return keys;
+	}
+
+	/**
+	 * Collect the keys outside of the given range, these are the keys in the
+	 * range from its end to its start.
+	 *
+	 * @param start the starting index of the range (exclusive)
+	 * @param end   the ending index of the range (inclusive)
+	 * @return the keys in ring order
+	 */
+	public List<K> keysOutOfRange(byte[] start, byte[] end) {
+		if (Hash.compare(start, end) == 0) {
+			return new ArrayList<>();
+		}
+		return keysInRange(end, start);
+	}
+
+	private void collect(NavigableSet<Position<K>> range, ArrayList<K> keys) {
+		for (Position<K> position : range) {
+			keys.add(position.key);
+		}
+	}
+}
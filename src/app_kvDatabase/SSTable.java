@@ -0,0 +1,372 @@
+package app_kvDatabase;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class handles an immutable file of pairs sorted by key, written by the
+ * {@link LSMDatabase} when a memtable is flushed or tables are compacted. Only
+ * every {@link #INDEX_INTERVAL}-th key is kept in memory, a lookup reads the
+ * block between two index entries from disk.
+ *
+ * @author Uy Ha
+ *
+ */
+// File structure: records; index; footer
+// Record structure: op ---1 byte; payloadLength ---4 bytes; KVEntity payload
+// Index structure: entries ---4 bytes; (keyLength ---4 bytes; key; offset ---8
+// bytes) per entry; lastKeyLength ---4 bytes; lastKey
+// Footer structure: indexOffset ---8 bytes; records ---4 bytes; magic ---4 bytes
+public class SSTable {
+	private static final int INDEX_INTERVAL = 16;
+	private static final int FOOTER_LENGTH = 16;
+	private static final int MAGIC = 0x4b565353;
+
+	public final long id;
+	public final File file;
+	public final String firstKey;
+	public final String lastKey;
+	public final int records;
+
+	private final FileChannel channel;
+	private final String[] indexKeys;
+	private final long[] indexOffsets;
+	private final long indexOffset;
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	private SSTable(long id, File file) throws IOException {
+		this.id = id;
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+		ByteBuffer footer = ByteBuffer.allocate(FOOTER_LENGTH);
+		readFully(footer, channel.size() - FOOTER_LENGTH);
+		footer.flip();
+		indexOffset = footer.getLong();
+		records = footer.getInt();
+		if (footer.getInt() != MAGIC) {
+			channel.close();
+			throw new IOException(String.format("%s is not a sorted table", file));
+		}
+
+		ByteBuffer index = ByteBuffer.allocate((int) (channel.size() - FOOTER_LENGTH - indexOffset));
+		readFully(index, indexOffset);
+		index.flip();
+		int entries = index.getInt();
+		indexKeys = new String[entries];
+		indexOffsets = new long[entries];
+		for (int i = 0; i < entries; i++) {
+			indexKeys[i] = readString(index);
+			indexOffsets[i] = index.getLong();
+		}
+		lastKey = readString(index);
+		firstKey = entries == 0 ? null : indexKeys[0];
+	}
+
+	/**
+	 * Open an existing table
+	 *
+	 * @param id   the id of the table
+	 * @param file the file containing the table
+	 * @return the opened table
+	 * @throws IOException
+	 */
+	public static SSTable open(long id, File file) throws IOException {
+		return new SSTable(id, file);
+	}
+
+	/**
+	 * Write the given pairs, which have to be sorted by key, to a new table. A
+	 * pair with a null value is written as tombstone.
+	 *
+	 * @param id    the id of the new table
+	 * @param file  the file the table is written to
+	 * @param pairs the sorted pairs
+	 * @return the opened table
+	 * @throws IOException
+	 */
+	public static SSTable write(long id, File file, Iterator<Map.Entry<String, KVData>> pairs) throws IOException {
+		ArrayList<String> indexKeys = new ArrayList<>();
+		ArrayList<Long> indexOffsets = new ArrayList<>();
+		String lastKey = "";
+		long offset = 0;
+		int records = 0;
+
+		try (FileOutputStream fstream = new FileOutputStream(file);
+				DataOutputStream ostream = new DataOutputStream(new BufferedOutputStream(fstream, 1 << 16))) {
+			while (pairs.hasNext()) {
+				Map.Entry<String, KVData> pair = pairs.next();
+				if (records % INDEX_INTERVAL == 0) {
+					indexKeys.add(pair.getKey());
+					indexOffsets.add(offset);
+				}
+
+				byte[] payload = new KVEntity(pair.getKey(), pair.getValue()).marshall();
+				ostream.writeByte(pair.getValue() == null ? SegmentedLog.TOMBSTONE : SegmentedLog.PUT);
+				ostream.writeInt(payload.length);
+				ostream.write(payload);
+
+				offset += 5 + payload.length;
+				lastKey = pair.getKey();
+				records++;
+			}
+
+			ostream.writeInt(indexKeys.size());
+			for (int i = 0; i < indexKeys.size(); i++) {
+				writeString(ostream, indexKeys.get(i));
+				ostream.writeLong(indexOffsets.get(i));
+			}
+			writeString(ostream, lastKey);
+
+			ostream.writeLong(offset);
+			ostream.writeInt(records);
+			ostream.writeInt(MAGIC);
+			ostream.flush();
+			fstream.getFD().sync();
+		}
+
+		return open(id, file);
+	}
+
+	/**
+	 * Look up a key in the table.
+	 *
+	 * @param key the key to be looked up
+	 * @return null if the table does not contain the key, an entry with a null
+	 *         value if the key was removed, otherwise an entry with the stored
+	 *         value
+	 * @throws IOException
+	 */
+	public Map.Entry<String, KVData> get(String key) throws IOException {
+		if (records == 0 || key.compareTo(firstKey) < 0 || key.compareTo(lastKey) > 0) {
+			return null;
+		}
+
+		int low = 0;
+		int high = indexKeys.length - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (indexKeys[middle].compareTo(key) <= 0) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+
+		long blockStart = indexOffsets[low];
+		long blockEnd = low + 1 < indexOffsets.length ? indexOffsets[low + 1] : indexOffset;
+		ByteBuffer block = ByteBuffer.allocate((int) (blockEnd - blockStart));
+		readFully(block, blockStart);
+
+		DataInputStream istream = new DataInputStream(new ByteArrayInputStream(block.array()));
+		for (Map.Entry<String, KVData> record; (record = readRecord(istream)) != null;) {
+			int comparison = record.getKey().compareTo(key);
+			if (comparison == 0) {
+				return record;
+			} else if (comparison > 0) {
+				break;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Iterate over all records of the table in key order, tombstones are returned
+	 * as entries with a null value. The records are read through the channel of
+	 * the table, so the table has to be acquired until the iteration is done,
+	 * even if its file was deleted in the meantime.
+	 *
+	 * @return the iterator over the records, it throws an
+	 *         {@link UncheckedIOException} if a record cannot be read
+	 */
+	public Iterator<Map.Entry<String, KVData>> iterator() {
+		DataInputStream istream = new DataInputStream(new RecordStream());
+		return new Iterator<Map.Entry<String, KVData>>() {
+			private int read = 0;
+			private Map.Entry<String, KVData> next = advance();
+
+			private Map.Entry<String, KVData> advance() {
+				try {
+					if (read++ < records) {
+						Map.Entry<String, KVData> record = readRecord(istream);
+						if (record == null) {
+							throw new EOFException(String.format("Unexpected end of %s", file));
+						}
+						return record;
+					}
+					return null;
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public Map.Entry<String, KVData> next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				Map.Entry<String, KVData> current = next;
+				next = advance();
+				return current;
+			}
+		};
+	}
+
+	/**
+	 * @return the size of the table file in bytes
+	 */
+	public long size() {
+		return file.length();
+	}
+
+	/**
+	 * Check whether the key ranges of both tables overlap
+	 *
+	 * @param other the other table
+	 * @return true if there is a key that can be in both tables
+	 */
+	public boolean overlaps(SSTable other) {
+		return records > 0 && other.records > 0 && firstKey.compareTo(other.lastKey) <= 0
+				&& other.firstKey.compareTo(lastKey) <= 0;
+	}
+
+	/**
+	 * Register a reader of the table, so that the file is not closed while it is
+	 * being read.
+	 *
+	 * @return false if the table was already released
+	 */
+	public boolean acquire() {
+		while (true) {
+			int current = references.get();
+			if (current == 0) {
+				return false;
+			}
+			if (references.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Unregister a reader or the owner of the table, the file is closed when the
+	 * last one released it.
+	 */
+	public void release() {
+		if (references.decrementAndGet() == 0) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				BaseDatabase.logger.warn(e);
+			}
+		}
+	}
+
+	private static Map.Entry<String, KVData> readRecord(DataInputStream istream) throws IOException {
+		byte op;
+		byte[] payload;
+		try {
+			op = istream.readByte();
+			payload = new byte[istream.readInt()];
+			istream.readFully(payload);
+		} catch (EOFException e) {
+			return null;
+		}
+
+		KVEntity entity = new KVEntity();
+		if (!entity.populate(ByteBuffer.wrap(payload))) {
+			throw new IOException("Corrupt record in table");
+		}
+		return new SimpleImmutableEntry<>(entity.getKey(), op == SegmentedLog.PUT ? entity.getValue() : null);
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0) {
+				throw new EOFException(String.format("Unexpected end of %s", file));
+			}
+		}
+	}
+
+	/**
+	 * Reads the records section of the table through its channel from an own
+	 * position, so several iterations can share the channel
+	 */
+	private class RecordStream extends InputStream {
+		private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		private long position;
+
+		RecordStream() {
+			buffer.flip();
+		}
+
+		@Override
+		public int read() throws IOException {
+			return fill() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int read = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, read);
+			return read;
+		}
+
+		private boolean fill() throws IOException {
+			if (buffer.hasRemaining()) {
+				return true;
+			}
+			if (position >= indexOffset) {
+				return false;
+			}
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), indexOffset - position));
+			readFully(buffer, position);
+			buffer.flip();
+			position += buffer.limit();
+			return true;
+		}
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(DataOutputStream ostream, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		ostream.writeInt(bytes.length);
+		ostream.write(bytes);
+	}
+}
@@ -0,0 +1,387 @@
+package app_kvDatabase;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * This class handles an append-only log that is split into numbered segment
+ * files. Every mutation of a database is appended as one record, the state of
+ * the database is rebuilt by replaying all segments in order. When an append
+ * is forced to disk is decided by the {@link Durability} of the log.
+ *
+ * @author Uy Ha
+ *
+ */
+// Record structure: op ---1 byte; payloadLength ---4 bytes; payload
+// Batch payload structure: records of the structure above, back to back
+public class SegmentedLog {
+	private static final Logger logger = LogManager.getLogger("kvServer");
+
+	public static final byte PUT = 1;
+	public static final byte TOMBSTONE = 2;
+	/**
+	 * A record containing several records that are replayed together or not at
+	 * all
+	 */
+	public static final byte BATCH = 3;
+
+	private static final int HEADER_LENGTH = 5;
+
+	private final File directory;
+	private final String prefix;
+	private final Pattern segmentPattern;
+	private final long segmentSize;
+	private final TreeMap<Long, File> segments = new TreeMap<>();
+	private final GroupCommit commit;
+	private volatile GroupCommit.Sync beforeSync;
+
+	private FileOutputStream activeFile;
+	private DataOutputStream activeStream;
+	private long activeSequence;
+	private long activeBytes;
+	private long totalBytes;
+
+
+	/**
+	 * Open the log whose segments are named {@code <basePath>.<sequence>.log},
+	 * appends are not forced to disk.
+	 *
+	 * @param basePath    the path the segment names are derived from
+	 * @param segmentSize the size after which a new segment is started
+	 */
+	public SegmentedLog(String basePath, long segmentSize) {
+		this(basePath, segmentSize, Durability.ASYNC);
+	}
+
+	/**
+	 * Open the log whose segments are named {@code <basePath>.<sequence>.log}
+	 *
+	 * @param basePath    the path the segment names are derived from
+	 * @param segmentSize the size after which a new segment is started
+	 * @param durability  when the appends are forced to disk
+	 */
+	public SegmentedLog(String basePath, long segmentSize, Durability durability) {
+		File base = new File(basePath).getAbsoluteFile();
+		this.directory = base.getParentFile();
+		this.prefix = base.getName();
+		this.segmentPattern = Pattern.compile(Pattern.quote(prefix) + "\\.(\\d+)\\.log");
+		this.segmentSize = segmentSize;
+
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				Matcher matcher = segmentPattern.matcher(file.getName());
+				if (matcher.matches()) {
+					segments.put(Long.parseLong(matcher.group(1)), file);
+					totalBytes += file.length();
+				}
+			}
+		}
+		activeSequence = segments.isEmpty() ? 0 : segments.lastKey();
+		commit = new GroupCommit(durability, this::sync, "group-commit-" + prefix);
+	}
+
+	/**
+	 * Read every record of every segment in order and pass it to the handler. A
+	 * record that was only partially written, e.g. because the server crashed in
+	 * the middle of an append, is cut off from the segment.
+	 *
+	 * @param handler the handler receiving the records
+	 * @throws IOException
+	 */
+	public synchronized void replay(BulkLoader.RecordHandler handler) throws IOException {
+		replay(0, handler);
+	}
+
+	/**
+	 * Read every record of the segments starting at the given sequence number.
+	 *
+	 * @param fromSequence the first segment to be replayed
+	 * @param handler      the handler receiving the records
+	 * @throws IOException
+	 */
+	public synchronized void replay(long fromSequence, BulkLoader.RecordHandler handler) throws IOException {
+		for (File segment : segments.tailMap(fromSequence).values()) {
+			long validLength = BulkLoader.readRecords(segment, handler);
+
+			if (validLength < segment.length()) {
+				logger.warn(String.format("Truncating torn record at the end of %s", segment.getName()));
+				totalBytes -= segment.length() - validLength;
+				try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+					file.setLength(validLength);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Append a record to the active segment, a new segment is started when the
+	 * active one grows beyond the segment size. The record is handed to the
+	 * operating system but not necessarily forced to disk, see
+	 * {@link #awaitDurable(long)}.
+	 *
+	 * @param op      the kind of the record, {@link #PUT} or {@link #TOMBSTONE}
+	 * @param payload the marshalled entity
+	 * @return the ticket of the record
+	 * @throws IOException
+	 */
+	public synchronized long append(byte op, byte[] payload) throws IOException {
+		if (activeStream == null || activeBytes >= segmentSize) {
+			roll();
+		}
+
+		activeStream.writeByte(op);
+		activeStream.writeInt(payload.length);
+		activeStream.write(payload);
+		activeStream.flush();
+
+		activeBytes += HEADER_LENGTH + payload.length;
+		totalBytes += HEADER_LENGTH + payload.length;
+		return commit.register();
+	}
+
+	/**
+	 * Append several records as one {@link #BATCH} record, so a torn write
+	 * loses all of them and not only the last ones.
+	 *
+	 * @param ops      the kinds of the records
+	 * @param payloads the marshalled entities
+	 * @return the ticket of the batch
+	 * @throws IOException
+	 */
+	public synchronized long appendBatch(byte[] ops, List<byte[]> payloads) throws IOException {
+		int length = 0;
+		for (byte[] payload : payloads) {
+			length += HEADER_LENGTH + payload.length;
+		}
+		if (activeStream == null || activeBytes >= segmentSize) {
+			roll();
+		}
+
+		activeStream.writeByte(BATCH);
+		activeStream.writeInt(length);
+		for (int i = 0; i < payloads.size(); i++) {
+			activeStream.writeByte(ops[i]);
+			activeStream.writeInt(payloads.get(i).length);
+			activeStream.write(payloads.get(i));
+		}
+		activeStream.flush();
+
+		activeBytes += HEADER_LENGTH + length;
+		totalBytes += HEADER_LENGTH + length;
+		return commit.register();
+	}
+
+	/**
+	 * Pass the records of a {@link #BATCH} record to the handler
+	 *
+	 * @param batch   the payload of the batch record
+	 * @param handler the handler receiving the records
+	 * @throws BulkLoader.CorruptRecordException if the batch is not complete
+	 * @throws IOException                       if the handler failed
+	 */
+	public static void readBatch(ByteBuffer batch, BulkLoader.RecordHandler handler) throws IOException {
+		while (batch.hasRemaining()) {
+			if (batch.remaining() < HEADER_LENGTH) {
+				throw new BulkLoader.CorruptRecordException("Corrupt batch record");
+			}
+			byte op = batch.get();
+			int length = batch.getInt();
+			if (length < 0 || length > batch.remaining()) {
+				throw new BulkLoader.CorruptRecordException("Corrupt batch record");
+			}
+			ByteBuffer payload = batch.slice();
+			payload.limit(length);
+			handler.accept(op, payload);
+			batch.position(batch.position() + length);
+		}
+	}
+
+	/**
+	 * Wait until the record with the given ticket is forced to disk as required
+	 * by the durability of the log. This must not be called while holding a lock
+	 * other writers need, otherwise they cannot join the same group commit.
+	 *
+	 * @param ticket the ticket returned by {@link #append(byte, byte[])}
+	 * @throws IOException if the record could not be forced to disk
+	 */
+	public void awaitDurable(long ticket) throws IOException {
+		commit.await(ticket);
+	}
+
+	/**
+	 * @return when the appends are forced to disk
+	 */
+	public Durability getDurability() {
+		return commit.getDurability();
+	}
+
+	/**
+	 * Force other files before every force of the log, e.g. the files the
+	 * records refer to, so a record never reaches the disk before them
+	 *
+	 * @param beforeSync forces the other files, it is called while the log is
+	 *                   locked
+	 */
+	public void setBeforeSync(GroupCommit.Sync beforeSync) {
+		this.beforeSync = beforeSync;
+	}
+
+	/**
+	 * @return forces the files the records refer to, null if there are none
+	 */
+	public GroupCommit.Sync getBeforeSync() {
+		return beforeSync;
+	}
+
+	/**
+	 * Replace the whole log by a single segment containing only the given
+	 * records. The new segment is written to a temporary file first and renamed
+	 * afterwards, so a crash in between leaves the old segments untouched.
+	 *
+	 * @param payloads the marshalled entities that are still alive
+	 * @return the sequence number of the new segment
+	 * @throws IOException
+	 */
+	public synchronized long rewrite(Iterable<byte[]> payloads) throws IOException {
+		closeActive();
+
+		long sequence = activeSequence + 1;
+		File temporary = new File(directory, prefix + ".compact.tmp");
+		long written = 0;
+		try (FileOutputStream fstream = new FileOutputStream(temporary);
+				DataOutputStream ostream = new DataOutputStream(new BufferedOutputStream(fstream, 1 << 16))) {
+			for (byte[] payload : payloads) {
+				ostream.writeByte(PUT);
+				ostream.writeInt(payload.length);
+				ostream.write(payload);
+				written += HEADER_LENGTH + payload.length;
+			}
+			ostream.flush();
+			fstream.getFD().sync();
+		}
+
+		File compacted = segmentFile(sequence);
+		if (!temporary.renameTo(compacted)) {
+			throw new IOException(String.format("Cannot rename %s to %s", temporary, compacted));
+		}
+
+		ArrayList<Map.Entry<Long, File>> obsolete = new ArrayList<>(segments.entrySet());
+		for (Map.Entry<Long, File> entry : obsolete) {
+			if (!entry.getValue().delete()) {
+				logger.warn(String.format("Cannot delete obsolete segment %s", entry.getValue()));
+			}
+			segments.remove(entry.getKey());
+		}
+
+		segments.put(sequence, compacted);
+		activeSequence = sequence;
+		totalBytes = written;
+		return sequence;
+	}
+
+	/**
+	 * Start a new segment, every following append goes to the new segment.
+	 *
+	 * @return the sequence number of the new segment
+	 * @throws IOException
+	 */
+	public synchronized long startSegment() throws IOException {
+		roll();
+		return activeSequence;
+	}
+
+	/**
+	 * Delete all segments before the given sequence number, e.g. because their
+	 * records were persisted somewhere else.
+	 *
+	 * @param sequence the first segment to be kept
+	 */
+	public synchronized void deleteBefore(long sequence) {
+		ArrayList<Map.Entry<Long, File>> obsolete = new ArrayList<>(segments.headMap(sequence).entrySet());
+		for (Map.Entry<Long, File> entry : obsolete) {
+			totalBytes -= entry.getValue().length();
+			if (!entry.getValue().delete()) {
+				logger.warn(String.format("Cannot delete obsolete segment %s", entry.getValue()));
+			}
+			segments.remove(entry.getKey());
+		}
+	}
+
+	/**
+	 * @return the number of bytes in all segments of the log
+	 */
+	public synchronized long size() {
+		return totalBytes;
+	}
+
+	/**
+	 * Close the active segment, the next append starts a new one.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		commit.close();
+		synchronized (this) {
+			closeActive();
+		}
+	}
+
+	/**
+	 * Force everything appended so far to disk, after the files forced before
+	 * the log
+	 */
+	private synchronized void sync() throws IOException {
+		if (activeStream != null) {
+			GroupCommit.Sync before = beforeSync;
+			if (before != null) {
+				before.sync();
+			}
+			activeStream.flush();
+			activeFile.getFD().sync();
+		}
+	}
+
+	private void roll() throws IOException {
+		closeActive();
+		activeSequence++;
+		File segment = segmentFile(activeSequence);
+		segments.put(activeSequence, segment);
+		activeFile = new FileOutputStream(segment, true);
+		activeStream = new DataOutputStream(new BufferedOutputStream(activeFile, 1 << 16));
+		activeBytes = 0;
+	}
+
+	/**
+	 * Close the active segment, it is forced to disk first unless the appends
+	 * are asynchronous, so no acknowledged record is lost with it.
+	 */
+	private void closeActive() throws IOException {
+		if (activeStream != null) {
+			if (commit.getDurability().mode != Durability.Mode.ASYNC) {
+				sync();
+			}
+			activeStream.close();
+			activeStream = null;
+			activeFile = null;
+		}
+	}
+
+	private File segmentFile(long sequence) {
+		return new File(directory, String.format("%s.%06d.log", prefix, sequence));
+	}
+}
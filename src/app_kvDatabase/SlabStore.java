@@ -0,0 +1,265 @@
+package app_kvDatabase;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * This class keeps the values of a {@link KVDatabase} outside of the Java
+ * heap, so the heap only holds a small {@link Handle} per pair and the garbage
+ * collector does not have to trace or copy the values. The values are copied
+ * into slots of direct buffers of {@link #SLAB_SIZE} bytes, every buffer is
+ * split into slots of one size class. There are four size classes between
+ * two powers of two, so a value of more than {@link #MIN_SLOT_SIZE} bytes
+ * wastes at most a fifth of its slot. Freed slots are reused by the next value
+ * of their size class, the buffers are never released.
+ * <p>
+ * Freeing a slot increments its generation, a read of a handle whose
+ * generation does not match anymore fails instead of returning the value that
+ * reuses the slot. Reads are optimistic and only lock the buffer if a slot of
+ * it was freed during the read.
+ * </p>
+ *
+ * @author Uy Ha
+ *
+ */
+public class SlabStore {
+	/**
+	 * Values whose stored form is longer than this number of bytes are not kept
+	 * in slabs
+	 */
+	public static final int MAX_VALUE_LENGTH = 64 << 10;
+
+	private static final int SLAB_SIZE = 1 << 20;
+	private static final int MIN_SLOT_SIZE = 32;
+	private static final int CLASSES_PER_DOUBLING = 4;
+
+	/**
+	 * The data of a pair whose value is stored in a slab
+	 */
+	public static class Handle extends KVData {
+		public final int slab;
+		public final int slot;
+		public final int length;
+		public final int generation;
+		/**
+		 * Whether the stored bytes are compressed by {@link ValueCompression}
+		 */
+		public final boolean compressedValue;
+
+		public Handle(int ownerId, LocalDateTime delTime, byte[] token, int slab, int slot, int length,
+				int generation, boolean compressedValue) {
+			super(null, ownerId, delTime, token);
+			this.slab = slab;
+			this.slot = slot;
+			this.length = length;
+			this.generation = generation;
+			this.compressedValue = compressedValue;
+		}
+	}
+
+	/**
+	 * A direct buffer split into slots of the same size
+	 */
+	private static class Slab {
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(SLAB_SIZE);
+		private final int slotSize;
+		private final int[] generations;
+		private final StampedLock lock = new StampedLock();
+
+		private Slab(int slotSize) {
+			this.slotSize = slotSize;
+			generations = new int[SLAB_SIZE / slotSize];
+		}
+	}
+
+	/**
+	 * The slots of one size, the free ones are kept as slab << 32 | slot
+	 */
+	private static class SizeClass {
+		private final int slotSize;
+		private long[] free = new long[16];
+		private int freeCount;
+		private int current = -1;
+		private int nextSlot;
+
+		private SizeClass(int slotSize) {
+			this.slotSize = slotSize;
+		}
+	}
+
+	private final CopyOnWriteArrayList<Slab> slabs = new CopyOnWriteArrayList<>();
+	private final SizeClass[] classes;
+	private final AtomicLong slotBytes = new AtomicLong();
+	private final AtomicLong valueBytes = new AtomicLong();
+
+	public SlabStore() {
+		classes = new SizeClass[sizeClass(MAX_VALUE_LENGTH) + 1];
+		classes[0] = new SizeClass(MIN_SLOT_SIZE);
+		for (int i = 1; i < classes.length; i++) {
+			int doubling = MIN_SLOT_SIZE << ((i - 1) / CLASSES_PER_DOUBLING);
+			int step = doubling / CLASSES_PER_DOUBLING;
+			classes[i] = new SizeClass(doubling + ((i - 1) % CLASSES_PER_DOUBLING + 1) * step);
+		}
+	}
+
+	/**
+	 * Copy a value into a free slot
+	 *
+	 * @param bytes      the stored bytes of the value, at most
+	 *                   {@link #MAX_VALUE_LENGTH}
+	 * @param ownerId    the owner of the pair
+	 * @param delTime    the deletion time of the pair
+	 * @param token      the hash of the key
+	 * @param compressed whether the bytes are compressed
+	 * @return the handle to be stored instead of the value
+	 */
+	public Handle allocate(byte[] bytes, int ownerId, LocalDateTime delTime, byte[] token, boolean compressed) {
+		if (bytes.length > MAX_VALUE_LENGTH) {
+			throw new IllegalArgumentException(
+					String.format("Values of the slab store have at most %d bytes, received %d", MAX_VALUE_LENGTH,
+							bytes.length));
+		}
+
+		SizeClass sizeClass = classes[sizeClass(bytes.length)];
+		int slab;
+		int slot;
+		synchronized (sizeClass) {
+			if (sizeClass.freeCount > 0) {
+				long free = sizeClass.free[--sizeClass.freeCount];
+				slab = (int) (free >>> 32);
+				slot = (int) free;
+			} else {
+				if (sizeClass.current < 0 || sizeClass.nextSlot == SLAB_SIZE / sizeClass.slotSize) {
+					sizeClass.current = addSlab(sizeClass.slotSize);
+					sizeClass.nextSlot = 0;
+				}
+				slab = sizeClass.current;
+				slot = sizeClass.nextSlot++;
+			}
+		}
+
+		// a reused slot was freed under the lock of its slab, readers of the old
+		// value notice its new generation
+		Slab target = slabs.get(slab);
+		ByteBuffer buffer = target.buffer.duplicate();
+		buffer.position(slot * target.slotSize);
+		buffer.put(bytes);
+		slotBytes.addAndGet(target.slotSize);
+		valueBytes.addAndGet(bytes.length);
+		return new Handle(ownerId, delTime, token, slab, slot, bytes.length, target.generations[slot], compressed);
+	}
+
+	/**
+	 * Copy the stored bytes of a value onto the heap
+	 *
+	 * @param handle the handle returned by the allocation
+	 * @return the stored bytes, null if the slot was freed in the meantime
+	 */
+	public byte[] read(Handle handle) {
+		Slab slab = slabs.get(handle.slab);
+		byte[] bytes = new byte[handle.length];
+		long stamp = slab.lock.tryOptimisticRead();
+		boolean live = copy(slab, handle, bytes);
+		if (!slab.lock.validate(stamp)) {
+			stamp = slab.lock.readLock();
+			try {
+				live = copy(slab, handle, bytes);
+			} finally {
+				slab.lock.unlockRead(stamp);
+			}
+		}
+		return live ? bytes : null;
+	}
+
+	/**
+	 * Free the slot of a value, it must not be referred to by the database
+	 * anymore
+	 *
+	 * @param handle the handle returned by the allocation
+	 */
+	public void free(Handle handle) {
+		Slab slab = slabs.get(handle.slab);
+		long stamp = slab.lock.writeLock();
+		try {
+			if (slab.generations[handle.slot] != handle.generation) {
+				return;
+			}
+			slab.generations[handle.slot]++;
+		} finally {
+			slab.lock.unlockWrite(stamp);
+		}
+
+		SizeClass sizeClass = classes[sizeClass(slab.slotSize)];
+		synchronized (sizeClass) {
+			if (sizeClass.freeCount == sizeClass.free.length) {
+				long[] grown = new long[2 * sizeClass.free.length];
+				System.arraycopy(sizeClass.free, 0, grown, 0, sizeClass.freeCount);
+				sizeClass.free = grown;
+			}
+			sizeClass.free[sizeClass.freeCount++] = (long) handle.slab << 32 | handle.slot;
+		}
+		slotBytes.addAndGet(-slab.slotSize);
+		valueBytes.addAndGet(-handle.length);
+	}
+
+	/**
+	 * @return the bytes of all slabs
+	 */
+	public long slabBytes() {
+		return (long) slabs.size() * SLAB_SIZE;
+	}
+
+	/**
+	 * @return the bytes of the slots holding a value
+	 */
+	public long slotBytes() {
+		return slotBytes.get();
+	}
+
+	/**
+	 * @return the bytes of the stored values
+	 */
+	public long valueBytes() {
+		return valueBytes.get();
+	}
+
+	/**
+	 * @return the share of the slab bytes that does not hold a value, because
+	 *         its slot is free or larger than the value
+	 */
+	public double fragmentation() {
+		long slabBytes = slabBytes();
+		return slabBytes == 0 ? 0 : 1 - (double) valueBytes() / slabBytes;
+	}
+
+	private synchronized int addSlab(int slotSize) {
+		slabs.add(new Slab(slotSize));
+		return slabs.size() - 1;
+	}
+
+	private static boolean copy(Slab slab, Handle handle, byte[] bytes) {
+		if (slab.generations[handle.slot] != handle.generation) {
+			return false;
+		}
+		ByteBuffer buffer = slab.buffer.duplicate();
+		buffer.position(handle.slot * slab.slotSize);
+		buffer.get(bytes);
+		return true;
+	}
+
+	/**
+	 * The smallest size class holding the given number of bytes
+	 */
+	private static int sizeClass(int length) {
+		if (length <= MIN_SLOT_SIZE) {
+			return 0;
+		}
+		// the power of two below the length, and the step of a quarter of it
+		int power = 31 - Integer.numberOfLeadingZeros(length - 1);
+		int step = ((length - 1) >>> (power - 2)) & (CLASSES_PER_DOUBLING - 1);
+		return (power - 5) * CLASSES_PER_DOUBLING + step + 1;
+	}
+}
@@ -0,0 +1,189 @@
+package app_kvDatabase;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This interface defines the operations a server needs from the storage of its
+ * own pairs and of the pairs it replicates, independent of how the pairs are
+ * persisted: point reads and writes, batches, range scans and point-in-time
+ * snapshots. The engines are created by {@link StorageEngines}.
+ * 
+ * @author Uy Ha
+ *
+ */
+public interface StorageEngine {
+
+	/**
+	 * A point-in-time view of the pairs of an engine, it has to be closed after
+	 * use. It is generic so the snapshots of {@link BaseDatabase}, which also
+	 * stores the accounts of the users, implement it.
+	 *
+	 * @param <K> the type of the keys
+	 * @param <V> the type of the values
+	 */
+	interface Snapshot<K, V> extends AutoCloseable {
+		/**
+		 * @param key the key of the pair
+		 * @return the value of the pair when the snapshot was opened, null if it
+		 *         did not exist
+		 */
+		V get(K key);
+
+		/**
+		 * @return all pairs when the snapshot was opened
+		 */
+		HashMap<K, V> getData();
+
+		/**
+		 * @param start the starting index of the range (exclusive)
+		 * @param end   the ending index of the range (inclusive)
+		 * @return the pairs in the range when the snapshot was opened
+		 */
+		HashMap<K, V> dataInRange(byte[] start, byte[] end);
+
+		/**
+		 * @param start the starting index of the range (exclusive)
+		 * @param end   the ending index of the range (inclusive)
+		 * @return the pairs outside of the range when the snapshot was opened
+		 */
+		HashMap<K, V> dataOutOfRange(byte[] start, byte[] end);
+
+		/**
+		 * Release the snapshot
+		 */
+		@Override
+		void close();
+	}
+
+	/**
+	 * Retrieve the data associated with the key
+	 * 
+	 * @param key the key of the pair
+	 * @return the data of the pair, null if the key does not exist
+	 */
+	KVData get(String key);
+
+	/**
+	 * Insert or update a pair
+	 * 
+	 * @param key   the key of the pair
+	 * @param value the data of the pair
+	 * @return the old data of the pair, null if the key did not exist
+	 */
+	KVData put(String key, KVData value);
+
+	/**
+	 * Remove a pair
+	 * 
+	 * @param key the key of the pair
+	 * @return the old data of the pair, null if the key did not exist
+	 */
+	KVData remove(String key);
+
+	/**
+	 * Insert or update several pairs under a single lock acquisition, waiting for
+	 * the disk only once
+	 * 
+	 * @param pairs the keys and data of the pairs
+	 */
+	void putAll(Map<String, KVData> pairs);
+
+	/**
+	 * Remove several pairs under a single lock acquisition, waiting for the disk
+	 * only once
+	 * 
+	 * @param keys the keys of the pairs
+	 */
+	void removeAll(Collection<String> keys);
+
+	/**
+	 * Replace the whole content of the storage by the given pairs
+	 * 
+	 * @param pairs the pairs sent by the coordinator
+	 */
+	void replicate(ArrayList<KVEntity> pairs);
+
+	/**
+	 * Collect the data in the given range
+	 * 
+	 * @param start the starting index to collect data (exclusive)
+	 * @param end   the ending index to collect data (inclusive)
+	 * @return the collected data
+	 */
+	HashMap<String, KVData> dataInRange(byte[] start, byte[] end);
+
+	/**
+	 * Collect the data outside of the given range
+	 * 
+	 * @param start the starting index of the range (exclusive)
+	 * @param end   the ending index of the range (inclusive)
+	 * @return the collected data
+	 */
+	HashMap<String, KVData> dataOutOfRange(byte[] start, byte[] end);
+
+	/**
+	 * @return all pairs of the storage
+	 */
+	HashMap<String, KVData> getData();
+
+	/**
+	 * Remove the pairs outside of the given range, e.g. after they were moved to
+	 * another server
+	 * 
+	 * @param start the starting index of the range (exclusive)
+	 * @param end   the ending index of the range (inclusive)
+	 */
+	default void removeOutOfRange(byte[] start, byte[] end) {
+		removeAll(dataOutOfRange(start, end).keySet());
+	}
+
+	/**
+	 * Open a point-in-time view of all pairs. By default the pairs are copied,
+	 * engines that can keep a view without copying override this.
+	 * 
+	 * @return the snapshot of the current pairs
+	 */
+	default Snapshot<String, KVData> snapshot() {
+		return new CopiedSnapshot(getData());
+	}
+
+	/**
+	 * Remove a pair if its deletion time has passed, a pair that was updated in
+	 * the meantime is kept
+	 * 
+	 * @param key the key of the pair
+	 * @param now the current time
+	 * @return true if the pair was removed
+	 */
+	boolean removeIfExpired(String key, LocalDateTime now);
+
+	/**
+	 * Remove the pairs whose deletion time has passed
+	 * 
+	 * @return the keys of the removed pairs
+	 */
+	default List<String> removeExpiredData() {
+		return removeExpiredData(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Remove the pairs that expired first, so a single call takes a bounded time
+	 * 
+	 * @param limit the maximum number of pairs to be removed
+	 * @return the keys of the removed pairs
+	 */
+	List<String> removeExpiredData(int limit);
+
+	/**
+	 * Persist pending writes and release the files of the storage
+	 * 
+	 * @throws IOException
+	 */
+	void close() throws IOException;
+}
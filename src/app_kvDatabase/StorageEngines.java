@@ -0,0 +1,150 @@
+package app_kvDatabase;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * This class creates the storage engine a server was initialized with. An
+ * engine is written as {@code <name>[:<partitions>]}, e.g. {@code LOG:8}
+ * splits the pairs into 8 {@link PartitionedDatabase partitions} of the
+ * {@link #LOG} engine.
+ * 
+ * @author Uy Ha
+ *
+ */
+public class StorageEngines {
+	/**
+	 * In-memory map persisted as an append-only log, see {@link KVDatabase}
+	 */
+	public static final String LOG = "LOG";
+	/**
+	 * Like {@link #LOG} with large values kept in a {@link ValueLog}
+	 */
+	public static final String VLOG = "VLOG";
+	/**
+	 * Like {@link #LOG} with the values kept off the heap in a {@link SlabStore}
+	 */
+	public static final String SLAB = "SLAB";
+	/**
+	 * Log-structured merge tree, see {@link LSMDatabase}
+	 */
+	public static final String LSM = "LSM";
+	/**
+	 * Values on disk, keys and value locations in memory, see
+	 * {@link BitcaskDatabase}
+	 */
+	public static final String BITCASK = "BITCASK";
+	/**
+	 * Like {@link #BITCASK} with memory mapped segments, see
+	 * {@link MappedDatabase}
+	 */
+	public static final String MMAP = "MMAP";
+	/**
+	 * Like {@link #LOG} without any files, the pairs are only kept in memory and
+	 * survive a restart only through replication
+	 */
+	public static final String MEMORY = "MEMORY";
+
+	/**
+	 * Check whether the given name is the name of a storage engine
+	 * 
+	 * @param engine the name of the engine, optionally followed by the number of
+	 *               partitions
+	 * @return true if the engine exists
+	 */
+	public static boolean exists(String engine) {
+		String[] parts = engine.toUpperCase().split(":", -1);
+		if (parts.length > 2 || parts.length == 2 && partitions(parts[1]) < 0) {
+			return false;
+		}
+		String name = parts[0];
+		return name.equals(LOG) || name.equals(VLOG) || name.equals(SLAB) || name.equals(LSM)
+				|| name.equals(BITCASK) || name.equals(MMAP) || name.equals(MEMORY);
+	}
+
+	/**
+	 * Open the storage engine with the given name, writes are not forced to disk
+	 * 
+	 * @param engine the name of the engine, {@link #LOG}, {@link #VLOG},
+	 *               {@link #SLAB}, {@link #LSM}, {@link #BITCASK},
+	 *               {@link #MMAP} or {@link #MEMORY}
+	 * @param dbFile the path the names of the engine's files are derived from
+	 * @return the opened engine
+	 * @throws IOException if the files of the engine cannot be read
+	 */
+	public static StorageEngine open(String engine, String dbFile) throws IOException {
+		return open(engine, dbFile, Durability.ASYNC);
+	}
+
+	/**
+	 * Open the storage engine with the given name
+	 * 
+	 * @param engine     the name of the engine, {@link #LOG}, {@link #VLOG},
+	 *                   {@link #SLAB}, {@link #LSM}, {@link #BITCASK},
+	 *                   {@link #MMAP} or {@link #MEMORY}
+	 *                   optionally followed by the number of partitions
+	 * @param dbFile     the path the names of the engine's files are derived
+	 *                   from, unused by {@link #MEMORY}
+	 * @param durability when the writes of the engine are forced to disk,
+	 *                   unused by {@link #MEMORY}
+	 * @return the opened engine
+	 * @throws IOException if the files of the engine cannot be read, or were
+	 *                     written with another number of partitions
+	 */
+	public static StorageEngine open(String engine, String dbFile, Durability durability) throws IOException {
+		int separator = engine.indexOf(':');
+		if (separator >= 0) {
+			int count = partitions(engine.substring(separator + 1));
+			if (count < 0) {
+				throw new IllegalArgumentException(
+						String.format("The number of partitions has to be between 1 and %d, received %s",
+								PartitionedDatabase.MAX_PARTITIONS, engine));
+			}
+			String name = engine.substring(0, separator);
+			return count == 1 ? open(name, dbFile, durability)
+					: new PartitionedDatabase(name, dbFile, durability, count);
+		}
+		if (!engine.equalsIgnoreCase(MEMORY) && new File(dbFile + ".partitions").exists()) {
+			throw new IOException(String.format("%s was written with partitions, opened without partitions",
+					new File(dbFile).getName()));
+		}
+
+		switch (engine.toUpperCase()) {
+		case LOG:
+			return new KVDatabase(dbFile, durability);
+		case VLOG:
+			return new KVDatabase(dbFile, durability, KVDatabase.DEFAULT_COMPRESSION_THRESHOLD,
+					KVDatabase.DEFAULT_VALUE_LOG_THRESHOLD);
+		case SLAB:
+			return new KVDatabase(dbFile, durability, KVDatabase.DEFAULT_COMPRESSION_THRESHOLD, Integer.MAX_VALUE,
+					true);
+		case LSM:
+			return new LSMDatabase(dbFile, durability);
+		case BITCASK:
+			return new BitcaskDatabase(dbFile, durability);
+		case MMAP:
+			return new MappedDatabase(dbFile, durability);
+		case MEMORY:
+			return new KVDatabase();
+		default:
+			throw new IllegalArgumentException(
+					String.format("Storage engine has to be one of %s, %s, %s, %s, %s, %s or %s, received %s", LOG,
+							VLOG, SLAB, LSM, BITCASK, MMAP, MEMORY, engine));
+		}
+	}
+
+	/**
+	 * Parse the number of partitions of an engine
+	 * 
+	 * @param value the number following the name of the engine
+	 * @return the number of partitions, -1 if it is malformed or out of range
+	 */
+	private static int partitions(String value) {
+		try {
+			int count = Integer.parseInt(value);
+			return count >= 1 && count <= PartitionedDatabase.MAX_PARTITIONS ? count : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -9,12 +9,15 @@ import common.hash.Hash;
 public class UserDatabase extends BaseDatabase<String, byte[], Account> {
 
 	/**
+	 * The {@link OwnerDictionary} of the node is persisted next to the user
+	 * database, every user gets an owner id when it is added.
 	 * 
 	 * @param dbFile
 	 * 
 	 */
 	public UserDatabase(String dbFile) throws IOException {
 		super(dbFile);
+		OwnerDictionary.node().persist(dbFile + ".owners");
 	}
 
 	/**
@@ -27,6 +30,7 @@ public class UserDatabase extends BaseDatabase<String, byte[], Account> {
 	 */
 	public void put(String username, String password) throws IOException {
 		put(username, hash(password));
+		OwnerDictionary.node().id(username);
 	}
 
 	/**
@@ -47,7 +51,7 @@ public class UserDatabase extends BaseDatabase<String, byte[], Account> {
 	 * @return
 	 */
 	public boolean exists(String username) {
-		return db.keySet().contains(username);
+		return db.containsKey(username);
 	}
 
 	@Override
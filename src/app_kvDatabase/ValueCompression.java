@@ -0,0 +1,84 @@
+package app_kvDatabase;
+
+import static common.util.EncodeUtils.getVarInt;
+import static common.util.EncodeUtils.putVarInt;
+import static common.util.EncodeUtils.varIntLength;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import common.util.Bytes;
+
+/**
+ * This class compresses large values with {@link Deflater}, the compressed
+ * form starts with the length of the uncompressed value so it is inflated into
+ * a buffer of the right size.
+ * 
+ * @author Uy Ha
+ *
+ */
+// Compressed structure: valueLength ---varint; deflated value
+public class ValueCompression {
+
+	/**
+	 * Compress a value
+	 * 
+	 * @param value the value to be compressed
+	 * @return the compressed value, or null if it is not smaller than the value
+	 */
+	public static byte[] compress(Bytes value) {
+		byte[] bytes = value.array();
+		int prefix = varIntLength(bytes.length);
+		if (prefix >= bytes.length) {
+			return null;
+		}
+		byte[] output = new byte[bytes.length];
+		putVarInt(ByteBuffer.wrap(output), bytes.length);
+
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(bytes);
+			deflater.finish();
+			int length = prefix;
+			while (!deflater.finished() && length < output.length) {
+				length += deflater.deflate(output, length, output.length - length);
+			}
+			return deflater.finished() ? Arrays.copyOf(output, length) : null;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Restore a value compressed by {@link #compress(Bytes)}
+	 * 
+	 * @param compressed the compressed value
+	 * @return the value
+	 * @throws IllegalArgumentException if the compressed value is corrupt
+	 */
+	public static Bytes decompress(byte[] compressed) {
+		ByteBuffer buffer = ByteBuffer.wrap(compressed);
+		byte[] bytes = new byte[getVarInt(buffer)];
+
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed, buffer.position(), buffer.remaining());
+			int length = 0;
+			while (length < bytes.length) {
+				int inflated = inflater.inflate(bytes, length, bytes.length - length);
+				if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+					throw new IllegalArgumentException("Compressed value is truncated");
+				}
+				length += inflated;
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("Compressed value is corrupt", e);
+		} finally {
+			inflater.end();
+		}
+		return Bytes.wrap(bytes);
+	}
+}
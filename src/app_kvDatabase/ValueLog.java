@@ -0,0 +1,297 @@
+package app_kvDatabase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * This class keeps large values of a {@link KVDatabase} outside of its log.
+ * The values are appended to segment files and the database only keeps and
+ * logs a {@link Reference} to them, so checkpoints and range extraction do not
+ * copy the values. The live bytes of every segment are counted, once at most
+ * half of a segment is live its live values are moved to the active segment.
+ * The segment is deleted after the next checkpoint, which no longer refers to
+ * it.
+ *
+ * @author Uy Ha
+ *
+ */
+// File structure: values back to back, named <basePath>.<id>.vlog
+public class ValueLog {
+	private static final Logger logger = LogManager.getLogger("kvServer");
+
+	private static final long SEGMENT_SIZE = 64 << 20;
+	private static final double COLLECT_RATIO = 0.5;
+
+	/**
+	 * The data of a pair whose value is stored in the value log
+	 */
+	public static class Reference extends KVData {
+		public final int segment;
+		public final long offset;
+		public final int length;
+		/**
+		 * Whether the stored bytes are compressed by {@link ValueCompression}
+		 */
+		public final boolean compressedValue;
+
+		public Reference(int ownerId, LocalDateTime delTime, byte[] token, int segment, long offset, int length,
+				boolean compressedValue) {
+			super(null, ownerId, delTime, token);
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.compressedValue = compressedValue;
+		}
+	}
+
+	private final File directory;
+	private final String prefix;
+	private final ConcurrentHashMap<Integer, FileChannel> segments = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Integer, Long> sizes = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Integer, AtomicLong> liveBytes = new ConcurrentHashMap<>();
+	private final Set<Integer> collecting = ConcurrentHashMap.newKeySet();
+	private final ArrayList<Integer> collected = new ArrayList<>();
+
+	private volatile int activeSegment;
+	private long activeSize;
+	/**
+	 * The number of appended values and how many of them were forced to disk
+	 */
+	private long appended;
+	private long forced;
+
+	/**
+	 * Open the segments whose files are named after the given path and start a
+	 * new segment to append to
+	 *
+	 * @param basePath the path the segment names are derived from
+	 * @throws IOException
+	 */
+	public ValueLog(String basePath) throws IOException {
+		File base = new File(basePath).getAbsoluteFile();
+		directory = base.getParentFile();
+		prefix = base.getName();
+		Pattern segmentPattern = Pattern.compile(Pattern.quote(prefix) + "\\.(\\d+)\\.vlog");
+
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				Matcher matcher = segmentPattern.matcher(file.getName());
+				if (matcher.matches()) {
+					int segment = Integer.parseInt(matcher.group(1));
+					segments.put(segment, FileChannel.open(file.toPath(), StandardOpenOption.READ));
+					sizes.put(segment, file.length());
+					activeSegment = Math.max(activeSegment, segment);
+				}
+			}
+		}
+		startSegment(activeSegment + 1);
+	}
+
+	/**
+	 * Append a value
+	 *
+	 * @param bytes      the stored bytes of the value
+	 * @param ownerId    the owner of the pair
+	 * @param delTime    the deletion time of the pair
+	 * @param token      the hash of the key
+	 * @param compressed whether the bytes are compressed
+	 * @return the reference to be stored instead of the value
+	 * @throws IOException
+	 */
+	public synchronized Reference append(byte[] bytes, int ownerId, LocalDateTime delTime, byte[] token,
+			boolean compressed) throws IOException {
+		if (activeSize + bytes.length > SEGMENT_SIZE && activeSize > 0) {
+			segments.get(activeSegment).force(false);
+			startSegment(activeSegment + 1);
+		}
+
+		long offset = activeSize;
+		FileChannel channel = segments.get(activeSegment);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, offset + buffer.position());
+		}
+		activeSize += bytes.length;
+		sizes.put(activeSegment, activeSize);
+		liveBytes.computeIfAbsent(activeSegment, segment -> new AtomicLong()).addAndGet(bytes.length);
+		appended++;
+		return new Reference(ownerId, delTime, token, activeSegment, offset, bytes.length, compressed);
+	}
+
+	/**
+	 * Read the stored bytes of a value
+	 *
+	 * @param reference the reference returned by the append
+	 * @return the stored bytes
+	 * @throws ClosedChannelException if the segment was deleted in the meantime,
+	 *                                the value has been moved then
+	 * @throws IOException
+	 */
+	public byte[] read(Reference reference) throws IOException {
+		FileChannel channel = segments.get(reference.segment);
+		if (channel == null) {
+			throw new ClosedChannelException();
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(reference.length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, reference.offset + buffer.position()) < 0) {
+				throw new IOException(
+						String.format("Value log segment %d is shorter than expected", reference.segment));
+			}
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Force the appended values to disk. The values are only counted as forced
+	 * once the force succeeded, a concurrent caller forces again until then.
+	 * The segments before the active one were forced when it was started.
+	 *
+	 * @throws IOException
+	 */
+	public void force() throws IOException {
+		FileChannel channel;
+		long target;
+		synchronized (this) {
+			if (forced == appended) {
+				return;
+			}
+			target = appended;
+			channel = segments.get(activeSegment);
+		}
+		channel.force(false);
+		synchronized (this) {
+			forced = Math.max(forced, target);
+		}
+	}
+
+	/**
+	 * Count a value that was loaded as live
+	 *
+	 * @param reference the reference of the loaded value
+	 */
+	public void retain(Reference reference) {
+		liveBytes.computeIfAbsent(reference.segment, segment -> new AtomicLong()).addAndGet(reference.length);
+	}
+
+	/**
+	 * Count a value that was replaced or removed as dead
+	 *
+	 * @param reference the reference of the dead value
+	 * @return true if the segment of the value should be collected now
+	 */
+	public boolean release(Reference reference) {
+		AtomicLong live = liveBytes.get(reference.segment);
+		long remaining = live == null ? 0 : live.addAndGet(-reference.length);
+		return shouldCollect(reference.segment, remaining);
+	}
+
+	/**
+	 * @return the segments that should be collected, e.g. after loading
+	 */
+	public List<Integer> collectable() {
+		ArrayList<Integer> result = new ArrayList<>();
+		for (int segment : sizes.keySet()) {
+			AtomicLong live = liveBytes.get(segment);
+			if (shouldCollect(segment, live == null ? 0 : live.get())) {
+				result.add(segment);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Mark a segment whose live values were all moved, it is deleted after the
+	 * next checkpoint.
+	 *
+	 * @param segment the id of the segment
+	 */
+	public synchronized void collected(int segment) {
+		collected.add(segment);
+	}
+
+	/**
+	 * @return the segments marked as collected so far, they are not marked
+	 *         anymore
+	 */
+	public synchronized List<Integer> takeCollected() {
+		ArrayList<Integer> result = new ArrayList<>(collected);
+		collected.clear();
+		return result;
+	}
+
+	/**
+	 * Delete collected segments, this must only be done once no checkpoint or log
+	 * segment refers to them anymore.
+	 *
+	 * @param obsolete the ids of the segments
+	 * @throws IOException
+	 */
+	public void delete(List<Integer> obsolete) throws IOException {
+		for (int segment : obsolete) {
+			FileChannel channel = segments.remove(segment);
+			if (channel != null) {
+				channel.close();
+			}
+			sizes.remove(segment);
+			liveBytes.remove(segment);
+			collecting.remove(segment);
+			File file = segmentFile(segment);
+			if (!file.delete()) {
+				logger.warn(String.format("Cannot delete collected value log segment %s", file));
+			}
+		}
+	}
+
+	/**
+	 * Force the appended values to disk and close all segments
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		segments.get(activeSegment).force(false);
+		for (Map.Entry<Integer, FileChannel> segment : segments.entrySet()) {
+			segment.getValue().close();
+		}
+		segments.clear();
+	}
+
+	/**
+	 * A segment is collected once, when it is not appended to anymore and at
+	 * most {@link #COLLECT_RATIO} of its bytes are live.
+	 */
+	private boolean shouldCollect(int segment, long live) {
+		Long size = sizes.get(segment);
+		return segment != activeSegment && size != null && live <= size * COLLECT_RATIO && collecting.add(segment);
+	}
+
+	private void startSegment(int segment) throws IOException {
+		segments.put(segment, FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE));
+		sizes.put(segment, 0L);
+		activeSegment = segment;
+		activeSize = 0;
+	}
+
+	private File segmentFile(int segment) {
+		return new File(directory, String.format("%s.%06d.vlog", prefix, segment));
+	}
+}
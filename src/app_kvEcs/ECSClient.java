@@ -8,6 +8,8 @@ import java.util.regex.Pattern;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import app_kvDatabase.Durability;
+import app_kvDatabase.StorageEngines;
 import cache.ServerCache;
 
 /**
@@ -17,11 +19,13 @@ import cache.ServerCache;
  *
  */
 public class ECSClient extends ECSCommunication {
-    private static final Pattern INIT_SERVICE = Pattern.compile("initService\\s+(\\d+)\\s+(\\d+)\\s+([^\\s]+)");
+    private static final Pattern INIT_SERVICE = Pattern
+	    .compile("initService\\s+(\\d+)\\s+(\\d+)\\s+([^\\s]+)(?:\\s+([^\\s]+))?(?:\\s+([^\\s]+))?");
     private static final Pattern START = Pattern.compile("start");
     private static final Pattern STOP = Pattern.compile("stop");
     private static final Pattern SHUTDOWN = Pattern.compile("shutDown");
-    private static final Pattern ADD_NODE = Pattern.compile("addNode\\s+(\\d+)\\s+([^\\s]+)");
+    private static final Pattern ADD_NODE = Pattern
+	    .compile("addNode\\s+(\\d+)\\s+([^\\s]+)(?:\\s+([^\\s]+))?(?:\\s+([^\\s]+))?");
     private static final Pattern REMOVE_NODE = Pattern.compile("removeNode");
     private static final Pattern EXIT = Pattern.compile("exit");
     private static final Pattern HELP = Pattern.compile("help");
@@ -46,7 +50,9 @@ public class ECSClient extends ECSCommunication {
 		String numberOfNodes = matcher.group(1);
 		String cacheSize = matcher.group(2);
 		String displacementStrategy = matcher.group(3);
-		initService(numberOfNodes, cacheSize, displacementStrategy);
+		String storageEngine = matcher.group(4) == null ? StorageEngines.LOG : matcher.group(4);
+		String durability = matcher.group(5) == null ? Durability.ASYNC.toString() : matcher.group(5);
+		initService(numberOfNodes, cacheSize, displacementStrategy, storageEngine, durability);
 	    } else if ((matcher = START.matcher(command)).find()) {
 		start();
 	    } else if ((matcher = STOP.matcher(command)).find()) {
@@ -56,7 +62,9 @@ public class ECSClient extends ECSCommunication {
 	    } else if ((matcher = ADD_NODE.matcher(command)).find()) {
 		String cacheSize = matcher.group(1);
 		String displacementStrategy = matcher.group(2);
-		addNode(cacheSize, displacementStrategy);
+		String storageEngine = matcher.group(3) == null ? StorageEngines.LOG : matcher.group(3);
+		String durability = matcher.group(4) == null ? Durability.ASYNC.toString() : matcher.group(4);
+		addNode(cacheSize, displacementStrategy, storageEngine, durability);
 	    } else if ((matcher = REMOVE_NODE.matcher(command)).find()) {
 		removeNode();
 	    } else if ((matcher = EXIT.matcher(command)).find()) {
@@ -80,12 +88,14 @@ public class ECSClient extends ECSCommunication {
      * @param numberOfNodes
      * @param cacheSize
      * @param displacementStrategy
+     * @param storageEngine
+     * @param durability
      * @throws NumberFormatException
      * @throws IOException
      * @throws InterruptedException
      */
-    private void initService(String numberOfNodes, String cacheSize, String displacementStrategy)
-	    throws NumberFormatException, IOException, InterruptedException {
+    private void initService(String numberOfNodes, String cacheSize, String displacementStrategy,
+	    String storageEngine, String durability) throws NumberFormatException, IOException, InterruptedException {
 	if (!displacementStrategy.toUpperCase().equals(ServerCache.FIFO)
 		&& !displacementStrategy.toUpperCase().equals(ServerCache.LRU)
 		&& !displacementStrategy.toUpperCase().equals(ServerCache.LFU)) {
@@ -93,7 +103,11 @@ public class ECSClient extends ECSCommunication {
 		    ServerCache.FIFO, ServerCache.LRU, ServerCache.LFU, displacementStrategy));
 	}
 
-	initService(Integer.parseInt(numberOfNodes), Integer.parseInt(cacheSize), displacementStrategy);
+	checkStorageEngine(storageEngine);
+	Durability.parse(durability);
+
+	initService(Integer.parseInt(numberOfNodes),
+		new ServerConfig(Integer.parseInt(cacheSize), displacementStrategy, storageEngine, durability));
     }
 
     /**
@@ -101,11 +115,13 @@ public class ECSClient extends ECSCommunication {
      * 
      * @param cacheSize
      * @param displacementStrategy
+     * @param storageEngine
+     * @param durability
      * @throws NumberFormatException
      * @throws IOException
      * @throws InterruptedException
      */
-    private void addNode(String cacheSize, String displacementStrategy)
+    private void addNode(String cacheSize, String displacementStrategy, String storageEngine, String durability)
 	    throws NumberFormatException, IOException, InterruptedException {
 	if (!displacementStrategy.toUpperCase().equals(ServerCache.FIFO)
 		&& !displacementStrategy.toUpperCase().equals(ServerCache.LRU)
@@ -113,7 +129,22 @@ public class ECSClient extends ECSCommunication {
 	    throw new IllegalArgumentException(String.format("Cache strategy has to either %s, %s or %s, received %s",
 		    ServerCache.FIFO, ServerCache.LRU, ServerCache.LFU, displacementStrategy));
 	}
-	addNode(new ServerConfig(Integer.parseInt(cacheSize), displacementStrategy));
+	checkStorageEngine(storageEngine);
+	Durability.parse(durability);
+	addNode(new ServerConfig(Integer.parseInt(cacheSize), displacementStrategy, storageEngine, durability));
+    }
+
+    /**
+     * This method checks that the storage engine entered by the user exists
+     * 
+     * @param storageEngine
+     */
+    private void checkStorageEngine(String storageEngine) {
+	if (!StorageEngines.exists(storageEngine)) {
+	    throw new IllegalArgumentException(String.format("Storage engine has to be one of %s, %s, %s, %s, %s, %s or %s, optionally followed by :<partitions>, received %s",
+		    StorageEngines.LOG, StorageEngines.VLOG, StorageEngines.SLAB, StorageEngines.LSM, StorageEngines.BITCASK,
+		    StorageEngines.MMAP, StorageEngines.MEMORY, storageEngine));
+	}
     }
 
     /**
@@ -121,10 +152,12 @@ public class ECSClient extends ECSCommunication {
      */
     public void help() {
 	final String helpString = "Commands:\n"
-		+ "initService <numberOfnodes> <cacheSize> <displacement Strategy> \t Initializes the specified number of servers"
+		+ "initService <numberOfnodes> <cacheSize> <displacement Strategy> [storage Engine [durability]] \t Initializes the specified number of servers"
 		+ "\nstart \t\t starts the servers" + "\nstop \t\t stops the servers"
 		+ "\nshutDown shuts down the servers."
-		+ "\naddNode <cacheSize> <displacementStrategy>\t\tAdds a server to the existing servers"
+		+ "\naddNode <cacheSize> <displacementStrategy> [storageEngine [durability]]\t\tAdds a server to the existing servers"
+		+ "\n\t\t storage engine is one of LOG (default), VLOG, SLAB, LSM, BITCASK, MMAP or MEMORY, optionally followed by :<partitions>, e.g. LOG:8"
+		+ "\n\t\t durability is ASYNC (default), SYNC or GROUP[:<milliseconds>[:<operations>]]"
 		+ "\nremoveNode \t Removes a random server from the existing ones" + "\nexit \t Exit the program"
 		+ "\nhelp \t Print this message";
 	System.out.println(helpString);
@@ -1,7 +1,6 @@
 package app_kvEcs;
 
 import static common.messages.StatusType.IDENTIFY;
-import static common.messages.StatusType.LOCK_WRITE;
 import static common.messages.StatusType.SHUTDOWN;
 import static common.messages.StatusType.START;
 import static common.messages.StatusType.STOP;
@@ -48,7 +47,6 @@ public class ECSCommunication {
 	private static final KVMessage START_COMMAND = new ECSMessage(START);
 	private static final KVMessage STOP_COMMAND = new ECSMessage(STOP);
 	private static final KVMessage SHUTDOWN_COMMAND = new ECSMessage(SHUTDOWN);
-	private static final KVMessage LOCK_WRITE_COMMAND = new ECSMessage(LOCK_WRITE);
 	private static final KVMessage UNLOCK_WRITE_COMMAND = new ECSMessage(UNLOCK_WRITE);
 	private static final KVMessage IDENTIFY_COMMAND = new ECSMessage(IDENTIFY);
 
@@ -81,6 +79,20 @@ public class ECSCommunication {
 	 */
 	public void initService(int numberOfNodes, int cacheSize, String displacementStrategy)
 			throws IOException, InterruptedException {
+		initService(numberOfNodes, new ServerConfig(cacheSize, displacementStrategy));
+	}
+
+	/**
+	 * Init servers
+	 * 
+	 * @param numberOfNodes
+	 * @param config
+	 *            cache size, displacement strategy and storage engine of the
+	 *            servers
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void initService(int numberOfNodes, ServerConfig config) throws IOException, InterruptedException {
 		synchronized (metaTable) {
 			long start = System.nanoTime();
 			if (!canInit) {
@@ -96,7 +108,6 @@ public class ECSCommunication {
 			}
 
 			tryBroadcast(IDENTIFY_COMMAND, TRY_TIMES * numberOfNodes / 5, WAIT_TIME);
-			final ServerConfig config = new ServerConfig(cacheSize, displacementStrategy);
 			for (MDEntry entry : metaTable) {
 				configs.put(entry, config);
 			}
@@ -150,7 +161,9 @@ public class ECSCommunication {
 	}
 
 	/**
-	 * add one servers
+	 * add one servers, the successor keeps accepting writes while it moves the
+	 * data and only locks the writes for the last changes. It is unlocked after
+	 * the new metadata is broadcast, so it deletes the moved data then.
 	 * 
 	 * @param cacheSize
 	 * @param displacementStrategy
@@ -174,20 +187,18 @@ public class ECSCommunication {
 			send(initMessage, newEntry);
 			getResponse(newEntry);
 
-			sendAndGet(LOCK_WRITE_COMMAND, successor);
-
 			ECSMessage moveMessage = moveData(predecessor, newEntry);
 			sendAndGet(moveMessage, successor);
 
-			sendAndGet(UNLOCK_WRITE_COMMAND, successor);
-
 			broadcastMetatable();
+			sendAndGet(UNLOCK_WRITE_COMMAND, successor);
 			System.out.printf("Finish add node at %s:%d\n", newEntry.addressPort.address, newEntry.addressPort.port);
 		}
 	}
 
 	/**
-	 * remove one server
+	 * remove one server, it keeps accepting writes while it moves its data to the
+	 * successor and only locks the writes for the last changes
 	 * 
 	 * @throws IllegalArgumentException
 	 * @throws IOException
@@ -204,17 +215,15 @@ public class ECSCommunication {
 
 			uninitializedMetaTable.addEntry(deleteEntry);
 
-			sendAndGet(LOCK_WRITE_COMMAND, deleteEntry);
-
 			KVMessage moveMessage = moveData(previousPredecessor, previousSuccessor);
 			sendAndGet(moveMessage, deleteEntry);
 
+			broadcastMetatable();
+
 			sendAndGet(UNLOCK_WRITE_COMMAND, deleteEntry);
 
 			send(SHUTDOWN_COMMAND, deleteEntry);
 			removeConnection(deleteEntry.addressPort).close();
-
-			broadcastMetatable();
 		}
 	}
 
@@ -280,14 +289,15 @@ public class ECSCommunication {
 	 * Combine node message to String
 	 * 
 	 * @param entry
-	 * @param cacheSize
-	 * @param displacementStrategy
+	 * @param config
 	 * @return
 	 */
-	private ArrayList<KeyValue> newNodeMessage(MDEntry entry, int cacheSize, String displacementStrategy) {
+	private ArrayList<KeyValue> newNodeMessage(MDEntry entry, ServerConfig config) {
 		return of(new KeyValue("target", entry.valueString()), new KeyValue("meta", metaTable.toMessageValue()),
-				new KeyValue("cacheSize", Integer.toString(cacheSize)),
-				new KeyValue("displacementStratergy", displacementStrategy)).collect(toCollection(ArrayList::new));
+				new KeyValue("cacheSize", Integer.toString(config.cacheSize)),
+				new KeyValue("displacementStratergy", config.displacementStrategy),
+				new KeyValue("storageEngine", config.storageEngine), new KeyValue("durability", config.durability))
+				.collect(toCollection(ArrayList::new));
 	}
 
 	/**
@@ -472,7 +482,7 @@ public class ECSCommunication {
 	}
 
 	private ECSMessage init(MDEntry newEntry, ServerConfig config) {
-		return new ECSMessage(StatusType.INIT, newNodeMessage(newEntry, config.cacheSize, config.displacementStrategy));
+		return new ECSMessage(StatusType.INIT, newNodeMessage(newEntry, config));
 	}
 
 	private ECSMessage moveData(MDEntry predecessor, MDEntry newEntry) {
@@ -1,16 +1,32 @@
 package app_kvEcs;
 
+import app_kvDatabase.Durability;
+import app_kvDatabase.StorageEngines;
+
 /**
- * This class saves the server configuration of cache size and strategy
+ * This class saves the server configuration of cache size, strategy, storage
+ * engine and durability
  * 
  * @author Uy Ha
  */
 public class ServerConfig {
 	public final int cacheSize;
 	public final String displacementStrategy;
+	public final String storageEngine;
+	public final String durability;
 
-	public ServerConfig(int cacheSize, String displacementStrategy) {
+	public ServerConfig(int cacheSize, String displacementStrategy, String storageEngine, String durability) {
 		this.cacheSize = cacheSize;
 		this.displacementStrategy = displacementStrategy;
+		this.storageEngine = storageEngine;
+		this.durability = durability;
+	}
+
+	public ServerConfig(int cacheSize, String displacementStrategy, String storageEngine) {
+		this(cacheSize, displacementStrategy, storageEngine, Durability.ASYNC.toString());
+	}
+
+	public ServerConfig(int cacheSize, String displacementStrategy) {
+		this(cacheSize, displacementStrategy, StorageEngines.LOG);
 	}
 }
@@ -5,11 +5,14 @@ import java.net.Socket;
 import java.net.UnknownHostException;
 import java.time.LocalDateTime;
 import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import app_kvDatabase.KVData;
+import app_kvDatabase.OwnerDictionary;
 import app_kvServer.KVServer.Status;
 import common.hash.Hash;
 import common.messages.KVMessage;
@@ -17,6 +20,7 @@ import common.messages.KeyValue;
 import common.messages.ServerMessage;
 import common.messages.StatusType;
 import common.metadata.MDEntry;
+import common.util.Bytes;
 import common.util.MarshallUtils;
 
 /**
@@ -96,7 +100,8 @@ public class ClientHandler extends BaseHandler {
 				return new ServerMessage(StatusType.FAIL,
 						new KeyValue(message.getKey(), "Login or signup first, please!"));
 			}
-			return timedPut(message.getValue(0), message.getValue(1), message.getKey(2), message.getValue(2));
+			return write(message.getKey(2),
+					() -> timedPut(message.getValue(0), message.getValue(1), message.getKey(2), message.getBytes(2)));
 		case LOGIN:
 			if (message.getValue(2) == null) {
 				return new ServerMessage(StatusType.LOGIN_ERROR,
@@ -114,13 +119,13 @@ public class ClientHandler extends BaseHandler {
 				return new ServerMessage(StatusType.FAIL,
 						new KeyValue(message.getKey(), "Login or signup first, please!"));
 			}
-			return put(message.getValue(0), message.getKey(2), message.getValue(2));
+			return write(message.getKey(2), () -> put(message.getValue(0), message.getKey(2), message.getBytes(2)));
 		case DELETE:
 			if (message.getValue(0) == null) {
 				return new ServerMessage(StatusType.FAIL,
 						new KeyValue(message.getKey(), "Login or signup first, please!"));
 			}
-			return delete(message.getValue(0), message.getKey(2));
+			return write(message.getKey(2), () -> delete(message.getValue(0), message.getKey(2)));
 		default:
 			throw new IllegalArgumentException("Message's action is not in the allowed methods");
 		}
@@ -138,19 +143,23 @@ public class ClientHandler extends BaseHandler {
 	private KVMessage get(String owner, String key) {
 
 		if (isResponsibleforGet(Hash.hash(key))) {
-			String value = null;
-			String cachedValue = state.getCache().get(key, owner);
+			int ownerId = OwnerDictionary.node().find(owner);
+			Bytes value = null;
+			Bytes cachedValue = state.getCache().get(key, ownerId);
 			if (cachedValue != null) {
 				value = cachedValue;
-			} else if (state.getDb().get(key) != null && state.getDb().get(key).owner == owner) {
-				value = state.getDb().get(key).value;
-			} else if (state.getDb().get(key) != null && state.getDb().get(key).owner != owner) {
-				return new ServerMessage(StatusType.GET_ACCESS_DENIED,
-						new KeyValue(key, "Cannot access data owned by another user"));
+			} else {
+				KVData data = getLive(key);
+				if (data != null && data.ownerId == ownerId) {
+					value = data.value;
+				} else if (data != null) {
+					return new ServerMessage(StatusType.GET_ACCESS_DENIED,
+							new KeyValue(key, "Cannot access data owned by another user"));
+				}
 			}
 
 			return new ServerMessage(value == null ? StatusType.GET_ERROR : StatusType.GET_SUCCESS,
-					new KeyValue(key, value));
+					KeyValue.of(key, value));
 		}
 		return new ServerMessage(StatusType.SERVER_NOT_RESPONSIBLE, new KeyValue(key, "Server is not responsible"),
 				new KeyValue("meta", state.getMetadata().toMessageValue()));
@@ -167,7 +176,7 @@ public class ClientHandler extends BaseHandler {
 	 *         successfully, other return a KVMessage encoded the information why
 	 *         the operation failed
 	 */
-	private KVMessage put(String owner, String key, String value) {
+	private KVMessage put(String owner, String key, Bytes value) {
 		return timedPut(owner, null, key, value);
 	}
 
@@ -179,13 +188,15 @@ public class ClientHandler extends BaseHandler {
 	 * @param value
 	 * @return a ServerMessage with put status and key value to client.
 	 */
-	private KVMessage timedPut(String owner, String timeStamp, String key, String value) {
+	private KVMessage timedPut(String owner, String timeStamp, String key, Bytes value) {
 		if (isLocked()) {
 			return new ServerMessage(StatusType.SERVER_WRITE_LOCK,
 					new KeyValue(key, "Cannot write while server is lock"));
 		}
 
-		if (state.getDb().get(key) != null && state.getDb().get(key).owner != owner) {
+		int ownerId = OwnerDictionary.node().id(owner);
+		KVData oldData = getLive(key);
+		if (oldData != null && oldData.ownerId != ownerId) {
 			return new ServerMessage(StatusType.UPDATE_ACCESS_DENIED,
 					new KeyValue(key, "Cannot update data owned by another user"));
 		}
@@ -206,16 +217,20 @@ public class ClientHandler extends BaseHandler {
 		LocalDateTime delTime = timeStamp == null ? null : LocalDateTime.parse(timeStamp);
 		StatusType resultStatus = null;
 		if (delTime == null) {
-			resultStatus = state.getDb().put(key, new KVData(value, owner, delTime)) == null ? StatusType.PUT_SUCCESS
+			resultStatus = state.getDb().put(key, new KVData(value, ownerId, delTime)) == null ? StatusType.PUT_SUCCESS
 					: StatusType.PUT_UPDATE;
 		} else {
-			resultStatus = state.getDb().put(key, new KVData(value, owner, delTime)) == null
+			resultStatus = state.getDb().put(key, new KVData(value, ownerId, delTime)) == null
 					? StatusType.TIMED_PUT_SUCCESS
 					: StatusType.TIMED_PUT_UPDATE;
 		}
 
-		state.getCache().put(key, value, owner);
-		return new ServerMessage(resultStatus, new KeyValue(key, value));
+		if (delTime == null) {
+			state.getCache().put(key, value, ownerId);
+		} else {
+			state.getCache().invalidate(key);
+		}
+		return new ServerMessage(resultStatus, KeyValue.of(key, value));
 
 	}
 
@@ -236,14 +251,16 @@ public class ClientHandler extends BaseHandler {
 					new KeyValue(key, "Cannot write while server is lock"));
 		}
 
-		if (state.getDb().get(key) != null && state.getDb().get(key).owner != owner) {
+		KVData oldData = getLive(key);
+		if (oldData != null && oldData.ownerId != OwnerDictionary.node().find(owner)) {
 			return new ServerMessage(StatusType.DELETE_ACCESS_DENIED,
 					new KeyValue(key, "Cannot delete data owned by another user"));
 		}
 
 		KVData oldValue = state.getDb().remove(key);
 		state.getCache().invalidate(key);
-		return new ServerMessage(StatusType.DELETE_SUCCESS, new KeyValue(key, oldValue.value));
+		return new ServerMessage(StatusType.DELETE_SUCCESS,
+				KeyValue.of(key, oldValue == null ? null : oldValue.value));
 	}
 
 	/**
@@ -305,6 +322,57 @@ public class ClientHandler extends BaseHandler {
 		}
 	}
 
+	/**
+	 * Read a pair from the database, a pair whose deletion time has passed is
+	 * treated as absent. It is removed right away unless the server is locked
+	 * for writing, then the {@link Destroyer} removes it later. Pairs with a
+	 * deletion time are never cached, so the cache cannot return them after
+	 * they expired.
+	 * 
+	 * @param key the key of the pair
+	 * @return the data of the pair, null if it does not exist or expired
+	 */
+	private KVData getLive(String key) {
+		KVData data = state.getDb().get(key);
+		LocalDateTime now = LocalDateTime.now();
+		if (data == null || data.delTime == null || !data.delTime.isBefore(now)) {
+			return data;
+		}
+
+		Lock gate = state.getWriteGate().readLock();
+		gate.lock();
+		try {
+			if (!isLocked() && state.getDb().removeIfExpired(key, now)) {
+				state.getCache().invalidate(key);
+				state.recordWrite(key);
+			}
+		} finally {
+			gate.unlock();
+		}
+		return null;
+	}
+
+	/**
+	 * Run a client write while holding the read lock of the write gate, so
+	 * locking the server for writing waits for it, and record its key for a
+	 * migration in progress.
+	 * 
+	 * @param key   the written key
+	 * @param write the write, it checks the write lock itself
+	 * @return the result of the write
+	 */
+	private KVMessage write(String key, Supplier<KVMessage> write) {
+		Lock gate = state.getWriteGate().readLock();
+		gate.lock();
+		try {
+			KVMessage result = write.get();
+			state.recordWrite(key);
+			return result;
+		} finally {
+			gate.unlock();
+		}
+	}
+
 	/**
 	 * Checks if the server is locked for writing
 	 * 
@@ -349,4 +417,4 @@ public class ClientHandler extends BaseHandler {
 				state.getServerMeta().hashIndex);
 	}
 
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -1,12 +1,29 @@
 package app_kvServer;
 
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+/**
+ * This class removes the expired pairs of the server once per tick. The
+ * storage engines keep their keys ordered by deletion time, so a tick only
+ * costs as much as the number of expired keys. The pairs are removed in
+ * batches of {@link #BATCH_SIZE} until {@link #BUDGET} of the tick is used up,
+ * the rest is left to the next tick, so a burst of expirations does not
+ * compete with the client requests. The keys of a batch are invalidated in the
+ * cache together. Clients never see expired pairs anyway, they are treated as
+ * absent when they are read.
+ */
 public class Destroyer implements Runnable {
 
 	private static final Logger logger = LogManager.getLogger("kvServer");
 
+	private static final long TICK = 100;
+	private static final long BUDGET = 25;
+	private static final int BATCH_SIZE = 256;
+
 	private final ServerState state;
 
 	public Destroyer(ServerState state) {
@@ -15,14 +32,31 @@ public class Destroyer implements Runnable {
 
 	@Override
 	public void run() {
+		Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
 		try {
 			while (true) {
-				for (String key : state.getDb().removeExpiredData()) {
-					state.getCache().invalidate(key);
+				long start = System.nanoTime();
+				long deadline = start + TimeUnit.MILLISECONDS.toNanos(BUDGET);
+				int removed = 0;
+				List<String> expiredKeys;
+				do {
+					expiredKeys = state.getDb().removeExpiredData(BATCH_SIZE);
+					if (!expiredKeys.isEmpty()) {
+						state.getCache().invalidateAll(expiredKeys);
+						removed += expiredKeys.size();
+					}
+				} while (expiredKeys.size() == BATCH_SIZE && System.nanoTime() < deadline);
+
+				if (removed > 0) {
+					logger.debug(String.format("Removed %d expired pairs", removed));
 				}
+				long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				TimeUnit.MILLISECONDS.sleep(Math.max(TICK - elapsed, TICK - BUDGET));
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		} catch (Exception e) {
-			e.printStackTrace();
+			logger.error(e);
 		}
 	}
-}
\ No newline at end of file
+}
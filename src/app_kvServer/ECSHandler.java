@@ -1,18 +1,22 @@
 package app_kvServer;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.Executors;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import app_kvDatabase.KVData;
+import app_kvDatabase.Durability;
+import app_kvDatabase.StorageEngines;
 import cache.FIFOCache;
 import cache.LFUCache;
 import cache.LRUCache;
@@ -33,6 +37,14 @@ import failureDetector.FailureDetector;
  */
 public class ECSHandler extends BaseHandler {
 	private static Logger logger = LogManager.getLogger("kvServer");
+	/**
+	 * The delta is sent while writes continue for at most this many rounds
+	 */
+	private static final int CATCH_UP_ROUNDS = 5;
+	/**
+	 * A delta of at most this many keys is sent while the writes are locked
+	 */
+	private static final int CUT_OVER_KEYS = 256;
 	private final ServerState state;
 	private final Runnable shutDown;
 
@@ -56,7 +68,9 @@ public class ECSHandler extends BaseHandler {
 			String meta = message.getValue(1);
 			int cacheSize = Integer.parseInt(message.getValue(2));
 			String displacementStrategy = message.getValue(3);
-			return initKVServer(meta, cacheSize, displacementStrategy);
+			String storageEngine = message.getPairs().size() > 4 ? message.getValue(4) : StorageEngines.LOG;
+			String durability = message.getPairs().size() > 5 ? message.getValue(5) : Durability.ASYNC.toString();
+			return initKVServer(meta, cacheSize, displacementStrategy, storageEngine, durability);
 		case START:
 			return start();
 		case STOP:
@@ -89,10 +103,21 @@ public class ECSHandler extends BaseHandler {
 	 *            size of cache
 	 * @param displacementStrategy
 	 *            algorithm for cache
+	 * @param storageEngine
+	 *            engine storing the pairs of the server and its replicas
+	 * @param durability
+	 *            when the writes of the storage engine are forced to disk
 	 * @return KVMessage a message to notify the ecs
 	 */
-	private KVMessage initKVServer(String meta, int cacheSize, String displacementStrategy) {
+	private KVMessage initKVServer(String meta, int cacheSize, String displacementStrategy, String storageEngine,
+			String durability) {
 		if (state.getServerStatus() == KVServer.Status.UNINITIALIZED) {
+			try {
+				initializeStorage(storageEngine, Durability.parse(durability));
+			} catch (IOException | IllegalArgumentException e) {
+				logger.error("Failed to open the storage", e);
+				return new ServerMessage(StatusType.FAIL, new KeyValue("", "Failed to open the storage."));
+			}
 			initializeCache(cacheSize, displacementStrategy);
 			state.setMetadata(MDTable.fromMessageValue(meta));
 			state.setServerStatus(KVServer.Status.STOPPED);
@@ -159,7 +184,7 @@ public class ECSHandler extends BaseHandler {
 	 */
 	private KVMessage lockWrite() {
 		if (state.getServerStatus() == KVServer.Status.ACTIVE) {
-			state.setServerStatus(KVServer.Status.WRITELOCKED);
+			state.lockWrites();
 			logger.info("Server locked for writing.");
 			return new ServerMessage(StatusType.DONE, new KeyValue("", "Server locked for writing."));
 		} else {
@@ -188,40 +213,92 @@ public class ECSHandler extends BaseHandler {
 	}
 
 	/**
-	 * Moves the data from one server to another within a range
+	 * Moves the data from one server to another within a range while the server
+	 * keeps accepting writes. The writes to the range are recorded while a
+	 * snapshot of the range is sent, then the recorded keys are sent again until
+	 * only a few are left. Only sending these last ones locks the server for
+	 * writing, it stays locked until the ECS unlocks it after updating the
+	 * metadata.
 	 * 
 	 * @param from
 	 *            this index to start moving from
 	 * @param to
 	 *            the index to move to and also the upper bound for moving the data
-	 * @param newServer
-	 *            server to send the data to
 	 * @return KVMessage a message to notify the ecs
 	 */
 	private KVMessage moveData(String from, String to) {
+		MDEntry source = MDEntry.fromConfigString(from);
+		MDEntry destination = MDEntry.fromConfigString(to);
+		Migration migration = new Migration(source.hashIndex, destination.hashIndex);
+		state.setMigration(migration);
 		try {
-			MDEntry source = MDEntry.fromConfigString(from);
-			MDEntry destination = MDEntry.fromConfigString(to);
-
-			HashMap<String, KVData> dataToBeMoved = state.getDb().dataInRange(source.hashIndex, destination.hashIndex);
-
 			DataDistributor dataDistributor = new DataDistributor(destination);
+			HashMap<String, KVData> dataToBeMoved = state.getDb().dataInRange(source.hashIndex, destination.hashIndex);
+			send(dataDistributor, dataToBeMoved);
 
-			ArrayList<KeyValue> kvs = dataToBeMoved.entrySet().stream()
-					.flatMap(i -> Stream.of(new KeyValue(i.getKey(), i.getValue().value),
-							new KeyValue("owner", i.getValue().owner),
-							new KeyValue("delTime", i.getValue().delTime.toString())))
-					.collect(Collectors.toCollection(ArrayList::new));
-			dataDistributor.moveData(kvs);
+			List<String> delta = migration.drain();
+			for (int round = 0; round < CATCH_UP_ROUNDS && delta.size() > CUT_OVER_KEYS; round++) {
+				send(dataDistributor, currentData(delta));
+				delta = migration.drain();
+			}
 
-		} catch (IOException e) {
+			long start = System.nanoTime();
+			if (state.getServerStatus() == KVServer.Status.ACTIVE) {
+				state.lockWrites();
+			}
+			delta.addAll(migration.drain());
+			send(dataDistributor, currentData(delta));
+			logger.info(String.format("Moved %d pairs, the last %d keys in %d ms while locked for writing",
+					dataToBeMoved.size(), delta.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+		} catch (IOException | UncheckedIOException e) {
 			logger.error(e);
 			return new ServerMessage(StatusType.FAIL, new KeyValue("", "Data move failed."));
+		} finally {
+			state.setMigration(null);
 		}
 		logger.info("Data moved.");
 		return new ServerMessage(StatusType.DONE, new KeyValue("", "Data moved."));
 	}
 
+	/**
+	 * Look up the current data of the keys written during a move
+	 * 
+	 * @param keys the written keys
+	 * @return the data of the keys, null for the removed ones
+	 */
+	private HashMap<String, KVData> currentData(List<String> keys) {
+		HashMap<String, KVData> result = new HashMap<>();
+		for (String key : keys) {
+			result.put(key, state.getDb().get(key));
+		}
+		return result;
+	}
+
+	/**
+	 * Send pairs to the destination of a move, a pair without data removes the
+	 * key and a pair without deletion time never expires.
+	 * 
+	 * @param dataDistributor the connection to the destination
+	 * @param data            the pairs to be sent
+	 * @throws IOException if the destination did not store the pairs
+	 */
+	private void send(DataDistributor dataDistributor, Map<String, KVData> data) throws IOException {
+		if (data.isEmpty()) {
+			return;
+		}
+
+		ArrayList<KeyValue> kvs = new ArrayList<>(3 * data.size());
+		for (Entry<String, KVData> entry : data.entrySet()) {
+			KVData value = entry.getValue();
+			kvs.add(KeyValue.of(entry.getKey(), value == null ? null : value.value));
+			kvs.add(new KeyValue("owner", value == null ? null : value.owner()));
+			kvs.add(new KeyValue("delTime", value == null || value.delTime == null ? null : value.delTime.toString()));
+		}
+		if (dataDistributor.moveData(kvs).getStatus() != StatusType.MOVE_DATA_SUCCESS) {
+			throw new IOException("The destination did not store the moved data");
+		}
+	}
+
 	/**
 	 * Updates the metadata and removes out of range elements
 	 * 
@@ -241,6 +318,20 @@ public class ECSHandler extends BaseHandler {
 		return new ServerMessage(StatusType.DONE, new KeyValue("", "Metadata updated."));
 	}
 
+	/**
+	 * This method opens the databases of the server and its replicas with the
+	 * storage engine and durability selected at the start of the server.
+	 */
+	private void initializeStorage(String engine, Durability durability) throws IOException {
+		long start = System.nanoTime();
+		int port = state.getPort();
+		state.setDb(StorageEngines.open(engine, String.format("./db%d.kv", port), durability));
+		state.setReplica1(StorageEngines.open(engine, String.format("./replica1_%d.kv", port), durability));
+		state.setReplica2(StorageEngines.open(engine, String.format("./replica2_%d.kv", port), durability));
+		logger.info(String.format("Storage opened with the %s engine and %s durability in %d ms.",
+				engine.toUpperCase(), durability, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+	}
+
 	/**
 	 * This method initializes the cache object depending upon the strategy selected
 	 * at the start of the server.
@@ -280,14 +371,16 @@ public class ECSHandler extends BaseHandler {
 	}
 
 	/**
-	 * This method deletes out of range data
+	 * This method deletes out of range data, nothing is deleted if the data
+	 * cannot be read
 	 */
 	private void deleteOutOfRangeData() {
 		byte[] start = state.getMetadata().getPredecessor(state.getServerMeta()).hashIndex;
 		byte[] end = state.getServerMeta().hashIndex;
-		HashMap<String, KVData> dataToBeDeleted = state.getDb().dataOutOfRange(start, end);
-		for (Entry<String, KVData> entry : dataToBeDeleted.entrySet()) {
-			state.getDb().remove(entry.getKey());
+		try {
+			state.getDb().removeOutOfRange(start, end);
+		} catch (UncheckedIOException e) {
+			logger.error("Failed to delete the out of range data", e);
 		}
 	}
 
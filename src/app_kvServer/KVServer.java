@@ -12,7 +12,6 @@ import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import app_kvDatabase.KVDatabase;
 import app_kvDatabase.UserDatabase;
 import common.metadata.AddressPort;
 
@@ -51,19 +50,17 @@ public class KVServer {
 	}
 
 	/**
-	 * Start KV Server at given port
+	 * Start KV Server at given port, the storage of the pairs is opened when the
+	 * ECS initializes the server with the storage engine to be used.
 	 *
 	 * @param port given port for storage server to operate
-	 * @throws IOException when the database does not exist and the application
-	 *                     failed to create a new one
+	 * @throws IOException when the user database does not exist and the
+	 *                     application failed to create a new one
 	 */
 	public KVServer(int port, AddressPort addressPort) throws IOException {
 		this.port = port;
 		this.service = Executors.newCachedThreadPool();
-		this.state = new ServerState(new KVDatabase(String.format("./db%d.kv", port)),
-				new KVDatabase(String.format("./replica1_%d.kv", port)),
-				new KVDatabase(String.format("./replica2_%d.kv", port)),
-				new UserDatabase(String.format("./userDb_%d.kv", port)), addressPort);
+		this.state = new ServerState(port, new UserDatabase(String.format("./userDb_%d.kv", port)), addressPort);
 	}
 
 	/**
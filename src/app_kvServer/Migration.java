@@ -0,0 +1,54 @@
+package app_kvServer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.hash.Hash;
+
+/**
+ * This class records the keys of a range that are written while the range is
+ * moved to another server. The range is copied while the server keeps
+ * accepting writes, afterwards only the recorded keys have to be sent again.
+ *
+ * @author Uy Ha
+ */
+public class Migration {
+	private final byte[] start;
+	private final byte[] end;
+	private final Set<String> dirtyKeys = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param start the starting index of the moved range (exclusive)
+	 * @param end   the ending index of the moved range (inclusive)
+	 */
+	public Migration(byte[] start, byte[] end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * Record a written key if it belongs to the moved range
+	 *
+	 * @param key the written key
+	 */
+	public void record(String key) {
+		if (Hash.in(Hash.hash(key), start, end)) {
+			dirtyKeys.add(key);
+		}
+	}
+
+	/**
+	 * @return the keys recorded so far, they are not recorded anymore
+	 */
+	public List<String> drain() {
+		ArrayList<String> keys = new ArrayList<>();
+		for (String key : dirtyKeys) {
+			if (dirtyKeys.remove(key)) {
+				keys.add(key);
+			}
+		}
+		return keys;
+	}
+}
@@ -1,6 +1,7 @@
 package app_kvServer;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -47,7 +48,7 @@ public class Replication implements Runnable {
 					replicate(replica2, dataToBeReplicated);
 				}
 				TimeUnit.MINUTES.sleep(5);
-			} catch (InterruptedException | IOException e) {
+			} catch (InterruptedException | IOException | UncheckedIOException e) {
 				logger.error(e);
 			}
 			logger.info("Data replicated.");
@@ -65,9 +66,10 @@ public class Replication implements Runnable {
 			throws UnknownHostException, IOException {
 		DataDistributor dataDistributor = new DataDistributor(destination);
 		ArrayList<KeyValue> kvs = dataToBeReplicated.entrySet().stream()
-				.flatMap(i -> Stream.of(new KeyValue(i.getKey(), i.getValue().value),
-						new KeyValue("owner", i.getValue().owner),
-						new KeyValue("delTime", i.getValue().delTime.toString())))
+				.flatMap(i -> Stream.of(KeyValue.of(i.getKey(), i.getValue().value),
+						new KeyValue("owner", i.getValue().owner()),
+						new KeyValue("delTime",
+								i.getValue().delTime == null ? null : i.getValue().delTime.toString())))
 				.collect(Collectors.toCollection(ArrayList::new));
 		dataDistributor.replicateData(kvs);
 	}
@@ -4,13 +4,15 @@ import java.io.IOException;
 import java.net.Socket;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.concurrent.Executors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import app_kvDatabase.KVData;
-import app_kvDatabase.KVDatabase;
+import app_kvDatabase.StorageEngine;
 import app_kvDatabase.KVEntity;
 import common.hash.Hash;
 import common.messages.KVMessage;
@@ -18,6 +20,7 @@ import common.messages.KeyValue;
 import common.messages.ServerMessage;
 import common.messages.StatusType;
 import common.metadata.MDEntry;
+import common.util.Bytes;
 
 /**
  * This class handles the server-server communication in the case of data
@@ -63,7 +66,8 @@ public class ServerHandler extends BaseHandler {
 	}
 
 	/**
-	 * Saves data sent from another server
+	 * Saves data sent from another server as one batch, a pair without value was
+	 * removed on the other server while it was moved
 	 * 
 	 * @param message
 	 *            the message to be parsed
@@ -71,13 +75,23 @@ public class ServerHandler extends BaseHandler {
 	 */
 	private KVMessage moveData(KVMessage message) {
 		ArrayList<KeyValue> pairs = message.getPairs();
+		HashMap<String, KVData> puts = new HashMap<>();
+		HashSet<String> removals = new HashSet<>();
 		for (int i = 0; i < pairs.size(); i += 3) {
 			String key = pairs.get(i).key;
-			String value = pairs.get(i).value;
-			String owner = pairs.get(i + 1).value;
-			LocalDateTime delTime = LocalDateTime.parse(pairs.get(i + 2).value);
-			state.getDb().put(key, new KVData(value, owner, delTime));
+			Bytes value = pairs.get(i).value;
+			String owner = pairs.get(i + 1).valueString();
+			String delTime = pairs.get(i + 2).valueString();
+			if (value == null) {
+				puts.remove(key);
+				removals.add(key);
+			} else {
+				removals.remove(key);
+				puts.put(key, new KVData(value, owner, delTime == null ? null : LocalDateTime.parse(delTime)));
+			}
 		}
+		state.getDb().removeAll(removals);
+		state.getDb().putAll(puts);
 		return new ServerMessage(StatusType.MOVE_DATA_SUCCESS, new KeyValue());
 	}
 
@@ -114,15 +128,16 @@ public class ServerHandler extends BaseHandler {
 	private KVMessage replicateData(KVMessage message) {
 		ArrayList<KeyValue> pairs = message.getPairs();
 		if (!pairs.isEmpty()) {
-			KVDatabase replica = redirectTo(pairs.get(0).key);
+			StorageEngine replica = redirectTo(pairs.get(0).key);
 
 			ArrayList<KVEntity> entities = new ArrayList<>();
 			for (int i = 1; i < pairs.size(); i += 3) {
 				String key = pairs.get(i).key;
-				String value = pairs.get(i).value;
-				String owner = pairs.get(i + 1).value;
-				LocalDateTime delTime = LocalDateTime.parse(pairs.get(i + 2).value);
-				entities.add(new KVEntity(key, new KVData(value, owner, delTime)));
+				Bytes value = pairs.get(i).value;
+				String owner = pairs.get(i + 1).valueString();
+				String delTime = pairs.get(i + 2).valueString();
+				entities.add(new KVEntity(key,
+						new KVData(value, owner, delTime == null ? null : LocalDateTime.parse(delTime))));
 			}
 
 			replica.replicate(entities);
@@ -147,7 +162,7 @@ public class ServerHandler extends BaseHandler {
 	 *            first key of the sent data elems
 	 * @return Database the db to redirect to
 	 */
-	private KVDatabase redirectTo(String firstKey) {
+	private StorageEngine redirectTo(String firstKey) {
 		byte[] keyHash = Hash.hash(firstKey);
 		MDEntry pred = state.getMetadata().getPredecessor(state.getServerMeta());
 		MDEntry predPred = state.getMetadata().getPredecessor(pred);
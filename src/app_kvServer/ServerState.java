@@ -3,8 +3,9 @@ package app_kvServer;
 import static app_kvServer.KVServer.Status.UNINITIALIZED;
 
 import java.net.InetAddress;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import app_kvDatabase.KVDatabase;
+import app_kvDatabase.StorageEngine;
 import app_kvDatabase.UserDatabase;
 import app_kvServer.KVServer.Status;
 import cache.ServerCache;
@@ -22,26 +23,34 @@ import common.metadata.MDTable;
 public class ServerState {
 	private int cacheSize;
 	private String strategy;
-	private KVDatabase db;
-	private KVDatabase replica1;
-	private KVDatabase replica2;
-	private Status serverStatus = UNINITIALIZED;
+	private final int port;
+	private StorageEngine db;
+	private StorageEngine replica1;
+	private StorageEngine replica2;
+	private volatile Status serverStatus = UNINITIALIZED;
 	private InetAddress addr;
 	private MDTable metadata;
 	private ServerCache cache;
 	private MDEntry serverMeta;
 	private final AddressPort addressPort;
 	private UserDatabase userDb;
-
-	public ServerState(KVDatabase db, KVDatabase replica1, KVDatabase replica2, UserDatabase userDb,
-			AddressPort addressPort) {
-		this.db = db;
-		this.replica1 = replica1;
-		this.replica2 = replica2;
+	private volatile Migration migration;
+	/**
+	 * Client writes hold the read lock from checking the write lock until the
+	 * write is recorded, so locking the writes waits for the writes in progress
+	 */
+	private final ReentrantReadWriteLock writeGate = new ReentrantReadWriteLock();
+
+	public ServerState(int port, UserDatabase userDb, AddressPort addressPort) {
+		this.port = port;
 		this.userDb = userDb;
 		this.addressPort = addressPort;
 	}
 
+	public int getPort() {
+		return port;
+	}
+
 	public int getCacheSize() {
 		return cacheSize;
 	}
@@ -58,27 +67,27 @@ public class ServerState {
 		this.strategy = strategy;
 	}
 
-	public KVDatabase getDb() {
+	public StorageEngine getDb() {
 		return db;
 	}
 
-	public void setDb(KVDatabase db) {
+	public void setDb(StorageEngine db) {
 		this.db = db;
 	}
 
-	public KVDatabase getReplica1() {
+	public StorageEngine getReplica1() {
 		return replica1;
 	}
 
-	public void setReplica1(KVDatabase replica1) {
+	public void setReplica1(StorageEngine replica1) {
 		this.replica1 = replica1;
 	}
 
-	public KVDatabase getReplica2() {
+	public StorageEngine getReplica2() {
 		return replica2;
 	}
 
-	public void setReplica2(KVDatabase replica2) {
+	public void setReplica2(StorageEngine replica2) {
 		this.replica2 = replica2;
 	}
 
@@ -90,6 +99,42 @@ public class ServerState {
 		this.serverStatus = serverStatus;
 	}
 
+	/**
+	 * Lock the server for writing once the client writes in progress are done
+	 */
+	public void lockWrites() {
+		writeGate.writeLock().lock();
+		try {
+			serverStatus = Status.WRITELOCKED;
+		} finally {
+			writeGate.writeLock().unlock();
+		}
+	}
+
+	public ReentrantReadWriteLock getWriteGate() {
+		return writeGate;
+	}
+
+	public Migration getMigration() {
+		return migration;
+	}
+
+	public void setMigration(Migration migration) {
+		this.migration = migration;
+	}
+
+	/**
+	 * Record a written key for the migration in progress, if there is one
+	 * 
+	 * @param key the written key
+	 */
+	public void recordWrite(String key) {
+		Migration current = migration;
+		if (current != null) {
+			current.record(key);
+		}
+	}
+
 	public InetAddress getAddr() {
 		return addr;
 	}
@@ -1,5 +1,7 @@
 package cache;
 
+import common.util.Bytes;
+
 /**
  * <h1>Cache entry</h1>
  * <p>
@@ -14,8 +16,8 @@ package cache;
 
 public class CacheEntry {
 	String key;
-	String value;
-	String owner;
+	Bytes value;
+	int ownerId;
 	CacheEntry prev;
 	CacheEntry next;
 }
\ No newline at end of file
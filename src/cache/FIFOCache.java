@@ -3,6 +3,8 @@ package cache;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import common.util.Bytes;
+
 /**
  * <h1>FIFO Cache</h1>
  * <p>
@@ -40,11 +42,11 @@ public class FIFOCache extends ServerCache {
 	 * @return entry.value which is the value of the given key.
 	 */
 	@Override
-	public synchronized String get(String key, String owner) {
+	public synchronized Bytes get(String key, int ownerId) {
 		if (serverCache.containsKey(key)) {
 			CacheEntry entry = serverCache.get(key);
-			if (entry.owner.equals(owner)) {
-				logger.debug(key + "-" + serverCache.get(key).value + " accessed from cache");
+			if (entry.ownerId == ownerId) {
+				logger.debug("{}-{} accessed from cache", key, serverCache.get(key).value);
 				return serverCache.get(key).value;
 			}
 		}
@@ -53,7 +55,7 @@ public class FIFOCache extends ServerCache {
 	}
 
 	/**
-	 * This method takes two Strings as key and value and adds them to the top of
+	 * This method takes a key and its encoded value and adds them to the top of
 	 * the cache. In case of the cache becoming full, the tail of the cache which
 	 * was the first entry added is removed.
 	 * 
@@ -62,18 +64,18 @@ public class FIFOCache extends ServerCache {
 	 * @return Nothing.
 	 */
 	@Override
-	public synchronized void put(String key, String value, String owner) {
+	public synchronized void put(String key, Bytes value, int ownerId) {
 		CacheEntry entry = new CacheEntry();
 		entry.key = key;
 		entry.value = value;
-		entry.owner = owner;
+		entry.ownerId = ownerId;
 		if (serverCache.size() == size) {
 			serverCache.remove(tail.key);
 			remove(tail);
 		}
 		putOnTop(entry);
 		serverCache.put(key, entry);
-		logger.debug(key + "-" + entry.value + " put in cache");
+		logger.debug("{}-{} put in cache", key, entry.value);
 	}
 
 	/**
@@ -6,6 +6,8 @@ import java.util.HashMap;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import common.util.Bytes;
+
 /**
  * <h1>LRU Cache</h1>
  * <p>
@@ -55,15 +57,15 @@ public class LFUCache extends ServerCache {
 	 * @return entry.value which is the value of the given key.
 	 */
 	@Override
-	public synchronized String get(String key, String owner) {
+	public synchronized Bytes get(String key, int ownerId) {
 		if (serverCache.containsKey(key)) {
 			CacheEntry entry = serverCache.get(key);
-			if (entry.owner.equals(owner)) {
+			if (entry.ownerId == ownerId) {
 				int value = Freq.get(key);
 				Freq.replace(key, value + 1);
 				timeCounter = timeCounter + 0.1;
 				TS.replace(key, timeCounter);
-				logger.debug(key + "-" + entry.value + " accessed from cache");
+				logger.debug("{}-{} accessed from cache", key, entry.value);
 				return entry.value;
 			}
 		}
@@ -72,7 +74,7 @@ public class LFUCache extends ServerCache {
 	}
 
 	/**
-	 * This method takes two Strings as key and value and adds them to the top of
+	 * This method takes a key and its encoded value and adds them to the top of
 	 * the cache. In case of the cache becoming full, the entry with the least
 	 * frequency is removed. In case of two entries having the same least frequency,
 	 * then the one with the smallest access time stamp is used.
@@ -82,11 +84,11 @@ public class LFUCache extends ServerCache {
 	 * @return Nothing.
 	 */
 	@Override
-	public synchronized void put(String key, String value, String owner) {
+	public synchronized void put(String key, Bytes value, int ownerId) {
 		CacheEntry entry = new CacheEntry();
 		entry.key = key;
 		entry.value = value;
-		entry.owner = owner;
+		entry.ownerId = ownerId;
 		if (serverCache.size() == size) {
 			ArrayList<String> minKeys = minKeys();
 			if (minKeys.size() == 1) {
@@ -100,7 +102,7 @@ public class LFUCache extends ServerCache {
 		Freq.put(key, 0);
 		timeCounter = timeCounter + 0.1;
 		TS.put(key, timeCounter);
-		logger.debug(key + "-" + entry.value + " put in cache");
+		logger.debug("{}-{} put in cache", key, entry.value);
 
 	}
 
@@ -1,5 +1,6 @@
 package cache;
 
+import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
@@ -7,6 +8,8 @@ import java.util.Set;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import common.util.Bytes;
+
 /**
  * <h1>Server Cache</h1>
  * <p>
@@ -76,13 +79,13 @@ public abstract class ServerCache {
 	 * Abstract method over-ridden by child classes in order to get the value
 	 * corresponding to a specific key.
 	 */
-	public abstract String get(String key, String owner);
+	public abstract Bytes get(String key, int ownerId);
 
 	/**
 	 * Abstract method over-ridden by child classes in order to insert a key value
 	 * pair.
 	 */
-	public abstract void put(String key, String value, String owner);
+	public abstract void put(String key, Bytes value, int ownerId);
 
 	/**
 	 * Abstract method over-ridden by child classes in order to remove an entry in
@@ -90,6 +93,19 @@ public abstract class ServerCache {
 	 */
 	public abstract void invalidate(String key);
 
+	/**
+	 * This method removes the entries of several keys while holding the lock of
+	 * the cache once, e.g. for the keys that expired together.
+	 * 
+	 * @param keys the keys whose entries are removed
+	 * @return Nothing
+	 */
+	public synchronized void invalidateAll(Collection<String> keys) {
+		for (String key : keys) {
+			invalidate(key);
+		}
+	}
+
 	/**
 	 * This method takes a cache entry and removes it from the linked list by
 	 * changing the prev and next pointers of it's corresponding prev and next
@@ -112,7 +128,7 @@ public abstract class ServerCache {
 			tail = entry.prev;
 		}
 
-		logger.debug(entry.key + "-" + entry.value + " evicted from cache");
+		logger.debug("{}-{} evicted from cache", entry.key, entry.value);
 
 	}
 
@@ -134,4 +150,4 @@ public abstract class ServerCache {
 		if (tail == null)
 			tail = head;
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -11,7 +11,7 @@ import java.security.NoSuchAlgorithmException;
 public class Hash {
 
 	private static final String mode = "MD5";
-	private static MessageDigest mDigest = init();
+	private static final ThreadLocal<MessageDigest> mDigest = ThreadLocal.withInitial(Hash::init);
 
 	public static MessageDigest init() {
 		try {
@@ -23,15 +23,17 @@ public class Hash {
 	}
 
 	/**
-	 * Gives the byte array containing the hash value of a string
+	 * Gives the byte array containing the hash value of a string, every thread
+	 * uses its own digest
 	 * 
 	 * @param value the value to be hashed
 	 * @return byte[] the byte array containing the hash
 	 */
 	public static byte[] hash(String value) {
-		mDigest.reset();
+		MessageDigest digest = mDigest.get();
+		digest.reset();
 		byte[] result = value.getBytes();
-		result = mDigest.digest(result);
+		result = digest.digest(result);
 		return result;
 	}
 
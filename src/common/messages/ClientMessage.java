@@ -43,10 +43,10 @@ public class ClientMessage extends KVMessage {
 	}
 
 	public String getUserName() {
-		return pairs.get(0).value;
+		return pairs.get(0).valueString();
 	}
 
 	public LocalDateTime getDelTime() {
-		return LocalDateTime.parse(pairs.get(1).value);
+		return LocalDateTime.parse(pairs.get(1).valueString());
 	}
 }
@@ -6,6 +6,7 @@ import static java.util.stream.Stream.of;
 import java.util.ArrayList;
 import java.util.Collection;
 
+import common.util.Bytes;
 import common.util.MarshallUtils;
 
 public abstract class KVMessage {
@@ -54,6 +55,14 @@ public abstract class KVMessage {
 	}
 
 	public String getValue(int i) {
+		return pairs.get(i).valueString();
+	}
+
+	/**
+	 * @param i the index of the pair
+	 * @return the value as it was received, without decoding it
+	 */
+	public Bytes getBytes(int i) {
 		return pairs.get(i).value;
 	}
 
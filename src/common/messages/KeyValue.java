@@ -1,11 +1,21 @@
 package common.messages;
 
+import common.util.Bytes;
+
 public class KeyValue {
 	public final String key;
-	public final String value;
+	/**
+	 * The UTF-8 bytes of the value as they are sent, so a stored value is not
+	 * decoded and encoded again on its way to the socket
+	 */
+	public final Bytes value;
 	// public final String timelapse;
 
 	public KeyValue(String key, String value) {
+		this(key, Bytes.of(value));
+	}
+
+	private KeyValue(String key, Bytes value) {
 
 		this.key = key;
 		this.value = value;
@@ -13,6 +23,22 @@ public class KeyValue {
 
 	public KeyValue() {
 		this.key = "";
-		this.value = "";
+		this.value = Bytes.EMPTY;
+	}
+
+	/**
+	 * @param key   the key of the pair
+	 * @param value the encoded value, may be null
+	 * @return the pair
+	 */
+	public static KeyValue of(String key, Bytes value) {
+		return new KeyValue(key, value);
+	}
+
+	/**
+	 * @return the decoded value, null if there is no value
+	 */
+	public String valueString() {
+		return value == null ? null : value.toString();
 	}
 }
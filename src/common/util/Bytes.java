@@ -0,0 +1,123 @@
+package common.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This class holds a value as its UTF-8 bytes, which is how it is sent over
+ * the socket and written to disk. A value is encoded once when it enters the
+ * server and decoded only where a {@link String} is really needed, it takes one
+ * byte per ASCII character instead of the two of a {@link String}. Instances
+ * are immutable, the hash is calculated once.
+ *
+ * @author Uy Ha
+ *
+ */
+public final class Bytes implements Comparable<Bytes> {
+	public static final Bytes EMPTY = new Bytes(new byte[0]);
+
+	private final byte[] bytes;
+	private int hash;
+
+	private Bytes(byte[] bytes) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * @param value the value to be encoded, may be null
+	 * @return the UTF-8 bytes of the value, null if the value is null
+	 */
+	public static Bytes of(String value) {
+		return value == null ? null : new Bytes(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Use an array without copying it, the caller must not modify it anymore
+	 *
+	 * @param bytes the UTF-8 bytes of a value, may be null
+	 * @return the value, null if the array is null
+	 */
+	public static Bytes wrap(byte[] bytes) {
+		return bytes == null ? null : new Bytes(bytes);
+	}
+
+	/**
+	 * Copy a part of a buffer, e.g. of a received message
+	 *
+	 * @param buffer the buffer whose position is advanced
+	 * @param length the number of bytes
+	 * @return the value
+	 */
+	public static Bytes read(ByteBuffer buffer, int length) {
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new Bytes(bytes);
+	}
+
+	/**
+	 * @return the number of bytes
+	 */
+	public int length() {
+		return bytes.length;
+	}
+
+	/**
+	 * The backing array is shared to write the value without copying, it must
+	 * not be modified
+	 *
+	 * @return the backing array
+	 */
+	public byte[] array() {
+		return bytes;
+	}
+
+	public void writeTo(ByteBuffer buffer) {
+		buffer.put(bytes);
+	}
+
+	public void writeTo(OutputStream stream) throws IOException {
+		stream.write(bytes);
+	}
+
+	/**
+	 * @return the decoded value
+	 */
+	@Override
+	public String toString() {
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return this == other || other instanceof Bytes && Arrays.equals(bytes, ((Bytes) other).bytes);
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = this.hash;
+		if (hash == 0 && bytes.length > 0) {
+			hash = Arrays.hashCode(bytes);
+			this.hash = hash;
+		}
+		return hash;
+	}
+
+	/**
+	 * Bytes are compared unsigned, which orders UTF-8 values like their code
+	 * points
+	 */
+	@Override
+	public int compareTo(Bytes other) {
+		int length = Math.min(bytes.length, other.bytes.length);
+		for (int i = 0; i < length; i++) {
+			int result = (bytes[i] & 0xff) - (other.bytes[i] & 0xff);
+			if (result != 0) {
+				return result;
+			}
+		}
+		return bytes.length - other.bytes.length;
+	}
+}
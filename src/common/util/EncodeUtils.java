@@ -46,4 +46,65 @@ public class EncodeUtils {
 
 		return Arrays.stream(byteBuffers).map(String::new).toArray(String[]::new);
 	}
+
+	public static String[] decodeSequence(ByteBuffer buffer) {
+		if (buffer.remaining() < 4) {
+			return null;
+		}
+		int membersNum = buffer.getInt();
+
+		int[] lengths = new int[membersNum];
+		for (int i = 0; i < membersNum; i++) {
+			lengths[i] = buffer.getInt();
+		}
+
+		String[] members = new String[membersNum];
+		for (int i = 0; i < membersNum; i++) {
+			byte[] bytes = new byte[lengths[i]];
+			buffer.get(bytes);
+			members[i] = new String(bytes);
+		}
+		return members;
+	}
+
+	/**
+	 * @param value a non-negative integer
+	 * @return the number of bytes of the integer as varint
+	 */
+	public static int varIntLength(int value) {
+		int length = 1;
+		while ((value >>>= 7) != 0) {
+			length++;
+		}
+		return length;
+	}
+
+	/**
+	 * Write a non-negative integer with 7 bits per byte, the highest bit of a byte
+	 * is set if another byte follows.
+	 */
+	public static void putVarInt(ByteBuffer buffer, int value) {
+		while ((value & ~0x7f) != 0) {
+			buffer.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	/**
+	 * Read an integer written by {@link #putVarInt(ByteBuffer, int)}
+	 * 
+	 * @throws IllegalArgumentException if the integer is longer than 5 bytes
+	 */
+	public static int getVarInt(ByteBuffer buffer) {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte current = buffer.get();
+			value |= (current & 0x7f) << shift;
+			if (current >= 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
 }
@@ -10,6 +10,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -102,17 +103,17 @@ public class MarshallUtils {
 			throw new IllegalArgumentException("Key cannot be null");
 		}
 
-		byte[] key = pair.key.getBytes();
-		byte[] keyLengthBytes = intToBytes(key.length);
+		byte[] key = pair.key.getBytes(StandardCharsets.UTF_8);
+		int valueLength = pair.value == null ? -1 : pair.value.length();
 
-		byte[] valueLengthBytes = intToBytes(-1);
-		byte[] value = new byte[0];
+		// the value is already encoded, it is copied as it is
+		ByteBuffer buffer = ByteBuffer.allocate(8 + key.length + Math.max(valueLength, 0));
+		buffer.putInt(key.length).putInt(valueLength).put(key);
 		if (pair.value != null) {
-			value = pair.value.getBytes();
-			valueLengthBytes = intToBytes(value.length);
+			pair.value.writeTo(buffer);
 		}
 
-		return concatArray(keyLengthBytes, valueLengthBytes, key, value);
+		return buffer.array();
 	}
 
 	public static KeyValue pairFromBytes(byte[] bytes) {
@@ -125,16 +126,12 @@ public class MarshallUtils {
 
 		byte[] keyBytes = new byte[keyLength];
 		buffer.get(keyBytes);
-		String key = new String(keyBytes);
+		String key = new String(keyBytes, StandardCharsets.UTF_8);
 
-		String value = null;
-		if (valueLength >= 0) {
-			byte[] valueBytes = new byte[valueLength];
-			buffer.get(valueBytes);
-			value = new String(valueBytes);
-		}
+		// the value is only decoded when it is read as a string
+		Bytes value = valueLength < 0 ? null : Bytes.read(buffer, valueLength);
 
-		return new KeyValue(key, value);
+		return KeyValue.of(key, value);
 	}
 
 	public static ArrayList<KeyValue> pairsFromBytes(int pairsNum, byte[] bytes) {
@@ -21,6 +21,8 @@ public class AllTests {
 	clientSuite.addTestSuite(InteractionTest.class);
 	clientSuite.addTestSuite(CacheTest.class);
 	clientSuite.addTestSuite(StopShutDownAndNotResponsibleTest.class);
+	clientSuite.addTestSuite(DatabaseTest.class);
+	clientSuite.addTestSuite(MigrationTest.class);
 	return clientSuite;
     }
 
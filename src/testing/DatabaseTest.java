@@ -0,0 +1,1068 @@
+package testing;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import app_kvDatabase.BitcaskDatabase;
+import app_kvDatabase.CountingBloomFilter;
+import app_kvDatabase.Durability;
+import app_kvDatabase.KVData;
+import app_kvDatabase.KVDatabase;
+import app_kvDatabase.KVEntity;
+import app_kvDatabase.LSMDatabase;
+import app_kvDatabase.MappedDatabase;
+import app_kvDatabase.OwnerDictionary;
+import app_kvDatabase.PartitionedDatabase;
+import app_kvDatabase.StorageEngine;
+import app_kvDatabase.StorageEngines;
+import common.hash.Hash;
+import common.messages.KeyValue;
+import common.util.Bytes;
+import common.util.EncodeUtils;
+import common.util.MarshallUtils;
+import junit.framework.TestCase;
+
+/**
+ * <h1>Database Test</h1>
+ * <p>
+ * This class, extending TestCase, checks that the pairs written to a
+ * {@link KVDatabase}, an {@link LSMDatabase} or a {@link BitcaskDatabase}
+ * survive a restart of the database.
+ * </p>
+ * 
+ * @author Uy Ha
+ */
+public class DatabaseTest extends TestCase {
+
+    private File directory;
+
+    public void setUp() throws IOException {
+	directory = Files.createTempDirectory("kvdb").toFile();
+    }
+
+    public void tearDown() {
+	File[] files = directory.listFiles();
+	if (files != null) {
+	    for (File file : files) {
+		file.delete();
+	    }
+	}
+	directory.delete();
+    }
+
+    private String dbFile() {
+	return new File(directory, "db.kv").getPath();
+    }
+
+    /**
+     * Puts and removes some pairs, reopens the database and checks that the log
+     * was replayed correctly.
+     */
+    @Test
+    public void testReplayAfterRestart() throws IOException {
+	KVDatabase db = new KVDatabase(dbFile());
+	db.put("foo", new KVData("bar", "user", null));
+	db.put("baz", new KVData("qux", "user", LocalDateTime.of(2030, 1, 1, 0, 0)));
+	db.put("foo", new KVData("bar2", "user", null));
+	db.put("gone", new KVData("soon", "user", null));
+	db.remove("gone");
+	db.close();
+
+	KVDatabase reopened = new KVDatabase(dbFile());
+	assertEquals("bar2", reopened.get("foo").valueString());
+	assertNull(reopened.get("foo").delTime);
+	assertEquals(LocalDateTime.of(2030, 1, 1, 0, 0), reopened.get("baz").delTime);
+	assertNull(reopened.get("gone"));
+	reopened.close();
+    }
+
+    /**
+     * Writes a file in the old single file format and checks that it is loaded
+     * and moved into the log.
+     */
+    @Test
+    public void testMigrateStorageFile() throws IOException {
+	try (FileOutputStream ostream = new FileOutputStream(dbFile())) {
+	    ostream.write(EncodeUtils.encodeSequence("old", "value", "user", ""));
+	}
+
+	KVDatabase db = new KVDatabase(dbFile());
+	assertEquals("value", db.get("old").valueString());
+	assertTrue(Arrays.equals(Hash.hash("old"), db.get("old").token));
+	db.close();
+	assertFalse(new File(dbFile()).exists());
+
+	KVDatabase reopened = new KVDatabase(dbFile());
+	assertEquals("value", reopened.get("old").valueString());
+	reopened.close();
+    }
+
+    /**
+     * Replaces the content of a database, which writes a checkpoint, writes a
+     * tail to the log and checks that both are loaded after a restart.
+     */
+    @Test
+    public void testCheckpointAndTail() throws IOException {
+	KVDatabase db = new KVDatabase(dbFile(), Durability.SYNC);
+	db.put("old", new KVData("value", "user", null));
+	ArrayList<KVEntity> pairs = new ArrayList<>();
+	for (int i = 0; i < 100; i++) {
+	    pairs.add(new KVEntity("key" + i, new KVData("value" + i, "user", null)));
+	}
+	db.replicate(pairs);
+	db.put("key0", new KVData("updated", "user", null));
+	db.remove("key1");
+	db.close();
+	assertTrue(new File(dbFile() + ".checkpoint").exists());
+
+	KVDatabase reopened = new KVDatabase(dbFile());
+	assertNull(reopened.get("old"));
+	assertEquals("updated", reopened.get("key0").valueString());
+	assertNull(reopened.get("key1"));
+	assertEquals("value99", reopened.get("key99").valueString());
+	assertEquals(99, reopened.getData().size());
+	reopened.close();
+    }
+
+    /**
+     * Writes a checkpoint with several index ranges, which are loaded in
+     * parallel after a restart.
+     */
+    @Test
+    public void testParallelCheckpointLoad() throws IOException {
+	KVDatabase db = new KVDatabase(dbFile());
+	ArrayList<KVEntity> pairs = new ArrayList<>();
+	for (int i = 0; i < 150000; i++) {
+	    pairs.add(new KVEntity("key" + i, new KVData("value" + i, "user", null)));
+	}
+	db.replicate(pairs);
+	db.close();
+
+	KVDatabase reopened = new KVDatabase(dbFile());
+	assertEquals(150000, reopened.getData().size());
+	assertEquals("value0", reopened.get("key0").valueString());
+	assertEquals("value149999", reopened.get("key149999").valueString());
+	reopened.close();
+    }
+
+    /**
+     * Appends a partially written record to the log and checks that it is cut
+     * off while the complete records are replayed, also if its length is
+     * garbage that does not fit into the file.
+     */
+    @Test
+    public void testTornLogTail() throws IOException {
+	KVDatabase db = new KVDatabase(dbFile());
+	db.put("foo", new KVData("bar", "user", null));
+	db.close();
+
+	File segment = new File(dbFile() + ".000001.log");
+	long length = segment.length();
+	try (FileOutputStream ostream = new FileOutputStream(segment, true)) {
+	    ostream.write(new byte[] { 1, 0, 0, 1, 0, 42 });
+	}
+
+	KVDatabase reopened = new KVDatabase(dbFile());
+	assertEquals("bar", reopened.get("foo").valueString());
+	assertEquals(length, segment.length());
+	reopened.close();
+
+	for (int garbage : new int[] { 1 << 30, Integer.MAX_VALUE - 2, Integer.MAX_VALUE }) {
+	    try (FileOutputStream ostream = new FileOutputStream(segment, true)) {
+		ostream.write(ByteBuffer.allocate(9).put((byte) 1).putInt(garbage).array());
+	    }
+	    reopened = new KVDatabase(dbFile());
+	    assertEquals("bar", reopened.get("foo").valueString());
+	    assertEquals(length, segment.length());
+	    reopened.close();
+	}
+    }
+
+    /**
+     * Writes enough data into an LSM tree to flush and compact several
+     * memtables, then reopens the tree and checks every pair.
+     */
+    @Test
+    public void testLSMFlushAndCompaction() throws IOException {
+	String value = new String(new char[8 << 10]).replace('\0', 'v');
+	StorageEngine db = new LSMDatabase(dbFile());
+	for (int i = 0; i < 3000; i++) {
+	    db.put("key" + (i % 1000), new KVData(value + i, "user", null));
+	}
+	for (int i = 0; i < 1000; i += 2) {
+	    db.remove("key" + i);
+	}
+	db.close();
+
+	StorageEngine reopened = new LSMDatabase(dbFile());
+	for (int i = 0; i < 1000; i++) {
+	    KVData data = reopened.get("key" + i);
+	    if (i % 2 == 0) {
+		assertNull(data);
+	    } else {
+		assertEquals(value + (i + 2000), data.valueString());
+	    }
+	}
+	assertEquals(500, reopened.getData().size());
+	reopened.close();
+    }
+
+    /**
+     * Deletes the table files of an open LSM tree, like a compaction does while
+     * a scan still reads them, and checks that scans still read every pair
+     * through the open tables.
+     */
+    @Test
+    public void testLSMScanOfDeletedTables() throws IOException {
+	String value = new String(new char[8 << 10]).replace('\0', 'v');
+	StorageEngine db = new LSMDatabase(dbFile());
+	for (int i = 0; i < 1000; i++) {
+	    db.put("key" + i, new KVData(value + i, "user", null));
+	}
+	db.close();
+
+	StorageEngine reopened = new LSMDatabase(dbFile());
+	for (File file : directory.listFiles()) {
+	    if (file.getName().endsWith(".sst")) {
+		assertTrue(file.delete());
+	    }
+	}
+	assertEquals(1000, reopened.getData().size());
+	assertEquals(value + 7, reopened.dataInRange(new byte[16], new byte[16]).get("key7").valueString());
+	reopened.close();
+    }
+
+    /**
+     * Writes a Bitcask database, reopens it once from the hint files and once
+     * after deleting them, and checks that both key directories point to the
+     * latest values, also for keys and owners outside of ASCII.
+     */
+    @Test
+    public void testBitcaskHintFiles() throws IOException {
+	StorageEngine db = new BitcaskDatabase(dbFile());
+	db.put("foo", new KVData("bar", "user", null));
+	db.put("baz", new KVData("qux", "other", LocalDateTime.of(2030, 1, 1, 0, 0)));
+	db.put("foo", new KVData("bar2", "user", null));
+	db.put("gone", new KVData("soon", "user", null));
+	db.remove("gone");
+	db.put("k\u00e9y", new KVData("v\u00e4lue", "\u00fcser", null));
+	db.close();
+
+	StorageEngine reopened = new BitcaskDatabase(dbFile());
+	assertEquals("bar2", reopened.get("foo").valueString());
+	assertEquals("\u00fcser", reopened.get("k\u00e9y").owner());
+	assertEquals("other", reopened.get("baz").owner());
+	assertEquals(LocalDateTime.of(2030, 1, 1, 0, 0), reopened.get("baz").delTime);
+	assertNull(reopened.get("gone"));
+	reopened.close();
+
+	for (File file : directory.listFiles()) {
+	    if (file.getName().endsWith(".hint")) {
+		file.delete();
+	    }
+	}
+
+	reopened = new BitcaskDatabase(dbFile());
+	assertEquals("bar2", reopened.get("foo").valueString());
+	assertNull(reopened.get("gone"));
+	assertEquals("v\u00e4lue", reopened.get("k\u00e9y").valueString());
+	assertEquals("\u00fcser", reopened.get("k\u00e9y").owner());
+	assertEquals(3, reopened.getData().size());
+	reopened.close();
+    }
+
+    /**
+     * Checks that the slices of a memory mapped database contain the values,
+     * also for values that were written after the segment was mapped.
+     */
+    @Test
+    public void testMappedValueSlice() throws IOException {
+	MappedDatabase db = new MappedDatabase(dbFile());
+	db.put("foo", new KVData("bar", "user", null));
+	assertEquals("bar", db.get("foo").valueString());
+	db.put("baz", new KVData("qux", "user", null));
+	assertEquals("qux", db.get("baz").valueString());
+
+	ByteBuffer slice = db.valueSlice("foo");
+	byte[] value = new byte[slice.remaining()];
+	slice.get(value);
+	assertEquals("bar", new String(value));
+	assertNull(db.valueSlice("missing"));
+	db.close();
+
+	MappedDatabase reopened = new MappedDatabase(dbFile());
+	assertEquals(3, reopened.valueSlice("baz").remaining());
+	assertEquals("qux", reopened.get("baz").valueString());
+	reopened.close();
+    }
+
+    /**
+     * Writes from several threads with group commit and checks that every
+     * acknowledged write is there after a restart.
+     */
+    @Test
+    public void testGroupCommit() throws Exception {
+	Durability durability = Durability.parse("group:5:16");
+	assertEquals(Durability.Mode.GROUP, durability.mode);
+	assertEquals(5, durability.intervalMillis);
+	assertEquals(16, durability.maxOperations);
+
+	KVDatabase db = new KVDatabase(dbFile(), durability);
+	Thread[] writers = new Thread[4];
+	for (int i = 0; i < writers.length; i++) {
+	    int writer = i;
+	    writers[i] = new Thread(() -> {
+		for (int j = 0; j < 50; j++) {
+		    db.put(writer + "_" + j, new KVData("value" + j, "user", null));
+		}
+	    });
+	    writers[i].start();
+	}
+	for (Thread writer : writers) {
+	    writer.join();
+	}
+	db.close();
+
+	KVDatabase reopened = new KVDatabase(dbFile(), Durability.SYNC);
+	assertEquals(200, reopened.getData().size());
+	assertEquals("value49", reopened.get("3_49").valueString());
+	reopened.close();
+    }
+
+    /**
+     * Reads while other threads write and remove keys, then checks that the
+     * log replays to the same content as the map.
+     */
+    @Test
+    public void testConcurrentReadsAndWrites() throws Exception {
+	KVDatabase db = new KVDatabase(dbFile());
+	Thread[] threads = new Thread[8];
+	for (int i = 0; i < threads.length; i++) {
+	    int thread = i;
+	    threads[i] = new Thread(() -> {
+		for (int j = 0; j < 500; j++) {
+		    String key = "key" + (j % 50);
+		    if (thread % 2 == 0) {
+			assertTrue(db.get(key) == null || db.get(key).valueString().startsWith("value"));
+		    } else if (j % 7 == 0) {
+			db.remove(key);
+		    } else {
+			db.put(key, new KVData("value" + thread, "user", null));
+		    }
+		}
+	    });
+	    threads[i].start();
+	}
+	for (Thread thread : threads) {
+	    thread.join();
+	}
+	HashMap<String, KVData> expected = db.getData();
+	db.close();
+
+	KVDatabase reopened = new KVDatabase(dbFile());
+	assertEquals(expected.size(), reopened.getData().size());
+	for (String key : expected.keySet()) {
+	    assertEquals(expected.get(key).valueString(), reopened.get(key).valueString());
+	}
+	reopened.close();
+    }
+
+    /**
+     * Checks that the ranges collected through the ring index of every engine
+     * equal a filter of all keys, including ranges that wrap around.
+     */
+    @Test
+    public void testRangeExtraction() throws IOException {
+	for (String engine : new String[] { StorageEngines.LOG, StorageEngines.BITCASK, StorageEngines.LSM,
+		StorageEngines.MEMORY, "LSM:4" }) {
+	    StorageEngine db = StorageEngines.open(engine, new File(directory, engine).getPath());
+	    for (int i = 0; i < 300; i++) {
+		db.put("key" + i, new KVData("value" + i, "user", null));
+	    }
+	    for (int i = 0; i < 300; i += 3) {
+		db.remove("key" + i);
+	    }
+
+	    byte[][] bounds = { Hash.hash("key7"), Hash.hash("key100"), Hash.hash("server"), Hash.hash("key8") };
+	    for (byte[] start : bounds) {
+		for (byte[] end : bounds) {
+		    HashMap<String, KVData> inRange = db.dataInRange(start, end);
+		    HashMap<String, KVData> outOfRange = db.dataOutOfRange(start, end);
+		    for (int i = 0; i < 300; i++) {
+			String key = "key" + i;
+			boolean exists = i % 3 != 0;
+			boolean in = Hash.in(Hash.hash(key), start, end);
+			assertEquals(exists && in, inRange.containsKey(key));
+			assertEquals(exists && !in, outOfRange.containsKey(key));
+		    }
+		    assertEquals(200, inRange.size() + outOfRange.size());
+		}
+	    }
+	    db.close();
+	}
+    }
+
+    /**
+     * Checks that the ring token is written with the pair and read back from the
+     * checkpoint and the log, and that records without token still load.
+     */
+    @Test
+    public void testRingToken() throws IOException {
+	KVDatabase db = new KVDatabase(dbFile());
+	db.put("checkpointed", new KVData("value", "user", null));
+	db.replicate(new ArrayList<>(Arrays.asList(new KVEntity("checkpointed", new KVData("value", "user", null)))));
+	db.put("logged", new KVData("value", "user", null));
+	assertTrue(Arrays.equals(Hash.hash("logged"), db.get("logged").token));
+	db.close();
+
+	KVDatabase reopened = new KVDatabase(dbFile());
+	assertTrue(Arrays.equals(Hash.hash("checkpointed"), reopened.get("checkpointed").token));
+	assertTrue(Arrays.equals(Hash.hash("logged"), reopened.get("logged").token));
+	reopened.close();
+
+	KVEntity legacy = new KVEntity();
+	assertTrue(legacy.populate(ByteBuffer.wrap(EncodeUtils.encodeSequence("legacy", "value", "user", ""))));
+	assertTrue(Arrays.equals(Hash.hash("legacy"), legacy.getValue().token));
+    }
+
+    /**
+     * Checks that records of the format 2 are read back, that a corrupt record
+     * ends the replay like a torn write and that a log of the format 1 is
+     * migrated into a checkpoint.
+     */
+    @Test
+    public void testRecordFormat() throws IOException {
+	LocalDateTime delTime = LocalDateTime.of(2030, 1, 2, 3, 4, 5);
+	KVEntity entity = new KVEntity();
+	byte[] record = new KVEntity("k\u00e9y", new KVData("v\u00e4lue", "user", delTime)).marshall();
+	assertTrue(entity.populate(ByteBuffer.wrap(record)));
+	assertEquals("k\u00e9y", entity.getKey());
+	assertEquals("v\u00e4lue", entity.getValue().valueString());
+	assertEquals(delTime, entity.getValue().delTime);
+	assertFalse(entity.isOutdated());
+	assertTrue(entity.populate(ByteBuffer.wrap(new KVEntity("key", null).marshall())));
+	assertNull(entity.getValue());
+
+	byte[] corrupt = new KVEntity("key", new KVData("value", "user", null)).marshall();
+	corrupt[corrupt.length - 1] ^= 1;
+	assertFalse(entity.populate(ByteBuffer.wrap(corrupt)));
+
+	KVDatabase db = new KVDatabase(dbFile());
+	db.put("foo", new KVData("bar", "user", null));
+	db.put("baz", new KVData("qux", "user", null));
+	db.close();
+	File segment = new File(dbFile() + ".000001.log");
+	byte[] content = Files.readAllBytes(segment.toPath());
+	content[content.length - 1] ^= 1;
+	Files.write(segment.toPath(), content);
+
+	KVDatabase reopened = new KVDatabase(dbFile());
+	assertEquals("bar", reopened.get("foo").valueString());
+	assertNull(reopened.get("baz"));
+	reopened.close();
+
+	tearDown();
+	setUp();
+	byte[] payload = EncodeUtils.encodeSequence("old", "value", "user", "");
+	ByteBuffer oldRecord = ByteBuffer.allocate(5 + payload.length);
+	oldRecord.put((byte) 1).putInt(payload.length).put(payload);
+	Files.write(new File(dbFile() + ".000001.log").toPath(), oldRecord.array());
+
+	KVDatabase migrated = new KVDatabase(dbFile());
+	assertEquals("value", migrated.get("old").valueString());
+	migrated.close();
+	assertTrue(new File(dbFile() + ".checkpoint").exists());
+	assertFalse(new File(dbFile() + ".000001.log").exists());
+    }
+
+    /**
+     * Checks that large values are compressed in the log and still returned,
+     * replicated and reloaded unchanged.
+     */
+    @Test
+    public void testValueCompression() throws IOException {
+	StringBuilder builder = new StringBuilder();
+	for (int i = 0; i < 2000; i++) {
+	    builder.append("{\"id\":").append(i).append(",\"name\":\"value\"}");
+	}
+	String large = builder.toString();
+
+	KVDatabase db = new KVDatabase(dbFile());
+	db.put("large", new KVData(large, "user", null));
+	db.put("small", new KVData("value", "user", null));
+	assertEquals(large, db.get("large").valueString());
+	assertEquals(large, db.getData().get("large").valueString());
+	assertEquals(large, db.put("large", new KVData(large, "user", null)).valueString());
+	db.close();
+	assertTrue(new File(dbFile() + ".000001.log").length() < large.length() / 2);
+
+	KVDatabase reopened = new KVDatabase(dbFile());
+	assertEquals(large, reopened.get("large").valueString());
+	assertEquals("value", reopened.get("small").valueString());
+	reopened.replicate(new ArrayList<>(Arrays.asList(new KVEntity("copy", new KVData(large, "user", null)))));
+	assertEquals(large, reopened.get("copy").valueString());
+	reopened.close();
+
+	KVDatabase replicated = new KVDatabase(dbFile());
+	assertEquals(large, replicated.get("copy").valueString());
+	assertNull(replicated.get("large"));
+	replicated.close();
+    }
+
+    /**
+     * Checks that large values are kept in the value log, that a segment with
+     * few live values is collected and deleted after the next checkpoint, and
+     * that the values survive all of it.
+     */
+    @Test
+    public void testValueLog() throws IOException {
+	StringBuilder builder = new StringBuilder();
+	for (int i = 0; i < 1000; i++) {
+	    builder.append((char) ('a' + i % 26));
+	}
+	String large = builder.toString();
+
+	KVDatabase db = new KVDatabase(dbFile(), Durability.ASYNC, Integer.MAX_VALUE, 100);
+	for (int i = 0; i < 10; i++) {
+	    db.put("key" + i, new KVData(large + i, "user", null));
+	}
+	for (int i = 0; i < 8; i++) {
+	    db.remove("key" + i);
+	}
+	assertEquals(large + 9, db.get("key9").valueString());
+	assertEquals(large + 8, db.dataInRange(new byte[16], new byte[16]).get("key8").valueString());
+	db.close();
+	assertTrue(new File(dbFile() + ".000001.log").length() < large.length());
+
+	KVDatabase reopened = new KVDatabase(dbFile(), Durability.ASYNC, Integer.MAX_VALUE, 100);
+	assertEquals(large + 8, reopened.get("key8").valueString());
+	reopened.replicate(new ArrayList<>(Arrays.asList(new KVEntity("key9", reopened.get("key9")))));
+	reopened.close();
+	assertFalse(new File(dbFile() + ".000001.vlog").exists());
+
+	KVDatabase collected = new KVDatabase(dbFile(), Durability.ASYNC, Integer.MAX_VALUE, 100);
+	assertEquals(large + 9, collected.get("key9").valueString());
+	assertNull(collected.get("key8"));
+	collected.close();
+    }
+
+    /**
+     * Checks that the filter never misses a contained key, forgets removed keys
+     * and rarely reports a missing one, and that an LSM tree whose filter grew
+     * and was rebuilt at load still finds all of its pairs.
+     */
+    @Test
+    public void testBloomFilter() throws IOException {
+	CountingBloomFilter filter = new CountingBloomFilter(5000);
+	for (int i = 0; i < 5000; i++) {
+	    filter.add("key" + i);
+	}
+	int falsePositives = 0;
+	for (int i = 0; i < 5000; i++) {
+	    assertTrue(filter.mightContain("key" + i));
+	    if (filter.mightContain("missing" + i)) {
+		falsePositives++;
+	    }
+	}
+	assertTrue(falsePositives < 250);
+	for (int i = 0; i < 5000; i++) {
+	    filter.remove("key" + i);
+	}
+	assertEquals(0, filter.size());
+	assertFalse(filter.mightContain("key0"));
+
+	StorageEngine db = new LSMDatabase(dbFile());
+	for (int i = 0; i < 3000; i++) {
+	    assertNull(db.put("key" + i, new KVData("value" + i, "user", null)));
+	}
+	db.remove("key0");
+	assertNull(db.get("missing"));
+	assertEquals("value2999", db.get("key2999").valueString());
+	db.close();
+
+	StorageEngine reopened = new LSMDatabase(dbFile());
+	assertNull(reopened.get("key0"));
+	for (int i = 1; i < 3000; i++) {
+	    assertEquals("value" + i, reopened.get("key" + i).valueString());
+	}
+	assertEquals("value1", reopened.put("key1", new KVData("updated", "user", null)).valueString());
+	reopened.close();
+    }
+
+    /**
+     * Writes large pairs from several threads, so the memtable is swapped again
+     * and again while the filter of the LSM tree is rebuilt, and checks that
+     * the rebuilt filters do not miss any key.
+     */
+    @Test
+    public void testFilterResizeDuringSwap() throws Exception {
+	String value = new String(new char[1 << 10]).replace('\0', 'v');
+	StorageEngine db = new LSMDatabase(dbFile());
+	Thread[] threads = new Thread[4];
+	for (int i = 0; i < threads.length; i++) {
+	    int thread = i;
+	    threads[i] = new Thread(() -> {
+		for (int j = 0; j < 10000; j++) {
+		    db.put(thread + "_" + j, new KVData(value, "user", null));
+		}
+	    });
+	    threads[i].start();
+	}
+	for (Thread thread : threads) {
+	    thread.join();
+	}
+
+	for (int i = 0; i < threads.length; i++) {
+	    for (int j = 0; j < 10000; j++) {
+		assertNotNull(db.get(i + "_" + j));
+	    }
+	}
+	db.close();
+    }
+
+    /**
+     * Changes the pairs of a database while a snapshot is open and checks that
+     * the snapshot still returns the pairs as they were when it was opened.
+     */
+    @Test
+    public void testSnapshot() throws IOException {
+	KVDatabase db = new KVDatabase(dbFile());
+	db.put("kept", new KVData("value", "user", null));
+	db.put("updated", new KVData("old", "user", null));
+	db.put("removed", new KVData("value", "user", null));
+	HashMap<String, KVData> before = db.getData();
+
+	try (StorageEngine.Snapshot<String, KVData> snapshot = db.snapshot()) {
+	    db.put("updated", new KVData("new", "user", null));
+	    db.put("updated", new KVData("newer", "user", null));
+	    db.remove("removed");
+	    db.put("added", new KVData("value", "user", null));
+	    db.replicate(new ArrayList<>(Arrays.asList(new KVEntity("replicated", new KVData("value", "user", null)))));
+
+	    assertEquals("old", snapshot.get("updated").valueString());
+	    assertEquals("value", snapshot.get("removed").valueString());
+	    assertNull(snapshot.get("added"));
+	    assertNull(snapshot.get("replicated"));
+	    assertEquals(before.keySet(), snapshot.getData().keySet());
+	    assertEquals(before.keySet(), snapshot.dataInRange(new byte[16], new byte[16]).keySet());
+	    assertTrue(snapshot.dataOutOfRange(new byte[16], new byte[16]).isEmpty());
+	    HashMap<String, KVData> split = snapshot.dataInRange(new byte[16], Hash.hash("removed"));
+	    split.putAll(snapshot.dataOutOfRange(new byte[16], Hash.hash("removed")));
+	    assertEquals(before.keySet(), split.keySet());
+	}
+	assertEquals(Arrays.asList("replicated"), new ArrayList<>(db.getData().keySet()));
+	db.close();
+    }
+
+    /**
+     * Checks for every engine that only the pairs whose deletion time has passed
+     * are removed, the earliest first, also after an update cleared the deletion
+     * time and after the expiry index was rebuilt at load.
+     */
+    @Test
+    public void testRemoveExpiredData() throws IOException {
+	LocalDateTime past = LocalDateTime.now().minusMinutes(1);
+	LocalDateTime future = LocalDateTime.now().plusMinutes(1);
+	for (String engine : new String[] { StorageEngines.LOG, StorageEngines.BITCASK, StorageEngines.LSM }) {
+	    String file = new File(directory, engine).getPath();
+	    StorageEngine db = StorageEngines.open(engine, file);
+	    db.put("expired", new KVData("value", "user", past));
+	    db.put("updated", new KVData("value", "user", past));
+	    db.put("updated", new KVData("value", "user", null));
+	    db.put("removed", new KVData("value", "user", past));
+	    db.remove("removed");
+	    db.put("timed", new KVData("value", "user", future));
+	    db.put("later", new KVData("value", "user", future));
+	    db.put("later", new KVData("value", "user", past));
+	    db.close();
+
+	    StorageEngine reopened = StorageEngines.open(engine, file);
+	    assertEquals(new HashSet<>(Arrays.asList("expired", "later")),
+		    new HashSet<>(reopened.removeExpiredData()));
+	    assertTrue(reopened.removeExpiredData().isEmpty());
+	    assertNull(reopened.get("expired"));
+	    assertNotNull(reopened.get("updated"));
+	    assertNotNull(reopened.get("timed"));
+	    reopened.put("timed", new KVData("value", "user", past));
+	    reopened.put("earlier", new KVData("value", "user", past.minusMinutes(1)));
+	    assertEquals(Arrays.asList("earlier"), reopened.removeExpiredData(1));
+	    assertFalse(reopened.removeIfExpired("updated", LocalDateTime.now()));
+	    assertTrue(reopened.removeIfExpired("timed", LocalDateTime.now()));
+	    assertNull(reopened.get("timed"));
+	    assertTrue(reopened.removeExpiredData().isEmpty());
+	    reopened.close();
+	}
+    }
+
+    /**
+     * Stores values of every size off the heap, replaces and removes them while
+     * a snapshot is open, and checks them again after a restart moved the
+     * loaded values into slabs.
+     */
+    @Test
+    public void testSlabStore() throws IOException {
+	String[] values = new String[200];
+	for (int i = 0; i < values.length; i++) {
+	    StringBuilder value = new StringBuilder();
+	    while (value.length() < i * i * 2) {
+		value.append(i).append(' ');
+	    }
+	    values[i] = i == 0 ? "" : i == 1 ? new String(new char[100000]).replace('\0', 'x') : value.toString();
+	}
+
+	KVDatabase db = new KVDatabase(dbFile(), Durability.ASYNC, KVDatabase.DEFAULT_COMPRESSION_THRESHOLD,
+		Integer.MAX_VALUE, true);
+	for (int i = 0; i < values.length; i++) {
+	    db.put("key" + i, new KVData(values[i], "user", null));
+	}
+	StorageEngine.Snapshot<String, KVData> snapshot = db.snapshot();
+	for (int i = 0; i < values.length; i += 2) {
+	    db.put("key" + i, new KVData("new" + values[i], "user", null));
+	    db.remove("key" + (i + 1));
+	}
+	for (int i = 0; i < values.length; i++) {
+	    assertEquals(values[i], snapshot.get("key" + i).valueString());
+	    assertEquals(i % 2 == 0 ? "new" + values[i] : null,
+		    i % 2 == 0 ? db.get("key" + i).valueString() : db.get("key" + i));
+	}
+	snapshot.close();
+	for (int i = 0; i < values.length; i += 2) {
+	    assertEquals("new" + values[i], db.remove("key" + i).valueString());
+	    db.put("key" + i, new KVData(values[i], "user", null));
+	}
+	db.close();
+
+	KVDatabase reopened = new KVDatabase(dbFile(), Durability.ASYNC, KVDatabase.DEFAULT_COMPRESSION_THRESHOLD,
+		Integer.MAX_VALUE, true);
+	HashMap<String, KVData> data = reopened.getData();
+	assertEquals(values.length / 2, data.size());
+	for (int i = 0; i < values.length; i += 2) {
+	    assertEquals(values[i], data.get("key" + i).valueString());
+	    assertEquals(values[i], reopened.get("key" + i).valueString());
+	}
+	reopened.close();
+    }
+
+    /**
+     * Grows the key directory of a Bitcask database past several rebuilds while
+     * removing keys, and checks the lookups and the iteration, also for keys
+     * that are too long to be stored inline.
+     */
+    @Test
+    public void testKeyDirectory() throws IOException {
+	BitcaskDatabase db = new BitcaskDatabase(dbFile());
+	String[] keys = new String[10000];
+	for (int i = 0; i < keys.length; i++) {
+	    keys[i] = i % 100 == 0 ? "long key number " + i + " with more than 20 characters" : "key" + i;
+	}
+	for (int i = 0; i < keys.length; i++) {
+	    db.put(keys[i], new KVData("value" + i, "user", null));
+	}
+	db.close();
+
+	BitcaskDatabase reopened = new BitcaskDatabase(dbFile());
+	for (int i = 0; i < keys.length; i++) {
+	    assertEquals("value" + i, reopened.get(keys[i]).valueString());
+	    if (i % 2 == 0) {
+		reopened.remove(keys[i]);
+	    }
+	}
+	for (int i = 0; i < keys.length; i++) {
+	    reopened.put(keys[i] + "x", new KVData("other", "user", null));
+	}
+	HashMap<String, KVData> data = reopened.getData();
+	assertEquals(keys.length / 2 + keys.length, data.size());
+	for (int i = 0; i < keys.length; i++) {
+	    if (i % 2 == 0) {
+		assertNull(reopened.get(keys[i]));
+	    } else {
+		assertEquals("value" + i, data.get(keys[i]).valueString());
+	    }
+	    assertEquals("other", data.get(keys[i] + "x").valueString());
+	}
+	reopened.close();
+    }
+
+    /**
+     * Checks for every engine that batches survive a restart, and that a batch
+     * whose log record was torn is lost as a whole.
+     */
+    @Test
+    public void testPutAll() throws IOException {
+	HashMap<String, KVData> pairs = new HashMap<>();
+	for (int i = 0; i < 100; i++) {
+	    pairs.put("key" + i, new KVData("value" + i, "user", null));
+	}
+	for (String engine : new String[] { StorageEngines.LOG, StorageEngines.BITCASK, StorageEngines.LSM }) {
+	    String file = new File(directory, engine).getPath();
+	    StorageEngine db = StorageEngines.open(engine, file);
+	    db.putAll(pairs);
+	    db.removeAll(Arrays.asList("key0", "key1", "missing"));
+	    db.close();
+
+	    StorageEngine reopened = StorageEngines.open(engine, file);
+	    assertNull(reopened.get("key0"));
+	    assertNull(reopened.get("key1"));
+	    for (int i = 2; i < 100; i++) {
+		assertEquals("value" + i, reopened.get("key" + i).valueString());
+	    }
+	    reopened.close();
+	}
+
+	KVDatabase db = new KVDatabase(dbFile());
+	db.put("foo", new KVData("bar", "user", null));
+	db.putAll(pairs);
+	db.close();
+
+	File segment = new File(dbFile() + ".000001.log");
+	try (FileOutputStream ostream = new FileOutputStream(segment, true)) {
+	    ostream.getChannel().truncate(segment.length() - 1);
+	}
+
+	KVDatabase reopened = new KVDatabase(dbFile());
+	assertEquals("bar", reopened.get("foo").valueString());
+	assertEquals(1, reopened.getData().size());
+	reopened.close();
+    }
+
+    /**
+     * Checks that a value keeps its bytes from a message to the disk and back,
+     * including characters outside of ASCII.
+     */
+    @Test
+    public void testBytes() throws IOException {
+	String text = "caf\u00e9 \u65e5\u672c";
+	Bytes value = Bytes.of(text);
+	assertEquals(text.getBytes(StandardCharsets.UTF_8).length, value.length());
+	assertEquals(text, value.toString());
+	assertEquals(value, Bytes.wrap(text.getBytes(StandardCharsets.UTF_8)));
+	assertEquals(value.hashCode(), Bytes.of(text).hashCode());
+	assertTrue(Bytes.of("a").compareTo(Bytes.of("\u00e9")) < 0);
+	assertTrue(Bytes.of("ab").compareTo(Bytes.of("a")) > 0);
+
+	KeyValue pair = MarshallUtils.pairFromBytes(MarshallUtils.pairBytes(KeyValue.of("key", value)));
+	assertEquals(value, pair.value);
+	assertNull(MarshallUtils.pairFromBytes(MarshallUtils.pairBytes(new KeyValue("key", null))).value);
+
+	String large = new String(new char[2000]).replace('\0', '\u00e9');
+	KVDatabase db = new KVDatabase(dbFile(), Durability.ASYNC, 100, Integer.MAX_VALUE, true);
+	db.put("small", new KVData(pair.value, "user", null));
+	db.put("large", new KVData(large, "user", null));
+	assertEquals(value, db.get("small").value);
+	db.close();
+
+	KVDatabase reopened = new KVDatabase(dbFile());
+	assertEquals(text, reopened.get("small").valueString());
+	assertEquals(large, reopened.get("large").valueString());
+	reopened.close();
+    }
+
+    /**
+     * Checks that owner ids survive a restart of the dictionary, that the
+     * owners in use are kept when a file is loaded, and that the pairs of every
+     * engine keep their owner.
+     */
+    @Test
+    public void testOwnerDictionary() throws IOException {
+	String file = new File(directory, "owners").getPath();
+	OwnerDictionary owners = new OwnerDictionary();
+	assertEquals(0, owners.id("alice"));
+	owners.persist(file);
+	assertEquals(1, owners.id("bob"));
+	assertEquals(0, owners.id("alice"));
+	assertEquals(OwnerDictionary.NO_OWNER, owners.find("carol"));
+	assertEquals(OwnerDictionary.NO_OWNER, owners.id(null));
+	assertNull(owners.owner(2));
+
+	try (FileOutputStream ostream = new FileOutputStream(file, true)) {
+	    ostream.write(new byte[] { 0, 5, 'c' });
+	}
+	OwnerDictionary reopened = new OwnerDictionary();
+	reopened.persist(file);
+	assertEquals(2, reopened.size());
+	assertEquals("bob", reopened.owner(1));
+	assertEquals(2, reopened.id("carol"));
+
+	OwnerDictionary extended = new OwnerDictionary();
+	extended.id("alice");
+	extended.persist(file);
+	assertEquals("carol", extended.owner(2));
+
+	OwnerDictionary conflicting = new OwnerDictionary();
+	conflicting.id("bob");
+	Exception ex = null;
+	try {
+	    conflicting.persist(file);
+	} catch (IOException e) {
+	    ex = e;
+	}
+	assertNotNull(ex);
+	assertFalse(conflicting.isPersistent());
+
+	for (String engine : new String[] { StorageEngines.LOG, StorageEngines.BITCASK, StorageEngines.LSM }) {
+	    String dbFile = new File(directory, engine).getPath();
+	    StorageEngine db = StorageEngines.open(engine, dbFile);
+	    db.put("foo", new KVData("bar", "alice", null));
+	    db.put("baz", new KVData("qux", "bob", null));
+	    db.close();
+
+	    StorageEngine reopenedDb = StorageEngines.open(engine, dbFile);
+	    assertEquals(OwnerDictionary.node().find("alice"), reopenedDb.get("foo").ownerId);
+	    assertEquals("bob", reopenedDb.get("baz").owner());
+	    reopenedDb.close();
+	}
+    }
+
+    /**
+     * Checks for every engine that a snapshot opened through the storage engine
+     * interface keeps the pairs as they were when it was opened.
+     */
+    @Test
+    public void testEngineSnapshot() throws IOException {
+	for (String engine : new String[] { StorageEngines.LOG, StorageEngines.BITCASK, StorageEngines.LSM,
+		StorageEngines.MEMORY }) {
+	    StorageEngine db = StorageEngines.open(engine, new File(directory, engine).getPath());
+	    db.put("updated", new KVData("old", "user", null));
+	    db.put("removed", new KVData("value", "user", null));
+
+	    try (StorageEngine.Snapshot<String, KVData> snapshot = db.snapshot()) {
+		db.put("updated", new KVData("new", "user", null));
+		db.remove("removed");
+		db.put("added", new KVData("value", "user", null));
+
+		assertEquals("old", snapshot.get("updated").valueString());
+		assertEquals("value", snapshot.get("removed").valueString());
+		assertNull(snapshot.get("added"));
+		assertEquals(new HashSet<>(Arrays.asList("updated", "removed")), snapshot.getData().keySet());
+		HashMap<String, KVData> split = snapshot.dataInRange(new byte[16], Hash.hash("removed"));
+		split.putAll(snapshot.dataOutOfRange(new byte[16], Hash.hash("removed")));
+		assertEquals(snapshot.getData().keySet(), split.keySet());
+	    }
+	    assertEquals("new", db.get("updated").valueString());
+	    db.close();
+	}
+    }
+
+    /**
+     * Checks that the memory engine supports the whole storage engine interface
+     * without writing any file, and drops its pairs when it is closed.
+     */
+    @Test
+    public void testMemoryEngine() throws IOException {
+	StorageEngine db = StorageEngines.open(StorageEngines.MEMORY, dbFile(), Durability.SYNC);
+	db.put("foo", new KVData("bar", "user", null));
+	db.put("expired", new KVData("value", "user", LocalDateTime.now().minusSeconds(1)));
+	HashMap<String, KVData> batch = new HashMap<>();
+	for (int i = 0; i < 100; i++) {
+	    batch.put("key" + i, new KVData("value" + i, "user", null));
+	}
+	db.putAll(batch);
+	db.removeAll(Arrays.asList("key0", "key1"));
+
+	assertEquals("bar", db.get("foo").valueString());
+	assertEquals("value99", db.get("key99").valueString());
+	assertNull(db.get("key0"));
+	assertEquals(Arrays.asList("expired"), db.removeExpiredData());
+	assertEquals(99, db.getData().size());
+	assertEquals(99, db.dataInRange(new byte[16], new byte[16]).size());
+
+	db.replicate(new ArrayList<>(Arrays.asList(new KVEntity("replicated", new KVData("value", "user", null)))));
+	assertEquals(new HashSet<>(Arrays.asList("replicated")), db.getData().keySet());
+	assertEquals(0, directory.list().length);
+
+	db.close();
+	assertNull(db.get("replicated"));
+    }
+
+    /**
+     * Checks that a partitioned engine collects and drops ranges like a filter
+     * of all keys, also for ranges starting or ending at the bounds of its
+     * partitions, and that it refuses to open with another number of
+     * partitions, without partitions or over the files of an unpartitioned
+     * engine.
+     */
+    @Test
+    public void testPartitionedEngine() throws IOException {
+	StorageEngine db = StorageEngines.open("LOG:4", dbFile());
+	assertTrue(db instanceof PartitionedDatabase);
+	HashMap<String, KVData> batch = new HashMap<>();
+	for (int i = 0; i < 300; i++) {
+	    batch.put("key" + i, new KVData("value" + i, "user", i < 10 ? LocalDateTime.now().minusSeconds(1) : null));
+	}
+	db.putAll(batch);
+	assertEquals(10, db.removeExpiredData().size());
+	db.remove("key10");
+	db.close();
+
+	db = StorageEngines.open("LOG:4", dbFile());
+	assertEquals(289, db.getData().size());
+	byte[] partitionBound = new byte[16];
+	Arrays.fill(partitionBound, (byte) 0x80);
+	partitionBound[0] = 0;
+	byte[][] bounds = { new byte[16], partitionBound, Hash.hash("key7"), Hash.hash("key100") };
+	for (byte[] start : bounds) {
+	    for (byte[] end : bounds) {
+		HashMap<String, KVData> inRange = db.dataInRange(start, end);
+		HashMap<String, KVData> outOfRange = db.dataOutOfRange(start, end);
+		try (StorageEngine.Snapshot<String, KVData> snapshot = db.snapshot()) {
+		    assertEquals(inRange.keySet(), snapshot.dataInRange(start, end).keySet());
+		}
+		for (String key : db.getData().keySet()) {
+		    boolean in = Hash.in(Hash.hash(key), start, end);
+		    assertEquals(in, inRange.containsKey(key));
+		    assertEquals(!in, outOfRange.containsKey(key));
+		}
+	    }
+	}
+
+	db.removeOutOfRange(partitionBound, Hash.hash("key7"));
+	for (int i = 11; i < 300; i++) {
+	    assertEquals(Hash.in(Hash.hash("key" + i), partitionBound, Hash.hash("key7")), db.get("key" + i) != null);
+	}
+	db.close();
+
+	Exception ex = null;
+	try {
+	    StorageEngines.open("LOG:2", dbFile());
+	} catch (IOException e) {
+	    ex = e;
+	}
+	assertNotNull(ex);
+	for (String engine : new String[] { "LOG", "LOG:1" }) {
+	    ex = null;
+	    try {
+		StorageEngines.open(engine, dbFile());
+	    } catch (IOException e) {
+		ex = e;
+	    }
+	    assertNotNull(ex);
+	}
+
+	tearDown();
+	setUp();
+	db = StorageEngines.open("LOG", dbFile());
+	db.put("key", new KVData("value", "user", null));
+	db.close();
+	ex = null;
+	try {
+	    StorageEngines.open("LOG:4", dbFile());
+	} catch (IOException e) {
+	    ex = e;
+	}
+	assertNotNull(ex);
+	assertFalse(new File(dbFile() + ".partitions").exists());
+	assertFalse(StorageEngines.exists("LOG:0"));
+	assertTrue(StorageEngines.exists("bitcask:8"));
+    }
+}
@@ -0,0 +1,107 @@
+package testing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import app_kvServer.Migration;
+import common.hash.Hash;
+import junit.framework.TestCase;
+
+/**
+ * <h1>Migration Test</h1>
+ * <p>
+ * This class, extending TestCase, checks that a {@link Migration} records the
+ * written keys of the moved range, and that draining it never loses a key
+ * written at the same time.
+ * </p>
+ * 
+ * @author Uy Ha
+ */
+public class MigrationTest extends TestCase {
+
+    /**
+     * Number of keys written by the tests
+     */
+    private static final int KEYS = 100;
+
+    /**
+     * Records all keys in a range between two of their tokens and in the range
+     * wrapping around the ring between the same tokens, and checks that only the
+     * keys of each range are drained. The start of a range is exclusive, its end
+     * inclusive.
+     */
+    @Test
+    public void testRangeFiltering() {
+	List<String> keys = new ArrayList<>();
+	for (int i = 0; i < KEYS; i++) {
+	    keys.add("key" + i);
+	}
+	keys.sort((a, b) -> Hash.compare(Hash.hash(a), Hash.hash(b)));
+	byte[] lower = Hash.hash(keys.get(20));
+	byte[] upper = Hash.hash(keys.get(60));
+
+	Migration inner = new Migration(lower, upper);
+	Migration wrapping = new Migration(upper, lower);
+	for (String key : keys) {
+	    inner.record(key);
+	    wrapping.record(key);
+	}
+
+	assertEquals(new HashSet<>(keys.subList(21, 61)), new HashSet<>(inner.drain()));
+	HashSet<String> outer = new HashSet<>(keys.subList(61, KEYS));
+	outer.addAll(keys.subList(0, 21));
+	assertEquals(outer, new HashSet<>(wrapping.drain()));
+    }
+
+    /**
+     * Checks that a drain returns every recorded key once, that the drained keys
+     * are not returned again and that a key written again after a drain is
+     * returned by the next one.
+     */
+    @Test
+    public void testDrain() {
+	byte[] bound = new byte[16];
+	Migration migration = new Migration(bound, bound);
+	assertTrue(migration.drain().isEmpty());
+
+	migration.record("foo");
+	migration.record("bar");
+	migration.record("foo");
+	List<String> drained = migration.drain();
+	assertEquals(2, drained.size());
+	assertEquals(new HashSet<>(Arrays.asList("foo", "bar")), new HashSet<>(drained));
+	assertTrue(migration.drain().isEmpty());
+
+	migration.record("foo");
+	assertEquals(Arrays.asList("foo"), migration.drain());
+    }
+
+    /**
+     * Records keys on another thread while draining, and checks that every key
+     * is returned by one of the drains.
+     */
+    @Test
+    public void testRecordDuringDrain() throws InterruptedException {
+	byte[] bound = new byte[16];
+	Migration migration = new Migration(bound, bound);
+	int count = 1000 * KEYS;
+	Thread writer = new Thread(() -> {
+	    for (int i = 0; i < count; i++) {
+		migration.record("key" + i);
+	    }
+	});
+
+	HashSet<String> drained = new HashSet<>();
+	writer.start();
+	while (writer.isAlive()) {
+	    drained.addAll(migration.drain());
+	}
+	writer.join();
+	drained.addAll(migration.drain());
+	assertEquals(count, drained.size());
+    }
+}